@@ -0,0 +1,169 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.quadtree.PointQuadTree;
+
+/**
+ * The clustering of {@link MFNonHierarchicalDistanceBasedAlgorithm}, for any index its items are
+ * searched in: each candidate which isn't in a cluster yet becomes the center of a cluster of the
+ * items within its span, and items already in a cluster move to the new one if it is closer.
+ * <p/>
+ * Bookkeeping is kept in arrays indexed by the ordinals of the items, which must be distinct. The
+ * arrays are kept across calls and only the entries of the items visited are reset, so that
+ * clustering a few items out of many doesn't allocate or clear an entry per item. Instances are
+ * therefore not thread safe.
+ */
+abstract class GreedyClustering<T extends MFClusterItem, I extends GreedyClustering.Item<T>> {
+  /**
+   * Bookkeeping by item ordinal. An item has a distance to its cluster once it is visited, and the
+   * index of its cluster if the cluster has other items, or -1.
+   */
+  private final BitSet mVisited = new BitSet();
+  private double[] mDistanceToCluster = new double[0];
+  private int[] mItemToCluster = new int[0];
+
+  /**
+   * Hands the items within the given bounds to the visitor.
+   */
+  protected abstract void search(double minX, double maxX, double minY, double maxY,
+                                 PointQuadTree.Visitor<? super I> visitor);
+
+  /**
+   * Greedily clusters the candidates.
+   *
+   * @param ordinalCount every searched item has an ordinal below this
+   * @param tileCount    if positive, only items in the same tile of a world of tileCount by
+   *                     tileCount tiles are clustered together
+   * @param tileClusters if not null, receives the clusters by the tile of their first item
+   */
+  Set<MFCluster<T>> cluster(Iterable<? extends I> candidates, int ordinalCount, double halfSpan,
+                            final long tileCount, Map<Long, Set<MFCluster<T>>> tileClusters) {
+    final Set<MFCluster<T>> results = new HashSet<>();
+    // Clusters by index, for itemToCluster.
+    final List<MFStaticCluster<T>> clusters = new ArrayList<>();
+    final List<Long> clusterTiles = new ArrayList<>();
+    // Reused for every candidate so that the search doesn't allocate.
+    final List<I> clusterItems = new ArrayList<>();
+    final long[] candidateTile = new long[1];
+    final PointQuadTree.Visitor<I> collector = new PointQuadTree.Visitor<I>() {
+      @Override
+      public void visit(I item) {
+        if (tileCount <= 0
+          || MFNonHierarchicalDistanceBasedAlgorithm.getTileKey(item.getPoint(), tileCount) == candidateTile[0]) {
+          clusterItems.add(item);
+        }
+      }
+    };
+
+    if (mDistanceToCluster.length < ordinalCount) {
+      final int capacity = Math.max(ordinalCount, mDistanceToCluster.length * 2);
+      mDistanceToCluster = Arrays.copyOf(mDistanceToCluster, capacity);
+      mItemToCluster = Arrays.copyOf(mItemToCluster, capacity);
+    }
+    final BitSet visitedCandidates = mVisited;
+    final double[] distanceToCluster = mDistanceToCluster;
+    final int[] itemToCluster = mItemToCluster;
+    try {
+      for (I candidate : candidates) {
+        if (visitedCandidates.get(candidate.getOrdinal())) {
+          // Candidate is already part of another cluster.
+          continue;
+        }
+
+        final Point point = candidate.getPoint();
+        if (tileCount > 0) {
+          candidateTile[0] = MFNonHierarchicalDistanceBasedAlgorithm.getTileKey(point, tileCount);
+        }
+        clusterItems.clear();
+        search(
+          point.x - halfSpan, point.x + halfSpan,
+          point.y - halfSpan, point.y + halfSpan,
+          collector);
+        if (clusterItems.size() == 1) {
+          // Only the current marker is in range. Just add the single item to the results.
+          results.add(candidate.getCluster());
+          if (tileClusters != null) {
+            tileClusters.get(candidateTile[0]).add(candidate.getCluster());
+          }
+          visitedCandidates.set(candidate.getOrdinal());
+          distanceToCluster[candidate.getOrdinal()] = 0d;
+          itemToCluster[candidate.getOrdinal()] = -1;
+          continue;
+        }
+        final int clusterIndex = clusters.size();
+        MFStaticCluster<T> cluster = new MFStaticCluster<>(candidate.getPosition());
+        clusters.add(cluster);
+        clusterTiles.add(candidateTile[0]);
+
+        for (I clusterItem : clusterItems) {
+          final int ordinal = clusterItem.getOrdinal();
+          double distance = distanceSquared(clusterItem.getPoint(), point);
+          if (visitedCandidates.get(ordinal)) {
+            // Item already belongs to another cluster. Check if it's closer to this cluster.
+            if (distanceToCluster[ordinal] < distance) {
+              continue;
+            }
+            // Move item to the closer cluster.
+            if (itemToCluster[ordinal] >= 0) {
+              clusters.get(itemToCluster[ordinal]).remove(clusterItem.getClusterItem());
+            }
+          }
+          distanceToCluster[ordinal] = distance;
+          cluster.add(clusterItem.getClusterItem());
+          itemToCluster[ordinal] = clusterIndex;
+        }
+        for (I clusterItem : clusterItems) {
+          visitedCandidates.set(clusterItem.getOrdinal());
+        }
+      }
+    } finally {
+      // Entries of unvisited items are never read, so only the visited flags need clearing.
+      visitedCandidates.clear();
+    }
+    // Clusters are only hashed once complete, as their hash code depends on their items.
+    results.addAll(clusters);
+    if (tileClusters != null) {
+      for (int i = 0; i < clusters.size(); i++) {
+        tileClusters.get(clusterTiles.get(i)).add(clusters.get(i));
+      }
+    }
+    return results;
+  }
+
+  static double distanceSquared(Point a, Point b) {
+    return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y);
+  }
+
+  /**
+   * An indexed item, as clustered by {@link GreedyClustering}.
+   */
+  interface Item<T extends MFClusterItem> extends PointQuadTree.Item {
+    /**
+     * @return the dense index of this item among the items being clustered
+     */
+    int getOrdinal();
+
+    T getClusterItem();
+
+    /**
+     * @return the position of a cluster centered on this item
+     */
+    MFLocationCoordinate getPosition();
+
+    /**
+     * @return the cluster of this item alone
+     */
+    MFCluster<T> getCluster();
+  }
+}
@@ -0,0 +1,687 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+import vn.map4d.utils.android.quadtree.PointQuadTree;
+
+/**
+ * A density based clustering algorithm (DBSCAN): dense regions become clusters, and items in sparse
+ * regions stay on their own.
+ * <p/>
+ * The neighbourhood of an item is the square of half the zoom's span around it, as searched by the
+ * other distance based algorithms.<br>
+ * 1. An item is a core item if its neighbourhood holds at least {@link #setMinPoints(int) minPoints}
+ * items, itself included.<br>
+ * 2. Core items in each other's neighbourhood belong to the same cluster.<br>
+ * 3. Other items join the cluster of the nearest core item in their neighbourhood, or stay on their
+ * own if there is none.
+ * <p/>
+ * Clusters are placed at the centroid of their items. The neighbourhood queries of steps 1 and 3
+ * run in parallel when a parallelism is set.
+ */
+public class MFDensityBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlgorithm<T>
+  implements MFLocalAlgorithm<T> {
+  private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
+  private static final int DEFAULT_MIN_POINTS = 4;
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+  /**
+   * Below this number of items, clusters are computed sequentially even when a parallelism is set.
+   */
+  private static final int MIN_PARALLEL_ITEMS = 4096;
+  /**
+   * Number of items a parallel task queries without splitting further.
+   */
+  private static final int TASK_SIZE = 1024;
+
+  /**
+   * Indexed items, keyed by the item they wrap.
+   * Any modifications should be synchronized on mIndex.
+   */
+  private final Map<T, DensityItem<T>> mItems = new LinkedHashMap<>();
+  /**
+   * Any modifications should be synchronized on mIndex.
+   */
+  private final PointQuadTree<DensityItem<T>> mIndex = new PointQuadTree<>(0, 1, 0, 1);
+  private int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
+  private int mMinPoints = DEFAULT_MIN_POINTS;
+  /**
+   * The pool neighbourhoods are queried on, or null to query them on the calling thread.
+   * Any access should be synchronized on mIndex.
+   */
+  private ForkJoinPool mPool;
+
+  /**
+   * Adds an item to the algorithm
+   *
+   * @param item the item to be added
+   * @return true if the algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean addItem(T item) {
+    final DensityItem<T> densityItem = new DensityItem<>(item);
+    synchronized (mIndex) {
+      if (mItems.containsKey(item)) {
+        return false;
+      }
+      mItems.put(item, densityItem);
+      mIndex.add(densityItem);
+    }
+    return true;
+  }
+
+  /**
+   * Adds a collection of items to the algorithm
+   *
+   * @param items the items to be added
+   * @return true if the algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean addItems(Collection<T> items) {
+    final List<DensityItem<T>> added = new ArrayList<>(items.size());
+    synchronized (mIndex) {
+      for (T item : items) {
+        if (!mItems.containsKey(item)) {
+          final DensityItem<T> densityItem = new DensityItem<>(item);
+          mItems.put(item, densityItem);
+          added.add(densityItem);
+        }
+      }
+      mIndex.addAll(added);
+    }
+    return !added.isEmpty();
+  }
+
+  @Override
+  public void clearItems() {
+    synchronized (mIndex) {
+      mItems.clear();
+      mIndex.clear();
+    }
+  }
+
+  /**
+   * Removes an item from the algorithm
+   *
+   * @param item the item to be removed
+   * @return true if this algorithm contained the specified element (or equivalently, if this
+   * algorithm changed as a result of the call).
+   */
+  @Override
+  public boolean removeItem(T item) {
+    synchronized (mIndex) {
+      final DensityItem<T> densityItem = mItems.remove(item);
+      if (densityItem == null) {
+        return false;
+      }
+      mIndex.remove(densityItem);
+    }
+    return true;
+  }
+
+  /**
+   * Removes a collection of items from the algorithm
+   *
+   * @param items the items to be removed
+   * @return true if this algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean removeItems(Collection<T> items) {
+    boolean result = false;
+    synchronized (mIndex) {
+      for (T item : items) {
+        final DensityItem<T> densityItem = mItems.remove(item);
+        if (densityItem != null) {
+          mIndex.remove(densityItem);
+          result = true;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Updates the provided item in the algorithm
+   *
+   * @param item the item to be updated
+   * @return true if the item existed in the algorithm and was updated, or false if the item did
+   * not exist in the algorithm and the algorithm contents remain unchanged.
+   */
+  @Override
+  public boolean updateItem(T item) {
+    final MFLocationCoordinate position = item.getPosition();
+    final Point point = PROJECTION.toPoint(position);
+    synchronized (mIndex) {
+      final DensityItem<T> densityItem = mItems.get(item);
+      if (densityItem == null) {
+        return false;
+      }
+      // The quad tree finds the item by its old point, so only update it once it has moved.
+      final boolean indexed = mIndex.move(densityItem, point.x, point.y);
+      densityItem.update(item, position, point);
+      if (!indexed) {
+        mIndex.add(densityItem);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sets the number of items, itself included, an item's neighbourhood must hold for the item to
+   * start a cluster. Defaults to 4.
+   *
+   * @param minPoints the minimum number of items of a dense neighbourhood
+   */
+  public void setMinPoints(int minPoints) {
+    synchronized (mIndex) {
+      mMinPoints = minPoints;
+    }
+  }
+
+  /**
+   * Sets the number of threads neighbourhoods are queried on. Parallel clustering returns the same
+   * clusters as sequential clustering, and is only used for large numbers of items.
+   *
+   * @param parallelism the number of threads, or 1 to compute clusters on the calling thread
+   */
+  public void setParallelism(int parallelism) {
+    synchronized (mIndex) {
+      if (mPool != null) {
+        mPool.shutdown();
+      }
+      mPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+  }
+
+  @Override
+  public Set<? extends MFCluster<T>> getClusters(double zoom) {
+    final int discreteZoom = (int) zoom;
+    final double halfSpan = mMaxDistance / Math.pow(2, discreteZoom) / 256 / 2;
+    synchronized (mIndex) {
+      return new Clustering(halfSpan).run();
+    }
+  }
+
+  @Override
+  public Collection<T> getItems() {
+    synchronized (mIndex) {
+      return new LinkedHashSet<>(mItems.keySet());
+    }
+  }
+
+  @Override
+  public Point getIndexedPoint(T item) {
+    synchronized (mIndex) {
+      final DensityItem<T> densityItem = mItems.get(item);
+      return densityItem == null ? null : densityItem.mPoint;
+    }
+  }
+
+  /**
+   * Finds the nearest other item in the quad tree. Items outside of the quad tree are never in the
+   * neighbourhood of other items, so only items inside of it have a known distance.
+   */
+  @Override
+  public double getDistanceToNearestItem(T item) {
+    synchronized (mIndex) {
+      final DensityItem<T> densityItem = mItems.get(item);
+      return densityItem == null
+        ? 0 : MFNonHierarchicalDistanceBasedAlgorithm.getDistanceToNearestItem(mIndex, densityItem);
+    }
+  }
+
+  @Override
+  public int getMaxDistanceBetweenClusteredItems() {
+    return mMaxDistance;
+  }
+
+  @Override
+  public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+    mMaxDistance = maxDistance;
+  }
+
+  private static int find(int[] parents, int i) {
+    while (parents[i] != i) {
+      parents[i] = parents[parents[i]];
+      i = parents[i];
+    }
+    return i;
+  }
+
+  /**
+   * One run of the algorithm at a given neighbourhood size. Must be run with mIndex held.
+   */
+  private class Clustering {
+    private final double mHalfSpan;
+    private final DensityItem<T>[] mAll;
+    private final boolean[] mCore;
+    /**
+     * For each item which isn't a core item, the ordinal of the core item whose cluster it joins,
+     * or -1.
+     */
+    private final int[] mBorderOf;
+    /**
+     * Union-find forest of the core items.
+     */
+    private final int[] mParents;
+    /**
+     * The items binned into cells a half span wide, by cell key.
+     */
+    private final Map<Long, Cell> mCells = new HashMap<>();
+    private final Cell[] mCellOf;
+    private final long mCellsPerSide;
+
+    @SuppressWarnings("unchecked")
+    Clustering(double halfSpan) {
+      mHalfSpan = halfSpan;
+      mAll = mItems.values().toArray(new DensityItem[mItems.size()]);
+      mCore = new boolean[mAll.length];
+      mBorderOf = new int[mAll.length];
+      mParents = new int[mAll.length];
+      mCellOf = new Cell[mAll.length];
+      // Cell rows run from 0 to floor(1 / halfSpan), and neighbours are looked up one row further,
+      // which must not wrap into the next column.
+      mCellsPerSide = (long) Math.floor(1 / halfSpan) + 2;
+      for (int i = 0; i < mAll.length; i++) {
+        mAll[i].mOrdinal = i;
+        mParents[i] = i;
+      }
+    }
+
+    Set<MFCluster<T>> run() {
+      final int size = mAll.length;
+      binItems();
+      // Border items look for core items, so all core items must be known first.
+      if (mPool != null && size >= MIN_PARALLEL_ITEMS) {
+        mPool.invoke(new NeighbourTask(false, 0, size));
+        mPool.invoke(new NeighbourTask(true, 0, size));
+      } else {
+        for (int i = 0; i < size; i++) {
+          findCore(i);
+        }
+        for (int i = 0; i < size; i++) {
+          findBorder(i);
+        }
+      }
+      linkCores();
+      return collect();
+    }
+
+    /**
+     * Bins the indexed items into cells a half span wide. The neighbourhood of an item contains
+     * its whole cell, and core items of a cell are all in each other's neighbourhood.
+     */
+    private void binItems() {
+      for (int i = 0; i < mAll.length; i++) {
+        final Point point = mAll[i].mPoint;
+        if (!MFNonHierarchicalDistanceBasedAlgorithm.isIndexed(point)) {
+          continue;
+        }
+        final long x = (long) Math.floor(point.x / mHalfSpan);
+        final long y = (long) Math.floor(point.y / mHalfSpan);
+        final long key = x * mCellsPerSide + y;
+        Cell cell = mCells.get(key);
+        if (cell == null) {
+          cell = new Cell(x, y);
+          mCells.put(key, cell);
+        }
+        cell.add(i);
+        mCellOf[i] = cell;
+      }
+    }
+
+    private Cell getCell(long x, long y) {
+      return mCells.get(x * mCellsPerSide + y);
+    }
+
+    /**
+     * Tells whether an item is a core item, from the size of its cell if that is enough, and
+     * otherwise by counting its neighbourhood.
+     */
+    void findCore(int i) {
+      final Cell cell = mCellOf[i];
+      if (cell == null) {
+        return;
+      }
+      if (cell.mSize >= mMinPoints) {
+        mCore[i] = true;
+        return;
+      }
+      final Point point = mAll[i].mPoint;
+      mCore[i] = mIndex.count(new Bounds(
+        point.x - mHalfSpan, point.x + mHalfSpan,
+        point.y - mHalfSpan, point.y + mHalfSpan)) >= mMinPoints;
+    }
+
+    /**
+     * Finds the nearest core item in the neighbourhood of an item which is not one. The
+     * neighbourhood holds fewer than minPoints items, so the search is short.
+     */
+    void findBorder(final int i) {
+      mBorderOf[i] = -1;
+      if (mCore[i] || mCellOf[i] == null) {
+        return;
+      }
+      final Point point = mAll[i].mPoint;
+      mIndex.search(
+        point.x - mHalfSpan, point.x + mHalfSpan,
+        point.y - mHalfSpan, point.y + mHalfSpan,
+        new PointQuadTree.Visitor<DensityItem<T>>() {
+          private double mDistance = Double.POSITIVE_INFINITY;
+
+          @Override
+          public void visit(DensityItem<T> item) {
+            final int ordinal = item.mOrdinal;
+            if (!mCore[ordinal]) {
+              return;
+            }
+            final double dx = item.mPoint.x - point.x;
+            final double dy = item.mPoint.y - point.y;
+            final double distance = dx * dx + dy * dy;
+            // Break ties by ordinal so that the result doesn't depend on the order of the search.
+            if (distance < mDistance || (distance == mDistance && ordinal < mBorderOf[i])) {
+              mDistance = distance;
+              mBorderOf[i] = ordinal;
+            }
+          }
+        });
+    }
+
+    /**
+     * Joins the core items which are in each other's neighbourhood.
+     * <p/>
+     * Rather than searching the neighbourhood of every core item, which at low zooms holds most
+     * items, core items are joined cell by cell. Core items of a cell are all in each other's
+     * neighbourhood, and can only have neighbours in the 8 surrounding cells. Whether two cells
+     * have neighbouring core items follows from their extremes for cells side by side, and from a
+     * sweep of their core items for diagonal cells.
+     */
+    private void linkCores() {
+      for (Cell cell : mCells.values()) {
+        for (int j = 0; j < cell.mSize; j++) {
+          final int i = cell.mItems[j];
+          if (!mCore[i]) {
+            continue;
+          }
+          if (cell.mCoreSize > 0) {
+            mParents[i] = cell.mCores[0];
+          }
+          cell.addCore(i, mAll[i].mPoint);
+        }
+      }
+      for (Cell cell : mCells.values()) {
+        if (cell.mCoreSize == 0) {
+          continue;
+        }
+        final Cell right = getCell(cell.mX + 1, cell.mY);
+        if (right != null && right.mCoreSize > 0 && right.mMinX - cell.mMaxX <= mHalfSpan) {
+          union(cell, right);
+        }
+        final Cell below = getCell(cell.mX, cell.mY + 1);
+        if (below != null && below.mCoreSize > 0 && below.mMinY - cell.mMaxY <= mHalfSpan) {
+          union(cell, below);
+        }
+        final Cell belowRight = getCell(cell.mX + 1, cell.mY + 1);
+        if (belowRight != null && belowRight.mCoreSize > 0 && isDiagonalNeighbour(cell, belowRight, 1)) {
+          union(cell, belowRight);
+        }
+        final Cell belowLeft = getCell(cell.mX - 1, cell.mY + 1);
+        if (belowLeft != null && belowLeft.mCoreSize > 0 && isDiagonalNeighbour(cell, belowLeft, -1)) {
+          union(cell, belowLeft);
+        }
+      }
+    }
+
+    private void union(Cell a, Cell b) {
+      mParents[find(mParents, a.mCores[0])] = find(mParents, b.mCores[0]);
+    }
+
+    /**
+     * Whether a core item of a cell is in the neighbourhood of a core item of the cell diagonally
+     * below it, to the right if direction is 1 and to the left if it is -1.
+     */
+    private boolean isDiagonalNeighbour(Cell above, Cell below, final int direction) {
+      if (find(mParents, above.mCores[0]) == find(mParents, below.mCores[0])) {
+        return false;
+      }
+      final double gapX = direction > 0 ? below.mMinX - above.mMaxX : above.mMinX - below.mMaxX;
+      if (gapX > mHalfSpan || below.mMinY - above.mMaxY > mHalfSpan) {
+        return false;
+      }
+      // With x measured towards the cell below, items below are neighbours of an item above if
+      // they are at most a half span further in x and in y. Sweep the items below from the
+      // furthest in x, adding the items above close enough in x and keeping their largest y.
+      final Comparator<Integer> byX = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Double.compare(direction * mAll[b].mPoint.x, direction * mAll[a].mPoint.x);
+        }
+      };
+      final Integer[] aboveItems = above.sorted(byX);
+      final Integer[] belowItems = below.sorted(byX);
+      double maxY = Double.NEGATIVE_INFINITY;
+      int next = 0;
+      for (int b : belowItems) {
+        final Point point = mAll[b].mPoint;
+        while (next < aboveItems.length
+          && direction * point.x - direction * mAll[aboveItems[next]].mPoint.x <= mHalfSpan) {
+          maxY = Math.max(maxY, mAll[aboveItems[next]].mPoint.y);
+          next++;
+        }
+        if (point.y - maxY <= mHalfSpan) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Makes a cluster of each group of joined core items and the items joining them, and a cluster
+     * of each remaining item.
+     */
+    private Set<MFCluster<T>> collect() {
+      final int size = mAll.length;
+      final int[] groupOfRoot = new int[size];
+      final int[] groups = new int[size];
+      Arrays.fill(groupOfRoot, -1);
+      int groupCount = 0;
+      for (int i = 0; i < size; i++) {
+        final int core = mCore[i] ? i : mBorderOf[i];
+        final int root = core == -1 ? i : find(mParents, core);
+        if (groupOfRoot[root] == -1) {
+          groupOfRoot[root] = groupCount++;
+        }
+        groups[i] = groupOfRoot[root];
+      }
+      final int[] counts = new int[groupCount];
+      final double[] sumXs = new double[groupCount];
+      final double[] sumYs = new double[groupCount];
+      for (int i = 0; i < size; i++) {
+        final int group = groups[i];
+        counts[group]++;
+        sumXs[group] += mAll[i].mPoint.x;
+        sumYs[group] += mAll[i].mPoint.y;
+      }
+
+      final Set<MFCluster<T>> results = new HashSet<>();
+      final List<MFStaticCluster<T>> clusters = new ArrayList<>(groupCount);
+      for (int group = 0; group < groupCount; group++) {
+        clusters.add(null);
+      }
+      for (int i = 0; i < size; i++) {
+        final int group = groups[i];
+        if (counts[group] == 1) {
+          // The item is on its own; it is its own cluster.
+          results.add(mAll[i].mCluster);
+          continue;
+        }
+        MFStaticCluster<T> cluster = clusters.get(group);
+        if (cluster == null) {
+          cluster = new MFStaticCluster<>(PROJECTION.toLocationCoordinate(
+            new Point(sumXs[group] / counts[group], sumYs[group] / counts[group])));
+          clusters.set(group, cluster);
+        }
+        cluster.add(mAll[i].mClusterItem);
+      }
+      // Clusters are only hashed once complete, as their hash code depends on their items.
+      for (MFStaticCluster<T> cluster : clusters) {
+        if (cluster != null) {
+          results.add(cluster);
+        }
+      }
+      return results;
+    }
+
+    /**
+     * Queries the neighbourhoods of a range of items, splitting it in two until it is small.
+     */
+    private class NeighbourTask extends RecursiveAction {
+      private final boolean mBorders;
+      private final int mFrom;
+      private final int mTo;
+
+      /**
+       * @param borders false to find the core items, true to find the core items other items join
+       */
+      NeighbourTask(boolean borders, int from, int to) {
+        mBorders = borders;
+        mFrom = from;
+        mTo = to;
+      }
+
+      @Override
+      protected void compute() {
+        if (mTo - mFrom <= TASK_SIZE) {
+          for (int i = mFrom; i < mTo; i++) {
+            if (mBorders) {
+              findBorder(i);
+            } else {
+              findCore(i);
+            }
+          }
+          return;
+        }
+        final int mid = (mFrom + mTo) >>> 1;
+        invokeAll(new NeighbourTask(mBorders, mFrom, mid), new NeighbourTask(mBorders, mid, mTo));
+      }
+    }
+  }
+
+  /**
+   * The items of a cell of a {@link Clustering}, and its core items with their extremes.
+   */
+  private static class Cell {
+    private final long mX;
+    private final long mY;
+    private int[] mItems = new int[4];
+    private int mSize;
+    private int[] mCores;
+    private int mCoreSize;
+    private double mMinX = Double.POSITIVE_INFINITY;
+    private double mMaxX = Double.NEGATIVE_INFINITY;
+    private double mMinY = Double.POSITIVE_INFINITY;
+    private double mMaxY = Double.NEGATIVE_INFINITY;
+
+    Cell(long x, long y) {
+      mX = x;
+      mY = y;
+    }
+
+    void add(int item) {
+      if (mSize == mItems.length) {
+        mItems = Arrays.copyOf(mItems, mSize * 2);
+      }
+      mItems[mSize++] = item;
+    }
+
+    void addCore(int item, Point point) {
+      if (mCores == null) {
+        mCores = new int[mSize];
+      }
+      mCores[mCoreSize++] = item;
+      mMinX = Math.min(mMinX, point.x);
+      mMaxX = Math.max(mMaxX, point.x);
+      mMinY = Math.min(mMinY, point.y);
+      mMaxY = Math.max(mMaxY, point.y);
+    }
+
+    /**
+     * Returns the core items, sorted.
+     */
+    Integer[] sorted(Comparator<Integer> comparator) {
+      final Integer[] items = new Integer[mCoreSize];
+      for (int i = 0; i < mCoreSize; i++) {
+        items[i] = mCores[i];
+      }
+      Arrays.sort(items, comparator);
+      return items;
+    }
+  }
+
+  /**
+   * An indexed item. The index moves it in place when its item is updated, so clustering hands
+   * out its immutable cluster when the item is on its own.
+   */
+  private static class DensityItem<T extends MFClusterItem> implements PointQuadTree.Item {
+    private T mClusterItem;
+    private Point mPoint;
+    private MFSingletonCluster<T> mCluster;
+    /**
+     * Index of this item in the current {@link Clustering}.
+     */
+    private int mOrdinal;
+
+    private DensityItem(T item) {
+      final MFLocationCoordinate position = item.getPosition();
+      mClusterItem = item;
+      mPoint = PROJECTION.toPoint(position);
+      mCluster = new MFSingletonCluster<>(item, position);
+    }
+
+    /**
+     * Points this density item at the given (equal) item and its new position. Clusters handed
+     * out before keep the old position.
+     */
+    private void update(T item, MFLocationCoordinate position, Point point) {
+      mClusterItem = item;
+      mPoint = point;
+      mCluster = new MFSingletonCluster<>(item, position);
+    }
+
+    @Override
+    public Point getPoint() {
+      return mPoint;
+    }
+
+    @Override
+    public int hashCode() {
+      return mClusterItem.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof DensityItem<?>)) {
+        return false;
+      }
+
+      return ((DensityItem<?>) other).mClusterItem.equals(mClusterItem);
+    }
+  }
+}
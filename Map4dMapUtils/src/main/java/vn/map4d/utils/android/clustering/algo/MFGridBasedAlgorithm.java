@@ -1,24 +1,59 @@
 package vn.map4d.utils.android.clustering.algo;
 
-import androidx.collection.LongSparseArray;
-
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
+import vn.map4d.types.MFLocationCoordinate;
 import vn.map4d.utils.android.clustering.MFCluster;
 import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Bounds;
 import vn.map4d.utils.android.geometry.Point;
 import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
 
 /**
  * Groups markers into a grid.
+ * <p/>
+ * Items are projected once, when they are added, so that clustering only scales their
+ * coordinates to the grid of the zoom.
+ * <p/>
+ * With {@link #setPyramidMaxZoom(int)}, the number of items and their centroid is also kept for
+ * every cell of every zoom up to a maximum, as items are added and removed. Clustering at those
+ * zooms then only reads the cells, and the items of a cluster are only found when they are asked
+ * for.
  */
 public class MFGridBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlgorithm<T> {
   private static final int DEFAULT_GRID_SIZE = 100;
-  private final Set<T> mItems = Collections.synchronizedSet(new HashSet<T>());
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+  /**
+   * Items with their projected coordinates in a world of width 1.
+   */
+  private final Map<T, GridItem<T>> mItems = Collections.synchronizedMap(new HashMap<T, GridItem<T>>());
+  /**
+   * Items by ordinal, the first mItems.size() of which are set. Ordinals are dense, the last item
+   * takes the ordinal of a removed item. Any access should be synchronized on mItems.
+   */
+  @SuppressWarnings("unchecked")
+  private GridItem<T>[] mOrdinals = new GridItem[16];
+  /**
+   * Working memory of getClusters, reused between calls. Any access should be synchronized on
+   * mItems.
+   */
+  private final CellTable mCells = new CellTable();
+  private int[] mItemCells = new int[0];
+  private double[] mCellXs = new double[0];
+  private double[] mCellYs = new double[0];
   private int mGridSize = DEFAULT_GRID_SIZE;
+  /**
+   * Cells by zoom, from 0 to the maximum zoom of the pyramid, or null if there is no pyramid.
+   * Any access should be synchronized on mItems.
+   */
+  private Level[] mPyramid;
 
   private static long getCoord(long numCells, double x, double y) {
     return (long) (numCells * Math.floor(x) + Math.floor(y));
@@ -32,7 +67,24 @@ public class MFGridBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlg
    */
   @Override
   public boolean addItem(T item) {
-    return mItems.add(item);
+    final GridItem<T> gridItem = new GridItem<>(item, PROJECTION.toPoint(item.getPosition()));
+    synchronized (mItems) {
+      if (mItems.containsKey(item)) {
+        return false;
+      }
+      gridItem.mOrdinal = mItems.size();
+      if (gridItem.mOrdinal == mOrdinals.length) {
+        mOrdinals = Arrays.copyOf(mOrdinals, mOrdinals.length * 2);
+      }
+      mOrdinals[gridItem.mOrdinal] = gridItem;
+      mItems.put(item, gridItem);
+      if (mPyramid != null) {
+        for (Level level : mPyramid) {
+          level.add(gridItem);
+        }
+      }
+    }
+    return true;
   }
 
   /**
@@ -43,12 +95,22 @@ public class MFGridBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlg
    */
   @Override
   public boolean addItems(Collection<T> items) {
-    return mItems.addAll(items);
+    boolean result = false;
+    for (T item : items) {
+      result |= addItem(item);
+    }
+    return result;
   }
 
   @Override
   public void clearItems() {
-    mItems.clear();
+    synchronized (mItems) {
+      mItems.clear();
+      Arrays.fill(mOrdinals, null);
+      if (mPyramid != null) {
+        buildPyramid(mPyramid.length - 1);
+      }
+    }
   }
 
   /**
@@ -60,7 +122,27 @@ public class MFGridBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlg
    */
   @Override
   public boolean removeItem(T item) {
-    return mItems.remove(item);
+    synchronized (mItems) {
+      final GridItem<T> gridItem = mItems.remove(item);
+      if (gridItem == null) {
+        return false;
+      }
+      // Give the last ordinal to the item taking the place of the removed one.
+      final int last = mItems.size();
+      final GridItem<T> moved = mOrdinals[last];
+      if (mPyramid != null) {
+        for (Level level : mPyramid) {
+          level.remove(gridItem);
+          if (moved != gridItem) {
+            level.renumber(moved, gridItem.mOrdinal);
+          }
+        }
+      }
+      mOrdinals[gridItem.mOrdinal] = moved;
+      moved.mOrdinal = gridItem.mOrdinal;
+      mOrdinals[last] = null;
+    }
+    return true;
   }
 
   /**
@@ -71,7 +153,13 @@ public class MFGridBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlg
    */
   @Override
   public boolean removeItems(Collection<T> items) {
-    return mItems.removeAll(items);
+    boolean result = false;
+    synchronized (mItems) {
+      for (T item : items) {
+        result |= removeItem(item);
+      }
+    }
+    return result;
   }
 
   /**
@@ -101,38 +189,506 @@ public class MFGridBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlg
 
   @Override
   public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
-    mGridSize = maxDistance;
+    synchronized (mItems) {
+      mGridSize = maxDistance;
+      if (mPyramid != null) {
+        buildPyramid(mPyramid.length - 1);
+      }
+    }
+  }
+
+  /**
+   * Sets the highest zoom up to which cells are kept as items are added and removed, so that
+   * clusters at those zooms are read rather than computed. Clusters are then placed at the
+   * centroid of their items instead of the center of their cell, and their items are only found
+   * when {@link MFCluster#getItems()} is called.
+   * <p/>
+   * Every item adds a cell to each zoom of the pyramid at worst, besides the links which list the
+   * items of its cells, so the maximum zoom should be no higher than the zoom at which most items
+   * get cells of their own.
+   *
+   * @param maxZoom the highest zoom of the pyramid, or -1 to cluster every zoom by binning items
+   */
+  public void setPyramidMaxZoom(int maxZoom) {
+    synchronized (mItems) {
+      if (maxZoom < 0) {
+        mPyramid = null;
+      } else {
+        buildPyramid(maxZoom);
+      }
+    }
+  }
+
+  private void buildPyramid(int maxZoom) {
+    mPyramid = new Level[maxZoom + 1];
+    for (int zoom = 0; zoom <= maxZoom; zoom++) {
+      mPyramid[zoom] = new Level(getNumCells(zoom));
+    }
+    for (int i = 0; i < mItems.size(); i++) {
+      for (Level level : mPyramid) {
+        level.add(mOrdinals[i]);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of cells along each side of the world at the given zoom.
+   */
+  long getNumCells(double zoom) {
+    return (long) Math.ceil(256 * Math.pow(2, zoom) / mGridSize);
   }
 
   @Override
   public Set<? extends MFCluster<T>> getClusters(double zoom) {
-    long numCells = (long) Math.ceil(256 * Math.pow(2, zoom) / mGridSize);
+    long numCells = getNumCells(zoom);
     MFSphericalMercatorProjection proj = new MFSphericalMercatorProjection(numCells);
 
-    HashSet<MFCluster<T>> clusters = new HashSet<MFCluster<T>>();
-    LongSparseArray<MFStaticCluster<T>> sparseArray = new LongSparseArray<MFStaticCluster<T>>();
+    // Only the cells which intersect the clustering bounds, if any, are clustered.
+    final Bounds bounds = getClusteringBounds(zoom);
+    final CellRange range = bounds == null ? null : new CellRange(bounds, numCells);
 
     synchronized (mItems) {
-      for (T item : mItems) {
-        Point p = proj.toPoint(item.getPosition());
+      final int pyramidZoom = (int) Math.floor(zoom);
+      if (mPyramid != null && pyramidZoom >= 0 && pyramidZoom < mPyramid.length) {
+        return getPyramidClusters(mPyramid[pyramidZoom], bounds);
+      }
+
+      // Bin the items into cells, numbering cells in the order they are found.
+      final CellTable cells = mCells;
+      cells.clear();
+      if (mItemCells.length < mItems.size()) {
+        mItemCells = new int[mItems.size()];
+      }
+      final int[] itemCells = mItemCells;
+      int item = 0;
+      for (GridItem<T> gridItem : mItems.values()) {
+        final Point unit = gridItem.mPoint;
+        final double x = unit.x * numCells;
+        final double y = unit.y * numCells;
+        final double cellX = Math.floor(x);
+        final double cellY = Math.floor(y);
+
+        if (range != null && !range.contains(cellX, cellY)) {
+          itemCells[item++] = -1;
+          continue;
+        }
 
-        long coord = getCoord(numCells, p.x, p.y);
+        long coord = getCoord(numCells, x, y);
+        final int size = cells.size();
+        final int cell = cells.putIfAbsent(coord, size);
+        if (cell == size) {
+          if (size == mCellXs.length) {
+            mCellXs = Arrays.copyOf(mCellXs, Math.max(16, size * 2));
+            mCellYs = Arrays.copyOf(mCellYs, mCellXs.length);
+          }
+          mCellXs[size] = cellX;
+          mCellYs[size] = cellY;
+        }
+        itemCells[item++] = cell;
+      }
 
-        MFStaticCluster<T> cluster = sparseArray.get(coord);
-        if (cluster == null) {
-          cluster = new MFStaticCluster<T>(proj.toLocationCoordinate(new Point(Math.floor(p.x) + .5, Math.floor(p.y) + .5)));
-          sparseArray.put(coord, cluster);
-          clusters.add(cluster);
+      // Materialise the clusters of the cells found.
+      @SuppressWarnings("unchecked")
+      final MFStaticCluster<T>[] clusters = new MFStaticCluster[cells.size()];
+      for (int i = 0; i < clusters.length; i++) {
+        clusters[i] = new MFStaticCluster<T>(proj.toLocationCoordinate(new Point(mCellXs[i] + .5, mCellYs[i] + .5)));
+      }
+      item = 0;
+      for (GridItem<T> gridItem : mItems.values()) {
+        final int cell = itemCells[item++];
+        if (cell >= 0) {
+          clusters[cell].add(gridItem.mItem);
         }
-        cluster.add(item);
       }
+      // Clusters are only hashed once complete, as their hash code depends on their items.
+      return new HashSet<MFCluster<T>>(Arrays.asList(clusters));
     }
+  }
 
+  /**
+   * Reads the clusters of the cells of a pyramid level which intersect the bounds, if any.
+   */
+  private Set<MFCluster<T>> getPyramidClusters(Level level, Bounds bounds) {
+    final Set<MFCluster<T>> clusters = new HashSet<>();
+    final long numCells = level.mNumCells;
+    final CellRange range = bounds == null ? null : new CellRange(bounds, numCells);
+    if (range != null && range.getCellCount() < level.mCells.size()) {
+      // Look the visible cells up rather than going through every cell of the level.
+      for (long x = 0; x < range.mCellsX; x++) {
+        final double cellX = (range.mMinCellX + x) % numCells;
+        for (double cellY = range.mMinCellY; cellY <= range.mMaxCellY; cellY++) {
+          final int cell = level.mCells.get(getCoord(numCells, cellX, cellY));
+          if (cell >= 0 && level.mCounts[cell] > 0) {
+            clusters.add(new PyramidCluster(level, cell));
+          }
+        }
+      }
+    } else {
+      for (int cell = 0; cell < level.mCells.size(); cell++) {
+        if (level.mCounts[cell] > 0
+          && (range == null || range.contains(level.mCellXs[cell], level.mCellYs[cell]))) {
+          clusters.add(new PyramidCluster(level, cell));
+        }
+      }
+    }
     return clusters;
   }
 
+  /**
+   * Returns the bounds of the items to cluster at the given zoom, in projected coordinates of a
+   * world of width 1, or null to cluster every item. Every item of a cell which intersects the
+   * bounds is clustered, so that clusters on the border are complete. The horizontal bounds may
+   * extend past the international date line, below 0 or above 1.
+   *
+   * @param zoom the zoom clusters are computed for
+   */
+  protected Bounds getClusteringBounds(double zoom) {
+    return null;
+  }
+
   @Override
   public Collection<T> getItems() {
-    return mItems;
+    return mItems.keySet();
+  }
+
+  /**
+   * An open addressing hash table from cell coordinates to cell numbers. Cleared tables keep
+   * their capacity, unless it is much larger than what they last held.
+   */
+  private static final class CellTable {
+    private static final int MIN_CAPACITY = 16;
+    private long[] mKeys = new long[MIN_CAPACITY];
+    /**
+     * Values of the slots, or -1 for empty slots.
+     */
+    private int[] mValues = newValues(MIN_CAPACITY);
+    private int mSize;
+
+    private static int[] newValues(int capacity) {
+      final int[] values = new int[capacity];
+      Arrays.fill(values, -1);
+      return values;
+    }
+
+    int size() {
+      return mSize;
+    }
+
+    /**
+     * @return the value the key is mapped to, or -1 if it isn't mapped.
+     */
+    int get(long key) {
+      final int mask = mKeys.length - 1;
+      int slot = hash(key) & mask;
+      while (mValues[slot] >= 0) {
+        if (mKeys[slot] == key) {
+          return mValues[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+
+    /**
+     * Maps the key to the given value, unless it is already mapped.
+     *
+     * @param value a non negative value
+     * @return the value the key is mapped to
+     */
+    int putIfAbsent(long key, int value) {
+      final int mask = mKeys.length - 1;
+      int slot = hash(key) & mask;
+      while (mValues[slot] >= 0) {
+        if (mKeys[slot] == key) {
+          return mValues[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      mKeys[slot] = key;
+      mValues[slot] = value;
+      // Keep the load factor under 1/2.
+      if (++mSize * 2 > mKeys.length) {
+        resize(mKeys.length * 2);
+      }
+      return value;
+    }
+
+    void clear() {
+      final int capacity = mKeys.length;
+      if (capacity > MIN_CAPACITY && mSize * 8 < capacity) {
+        mKeys = new long[Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, mSize)) * 4)];
+        mValues = newValues(mKeys.length);
+      } else if (mSize > 0) {
+        Arrays.fill(mValues, -1);
+      }
+      mSize = 0;
+    }
+
+    private void resize(int capacity) {
+      final long[] keys = mKeys;
+      final int[] values = mValues;
+      mKeys = new long[capacity];
+      mValues = newValues(capacity);
+      final int mask = capacity - 1;
+      for (int i = 0; i < keys.length; i++) {
+        if (values[i] >= 0) {
+          int slot = hash(keys[i]) & mask;
+          while (mValues[slot] >= 0) {
+            slot = (slot + 1) & mask;
+          }
+          mKeys[slot] = keys[i];
+          mValues[slot] = values[i];
+        }
+      }
+    }
+
+    private static int hash(long key) {
+      final long h = key * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+    }
+  }
+
+  /**
+   * The cells of a grid which intersect some bounds.
+   */
+  private static final class CellRange {
+    private final long mNumCells;
+    private final long mMinCellX;
+    private final long mCellsX;
+    private final double mMinCellY;
+    private final double mMaxCellY;
+
+    CellRange(Bounds bounds, long numCells) {
+      mNumCells = numCells;
+      final long minCellX = (long) Math.floor(bounds.minX * numCells);
+      mCellsX = Math.min(numCells, (long) Math.floor(bounds.maxX * numCells) - minCellX + 1);
+      mMinCellX = ((minCellX % numCells) + numCells) % numCells;
+      mMinCellY = Math.floor(bounds.minY * numCells);
+      mMaxCellY = Math.floor(bounds.maxY * numCells);
+    }
+
+    boolean contains(double cellX, double cellY) {
+      // Cells wrap around the international date line.
+      final long offsetX = (long) cellX - mMinCellX;
+      return mMinCellY <= cellY && cellY <= mMaxCellY
+        && ((offsetX % mNumCells) + mNumCells) % mNumCells < mCellsX;
+    }
+
+    double getCellCount() {
+      return mCellsX * (mMaxCellY - mMinCellY + 1);
+    }
+  }
+
+  /**
+   * An item with its projected coordinates and its ordinal.
+   */
+  private static final class GridItem<T> {
+    private final T mItem;
+    private final Point mPoint;
+    private int mOrdinal;
+
+    GridItem(T item, Point point) {
+      mItem = item;
+      mPoint = point;
+    }
+  }
+
+  /**
+   * The number of items and the sum of their coordinates in each cell of a zoom, along with a
+   * doubly linked list of the ordinals of the items of each cell. Cells are kept once emptied.
+   */
+  private static final class Level {
+    private final long mNumCells;
+    private final CellTable mCells = new CellTable();
+    private int[] mCounts = new int[0];
+    private double[] mSumXs = new double[0];
+    private double[] mSumYs = new double[0];
+    private double[] mCellXs = new double[0];
+    private double[] mCellYs = new double[0];
+    /**
+     * First ordinal of each cell, or -1 if the cell is empty.
+     */
+    private int[] mHeads = new int[0];
+    /**
+     * Next and previous ordinals in the cell of each ordinal, or -1 at either end of the list.
+     */
+    private int[] mNext = new int[0];
+    private int[] mPrevious = new int[0];
+
+    Level(long numCells) {
+      mNumCells = numCells;
+    }
+
+    void add(GridItem<?> item) {
+      final int cell = update(item.mPoint, 1);
+      final int ordinal = item.mOrdinal;
+      if (ordinal >= mNext.length) {
+        final int capacity = Math.max(16, Math.max(ordinal + 1, mNext.length * 2));
+        mNext = Arrays.copyOf(mNext, capacity);
+        mPrevious = Arrays.copyOf(mPrevious, capacity);
+      }
+      final int head = mHeads[cell];
+      mNext[ordinal] = head;
+      mPrevious[ordinal] = -1;
+      if (head >= 0) {
+        mPrevious[head] = ordinal;
+      }
+      mHeads[cell] = ordinal;
+    }
+
+    void remove(GridItem<?> item) {
+      final int cell = update(item.mPoint, -1);
+      final int ordinal = item.mOrdinal;
+      link(cell, mPrevious[ordinal], mNext[ordinal]);
+    }
+
+    /**
+     * Moves an item of this level to another ordinal, which must not be in use.
+     */
+    void renumber(GridItem<?> item, int ordinal) {
+      final int cell = mCells.get(getCoord(mNumCells, item.mPoint.x * mNumCells, item.mPoint.y * mNumCells));
+      final int previous = mPrevious[item.mOrdinal];
+      final int next = mNext[item.mOrdinal];
+      mPrevious[ordinal] = previous;
+      mNext[ordinal] = next;
+      link(cell, previous, ordinal);
+      link(cell, ordinal, next);
+    }
+
+    /**
+     * Makes next follow previous in the list of the cell, either of them being -1 at the ends.
+     */
+    private void link(int cell, int previous, int next) {
+      if (previous >= 0) {
+        mNext[previous] = next;
+      } else {
+        mHeads[cell] = next;
+      }
+      if (next >= 0) {
+        mPrevious[next] = previous;
+      }
+    }
+
+    /**
+     * Adds an item to the count and sums of its cell, or removes it if count is -1.
+     *
+     * @return the cell of the item
+     */
+    private int update(Point point, int count) {
+      final double x = point.x * mNumCells;
+      final double y = point.y * mNumCells;
+      final int size = mCells.size();
+      final int cell = mCells.putIfAbsent(getCoord(mNumCells, x, y), size);
+      if (cell == size && size == mCounts.length) {
+        final int capacity = Math.max(16, size * 2);
+        mCounts = Arrays.copyOf(mCounts, capacity);
+        mSumXs = Arrays.copyOf(mSumXs, capacity);
+        mSumYs = Arrays.copyOf(mSumYs, capacity);
+        mCellXs = Arrays.copyOf(mCellXs, capacity);
+        mCellYs = Arrays.copyOf(mCellYs, capacity);
+        mHeads = Arrays.copyOf(mHeads, capacity);
+      }
+      if (cell == size) {
+        mCellXs[cell] = Math.floor(x);
+        mCellYs[cell] = Math.floor(y);
+        mHeads[cell] = -1;
+      }
+      mCounts[cell] += count;
+      if (mCounts[cell] == 0) {
+        // Drop rounding errors along with the last item.
+        mSumXs[cell] = 0;
+        mSumYs[cell] = 0;
+      } else {
+        mSumXs[cell] += point.x * count;
+        mSumYs[cell] += point.y * count;
+      }
+      return cell;
+    }
+  }
+
+  /**
+   * A cluster read from a cell of the pyramid, which finds its items on first use.
+   */
+  private class PyramidCluster implements MFCluster<T> {
+    private final Level mLevel;
+    private final int mCell;
+    private final long mNumCells;
+    private final double mCellX;
+    private final double mCellY;
+    private final int mSize;
+    private final MFLocationCoordinate mPosition;
+    private Collection<T> mClusterItems;
+
+    PyramidCluster(Level level, int cell) {
+      mLevel = level;
+      mCell = cell;
+      mNumCells = level.mNumCells;
+      mCellX = level.mCellXs[cell];
+      mCellY = level.mCellYs[cell];
+      mSize = level.mCounts[cell];
+      mPosition = PROJECTION.toLocationCoordinate(
+        new Point(level.mSumXs[cell] / mSize, level.mSumYs[cell] / mSize));
+    }
+
+    @Override
+    public MFLocationCoordinate getPosition() {
+      return mPosition;
+    }
+
+    /**
+     * Returns the items currently in the cell of this cluster, which may differ from its size if
+     * items changed since it was read.
+     */
+    @Override
+    public Collection<T> getItems() {
+      synchronized (mItems) {
+        if (mClusterItems == null) {
+          final Collection<T> items = new ArrayList<>(mSize);
+          if (mPyramid != null && Arrays.asList(mPyramid).contains(mLevel)) {
+            for (int ordinal = mLevel.mHeads[mCell]; ordinal >= 0; ordinal = mLevel.mNext[ordinal]) {
+              items.add(mOrdinals[ordinal].mItem);
+            }
+          } else {
+            // The pyramid was rebuilt since this cluster was read.
+            for (GridItem<T> gridItem : mItems.values()) {
+              final Point point = gridItem.mPoint;
+              if (Math.floor(point.x * mNumCells) == mCellX && Math.floor(point.y * mNumCells) == mCellY) {
+                items.add(gridItem.mItem);
+              }
+            }
+          }
+          mClusterItems = items;
+        }
+        return mClusterItems;
+      }
+    }
+
+    @Override
+    public int getSize() {
+      return mSize;
+    }
+
+    @Override
+    public String toString() {
+      return "PyramidCluster{" +
+        "mPosition=" + mPosition +
+        ", mSize=" + mSize +
+        '}';
+    }
+
+    @Override
+    public int hashCode() {
+      return mPosition.hashCode() * 31 + mSize;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof MFGridBasedAlgorithm<?>.PyramidCluster)) {
+        return false;
+      }
+      final MFGridBasedAlgorithm<?>.PyramidCluster cluster = (MFGridBasedAlgorithm<?>.PyramidCluster) other;
+      return cluster.mNumCells == mNumCells && cluster.mCellX == mCellX && cluster.mCellY == mCellY
+        && cluster.mSize == mSize && cluster.mPosition.equals(mPosition);
+    }
   }
 }
@@ -0,0 +1,53 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import vn.map4d.map.camera.MFCameraPosition;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Bounds;
+
+/**
+ * This algorithm works the same way as {@link MFGridBasedAlgorithm} but only clusters the cells
+ * which intersect the visible area, padded by a cell on each side so that clusters don't appear at
+ * the edges of the screen as it moves. It requires to be reclustered on camera movement because
+ * clustering is done only for visible area.
+ *
+ * @param <T>
+ */
+public class MFGridViewBasedAlgorithm<T extends MFClusterItem>
+  extends MFGridBasedAlgorithm<T> implements MFScreenBasedAlgorithm<T> {
+
+  private final Viewport mViewport;
+
+  /**
+   * @param screenWidth  map width in dp
+   * @param screenHeight map height in dp
+   */
+  public MFGridViewBasedAlgorithm(int screenWidth, int screenHeight) {
+    mViewport = new Viewport(screenWidth, screenHeight);
+  }
+
+  @Override
+  public void onCameraChange(MFCameraPosition cameraPosition) {
+    mViewport.setCenter(cameraPosition.getTarget());
+  }
+
+  @Override
+  public boolean shouldReclusterOnMapMovement() {
+    return true;
+  }
+
+  /**
+   * Update view width and height in case map size was changed.
+   * You need to recluster all the clusters, to update view state after view size changes.
+   *
+   * @param width  map width in dp
+   * @param height map height in dp
+   */
+  public void updateViewSize(int width, int height) {
+    mViewport.setSize(width, height);
+  }
+
+  @Override
+  protected Bounds getClusteringBounds(double zoom) {
+    return mViewport.getVisibleBounds(zoom, 1.0 / getNumCells(zoom));
+  }
+}
@@ -0,0 +1,495 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+import vn.map4d.utils.android.quadtree.StaticKdIndex;
+
+/**
+ * A clustering algorithm which precomputes one level of clusters per integer zoom, so that
+ * resulting clusters are hierarchical: every cluster at a zoom is made of whole clusters of the
+ * next zoom.
+ * <p/>
+ * High level algorithm:<br>
+ * 1. Start from the items themselves, as the level above the maximum zoom.<br>
+ * 2. For each zoom from the maximum down to 0, iterate over the clusters of the previous level in
+ * order. Merge every cluster not yet merged that is within the zoom's span into a new cluster.<br>
+ * 3. Index each level so that clusters can be looked up by position.
+ * <p/>
+ * Clusters are placed at the weighted centroid of the clusters they are made of. The hierarchy is
+ * built the first time clusters are requested after the items changed, after which
+ * {@link #getClusters(double)} is a lookup.
+ */
+public class MFHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlgorithm<T> {
+  private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
+  private static final int DEFAULT_MAX_ZOOM = 20;
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+
+  /**
+   * Any access to mHierarchy should be synchronized on mItems.
+   */
+  private final Set<T> mItems = Collections.synchronizedSet(new LinkedHashSet<T>());
+  private final int mMaxZoom;
+  private int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
+  /**
+   * The clusters of the current items, or null if they need to be computed again.
+   */
+  private Hierarchy<T> mHierarchy;
+
+  public MFHierarchicalDistanceBasedAlgorithm() {
+    this(DEFAULT_MAX_ZOOM);
+  }
+
+  /**
+   * @param maxZoom the highest zoom at which items are clustered. Above it, every item is its own
+   *                cluster.
+   */
+  public MFHierarchicalDistanceBasedAlgorithm(int maxZoom) {
+    mMaxZoom = maxZoom;
+  }
+
+  /**
+   * Adds an item to the algorithm
+   *
+   * @param item the item to be added
+   * @return true if the algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean addItem(T item) {
+    synchronized (mItems) {
+      return invalidateIf(mItems.add(item));
+    }
+  }
+
+  /**
+   * Adds a collection of items to the algorithm
+   *
+   * @param items the items to be added
+   * @return true if the algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean addItems(Collection<T> items) {
+    synchronized (mItems) {
+      return invalidateIf(mItems.addAll(items));
+    }
+  }
+
+  @Override
+  public void clearItems() {
+    synchronized (mItems) {
+      mItems.clear();
+      mHierarchy = null;
+    }
+  }
+
+  /**
+   * Removes an item from the algorithm
+   *
+   * @param item the item to be removed
+   * @return true if this algorithm contained the specified element (or equivalently, if this
+   * algorithm changed as a result of the call).
+   */
+  @Override
+  public boolean removeItem(T item) {
+    synchronized (mItems) {
+      return invalidateIf(mItems.remove(item));
+    }
+  }
+
+  /**
+   * Removes a collection of items from the algorithm
+   *
+   * @param items the items to be removed
+   * @return true if this algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean removeItems(Collection<T> items) {
+    synchronized (mItems) {
+      return invalidateIf(mItems.removeAll(items));
+    }
+  }
+
+  /**
+   * Updates the provided item in the algorithm
+   *
+   * @param item the item to be updated
+   * @return true if the item existed in the algorithm and was updated, or false if the item did
+   * not exist in the algorithm and the algorithm contents remain unchanged.
+   */
+  @Override
+  public boolean updateItem(T item) {
+    boolean result;
+    synchronized (mItems) {
+      result = removeItem(item);
+      if (result) {
+        // Only add the item if it was removed (to help prevent accidental duplicates on map)
+        result = addItem(item);
+      }
+    }
+    return result;
+  }
+
+  private boolean invalidateIf(boolean changed) {
+    if (changed) {
+      mHierarchy = null;
+    }
+    return changed;
+  }
+
+  @Override
+  public Set<? extends MFCluster<T>> getClusters(double zoom) {
+    return getHierarchy().getLevel(zoom).getClusters();
+  }
+
+  /**
+   * Returns the clusters at the given zoom whose position is inside the given geographic bounds.
+   *
+   * @param zoom      the zoom to cluster at
+   * @param southWest the south west corner of the bounds
+   * @param northEast the north east corner of the bounds
+   */
+  public Set<? extends MFCluster<T>> getClusters(double zoom, MFLocationCoordinate southWest,
+                                                 MFLocationCoordinate northEast) {
+    final Level<T> level = getHierarchy().getLevel(zoom);
+    final Point sw = PROJECTION.toPoint(southWest);
+    final Point ne = PROJECTION.toPoint(northEast);
+    final Set<MFCluster<T>> results = new HashSet<>();
+    // Projected y grows southwards.
+    if (sw.x <= ne.x) {
+      level.search(sw.x, ne.x, ne.y, sw.y, results);
+    } else {
+      // The bounds cross the international date line.
+      level.search(sw.x, 1, ne.y, sw.y, results);
+      level.search(0, ne.x, ne.y, sw.y, results);
+    }
+    return results;
+  }
+
+  private Hierarchy<T> getHierarchy() {
+    synchronized (mItems) {
+      if (mHierarchy == null) {
+        mHierarchy = new Hierarchy<>(new ArrayList<>(mItems), mMaxZoom, mMaxDistance);
+      }
+      return mHierarchy;
+    }
+  }
+
+  @Override
+  public Collection<T> getItems() {
+    synchronized (mItems) {
+      return new LinkedHashSet<>(mItems);
+    }
+  }
+
+  @Override
+  public int getMaxDistanceBetweenClusteredItems() {
+    return mMaxDistance;
+  }
+
+  @Override
+  public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+    synchronized (mItems) {
+      mMaxDistance = maxDistance;
+      mHierarchy = null;
+    }
+  }
+
+  /**
+   * The clusters of every zoom, for a fixed set of items.
+   */
+  private static final class Hierarchy<T extends MFClusterItem> {
+    /**
+     * Levels by zoom; the last one holds the items themselves. Consecutive zooms share their level
+     * when nothing merges between them.
+     */
+    private final List<Level<T>> mLevels;
+
+    Hierarchy(List<T> items, int maxZoom, int maxDistance) {
+      final int size = items.size();
+      final double[] xs = new double[size];
+      final double[] ys = new double[size];
+      final int[] counts = new int[size];
+      for (int i = 0; i < size; i++) {
+        final Point point = PROJECTION.toPoint(items.get(i).getPosition());
+        xs[i] = point.x;
+        ys[i] = point.y;
+        counts[i] = 1;
+      }
+
+      // Build the levels bottom-up, remembering which cluster each cluster was merged into.
+      final Level<T>[] levels = newLevelArray(maxZoom + 2);
+      final int[][] parents = new int[maxZoom + 2][];
+      levels[maxZoom + 1] = new Level<>(xs, ys, counts, size);
+      for (int zoom = maxZoom; zoom >= 0; zoom--) {
+        final Level<T> from = levels[zoom + 1];
+        final double halfSpan = maxDistance / Math.pow(2, zoom) / 256 / 2;
+        final int[] parent = new int[from.mSize];
+        final Level<T> level = from.merge(halfSpan, parent);
+        levels[zoom] = level;
+        parents[zoom + 1] = level == from ? null : parent;
+      }
+
+      // Lay the items out so that every cluster of every level covers a contiguous range.
+      int offset = 0;
+      final Level<T> top = levels[0];
+      for (int i = 0; i < top.mSize; i++) {
+        top.mStarts[i] = offset;
+        offset += top.mCounts[i];
+      }
+      for (int zoom = 0; zoom <= maxZoom; zoom++) {
+        final Level<T> level = levels[zoom];
+        final Level<T> child = levels[zoom + 1];
+        if (child == level) {
+          continue;
+        }
+        final int[] next = level.mStarts.clone();
+        final int[] parent = parents[zoom + 1];
+        for (int i = 0; i < child.mSize; i++) {
+          child.mStarts[i] = next[parent[i]];
+          next[parent[i]] += child.mCounts[i];
+        }
+      }
+      final Object[] ordered = new Object[size];
+      final Level<T> leaves = levels[maxZoom + 1];
+      for (int i = 0; i < size; i++) {
+        ordered[leaves.mStarts[i]] = items.get(i);
+      }
+
+      final List<Level<T>> list = new ArrayList<>(levels.length);
+      for (Level<T> level : levels) {
+        level.mItems = ordered;
+        list.add(level);
+      }
+      mLevels = list;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends MFClusterItem> Level<T>[] newLevelArray(int size) {
+      return new Level[size];
+    }
+
+    Level<T> getLevel(double zoom) {
+      final int index = (int) Math.max(0, Math.min(mLevels.size() - 1, Math.floor(zoom)));
+      return mLevels.get(index);
+    }
+  }
+
+  /**
+   * The clusters of one zoom, as parallel arrays.
+   */
+  private static final class Level<T extends MFClusterItem> {
+    private final double[] mXs;
+    private final double[] mYs;
+    private final int[] mCounts;
+    /**
+     * Index of the first item of each cluster in {@link #mItems}.
+     */
+    private final int[] mStarts;
+    private final int mSize;
+    private final StaticKdIndex mIndex;
+    /**
+     * All items, ordered so that the items of every cluster are contiguous.
+     */
+    private Object[] mItems;
+    /**
+     * Cluster objects, created on first use.
+     */
+    private MFCluster<T>[] mClusters;
+    private Set<MFCluster<T>> mClusterSet;
+
+    Level(double[] xs, double[] ys, int[] counts, int size) {
+      mXs = xs;
+      mYs = ys;
+      mCounts = counts;
+      mStarts = new int[size];
+      mSize = size;
+      mIndex = new StaticKdIndex(xs, ys, size);
+    }
+
+    /**
+     * Greedily merges the clusters of this level which are within halfSpan of each other.
+     *
+     * @param parent receives the index, in the returned level, of the cluster each cluster of this
+     *               level was merged into
+     * @return the merged level, or this level if no clusters were merged.
+     */
+    Level<T> merge(double halfSpan, final int[] parent) {
+      final double[] xs = new double[mSize];
+      final double[] ys = new double[mSize];
+      final int[] counts = new int[mSize];
+      final Merger merger = new Merger(parent);
+      int size = 0;
+      Arrays.fill(parent, -1);
+      for (int i = 0; i < mSize; i++) {
+        if (parent[i] != -1) {
+          continue;
+        }
+        merger.reset(size);
+        final double x = mXs[i];
+        final double y = mYs[i];
+        mIndex.range(x - halfSpan, x + halfSpan, y - halfSpan, y + halfSpan, merger);
+        xs[size] = merger.mSumX / merger.mCount;
+        ys[size] = merger.mSumY / merger.mCount;
+        counts[size] = merger.mCount;
+        size++;
+      }
+      if (size == mSize) {
+        return this;
+      }
+      return new Level<>(xs, ys, counts, size);
+    }
+
+    Set<MFCluster<T>> getClusters() {
+      synchronized (this) {
+        if (mClusterSet == null) {
+          final Set<MFCluster<T>> clusters = new HashSet<>(mSize * 2);
+          for (int i = 0; i < mSize; i++) {
+            clusters.add(getCluster(i));
+          }
+          mClusterSet = Collections.unmodifiableSet(clusters);
+        }
+        return mClusterSet;
+      }
+    }
+
+    void search(double minX, double maxX, double minY, double maxY, final Set<MFCluster<T>> results) {
+      mIndex.range(minX, maxX, minY, maxY, new StaticKdIndex.Visitor() {
+        @Override
+        public void visit(int id) {
+          results.add(getCluster(id));
+        }
+      });
+    }
+
+    @SuppressWarnings("unchecked")
+    private MFCluster<T> getCluster(int index) {
+      synchronized (this) {
+        if (mClusters == null) {
+          mClusters = new MFCluster[mSize];
+        }
+        if (mClusters[index] == null) {
+          final MFLocationCoordinate position = mCounts[index] == 1
+            ? ((T) mItems[mStarts[index]]).getPosition()
+            : PROJECTION.toLocationCoordinate(new Point(mXs[index], mYs[index]));
+          mClusters[index] = new HierarchicalCluster<>(position, mItems, mStarts[index], mCounts[index]);
+        }
+        return mClusters[index];
+      }
+    }
+
+    /**
+     * Collects the clusters found around a cluster into a new one.
+     */
+    private final class Merger implements StaticKdIndex.Visitor {
+      private final int[] mParent;
+      private int mTarget;
+      private int mCount;
+      private double mSumX;
+      private double mSumY;
+
+      Merger(int[] parent) {
+        mParent = parent;
+      }
+
+      void reset(int target) {
+        mTarget = target;
+        mCount = 0;
+        mSumX = 0;
+        mSumY = 0;
+      }
+
+      @Override
+      public void visit(int id) {
+        if (mParent[id] != -1) {
+          return;
+        }
+        mParent[id] = mTarget;
+        final int count = mCounts[id];
+        mCount += count;
+        mSumX += mXs[id] * count;
+        mSumY += mYs[id] * count;
+      }
+    }
+  }
+
+  /**
+   * A cluster whose items are a range of the hierarchy's ordered items.
+   */
+  private static final class HierarchicalCluster<T extends MFClusterItem> implements MFCluster<T> {
+    private final MFLocationCoordinate mPosition;
+    private final Object[] mItems;
+    private final int mStart;
+    private final int mSize;
+
+    HierarchicalCluster(MFLocationCoordinate position, Object[] items, int start, int size) {
+      mPosition = position;
+      mItems = items;
+      mStart = start;
+      mSize = size;
+    }
+
+    @Override
+    public MFLocationCoordinate getPosition() {
+      return mPosition;
+    }
+
+    @Override
+    public Collection<T> getItems() {
+      return new AbstractList<T>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+          if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException();
+          }
+          return (T) mItems[mStart + index];
+        }
+
+        @Override
+        public int size() {
+          return mSize;
+        }
+      };
+    }
+
+    @Override
+    public int getSize() {
+      return mSize;
+    }
+
+    @Override
+    public String toString() {
+      return "HierarchicalCluster{" +
+        "mPosition=" + mPosition +
+        ", mSize=" + mSize +
+        '}';
+    }
+
+    @Override
+    public int hashCode() {
+      return mPosition.hashCode() * 31 + mStart * 17 + mSize;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof HierarchicalCluster<?>)) {
+        return false;
+      }
+      final HierarchicalCluster<?> cluster = (HierarchicalCluster<?>) other;
+      return cluster.mItems == mItems && cluster.mStart == mStart && cluster.mSize == mSize
+        && cluster.mPosition.equals(mPosition);
+    }
+  }
+}
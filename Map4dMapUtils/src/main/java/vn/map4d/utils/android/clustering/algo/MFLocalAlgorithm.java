@@ -0,0 +1,32 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Point;
+
+/**
+ * An algorithm whose clusters only depend on the items within the zoom's span of each other: an
+ * item with no other item within the span, along x and y, is a cluster of its own at its position,
+ * and adding or removing it leaves the other clusters as they are.
+ * <p/>
+ * {@link MFPreCachingAlgorithmDecorator} relies on this to patch such changes into its cached
+ * clusters rather than evicting them.
+ */
+public interface MFLocalAlgorithm<T extends MFClusterItem> extends MFAlgorithm<T> {
+
+  /**
+   * Returns the projected point an item is clustered at, in a world of width 1, which may differ
+   * from its current position if it moved since it was last updated.
+   *
+   * @return the point, or null if the item is not in the algorithm
+   */
+  Point getIndexedPoint(T item);
+
+  /**
+   * Returns a lower bound of the distance from an item to the nearest other item, as the larger of
+   * their distances along x and y in a world of width 1.
+   *
+   * @return the distance, 0 if the item is not in the algorithm or the distance is unknown, or
+   * positive infinity if there is no other item
+   */
+  double getDistanceToNearestItem(T item);
+}
@@ -1,12 +1,17 @@
 package vn.map4d.utils.android.clustering.algo;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import vn.map4d.types.MFLocationCoordinate;
 import vn.map4d.utils.android.clustering.MFCluster;
@@ -14,7 +19,9 @@ import vn.map4d.utils.android.clustering.MFClusterItem;
 import vn.map4d.utils.android.geometry.Bounds;
 import vn.map4d.utils.android.geometry.Point;
 import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+import vn.map4d.utils.android.quadtree.KdTree;
 import vn.map4d.utils.android.quadtree.PointQuadTree;
+import vn.map4d.utils.android.quadtree.SpatialIndex;
 
 /**
  * A simple clustering algorithm with O(nlog n) performance. Resulting clusters are not
@@ -29,19 +36,62 @@ import vn.map4d.utils.android.quadtree.PointQuadTree;
  * <p/>
  * Clusters have the center of the first element (not the centroid of the items within it).
  */
-public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlgorithm<T> {
+public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlgorithm<T>
+  implements MFLocalAlgorithm<T> {
   private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
   private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
   /**
-   * Any modifications should be synchronized on mQuadTree.
+   * Below this number of items, clusters are computed sequentially even when a parallelism is set.
    */
-  private final Collection<QuadItem<T>> mItems = new LinkedHashSet<>();
+  private static final int MIN_PARALLEL_ITEMS = 4096;
+  /**
+   * Indexed items, keyed by the item they wrap.
+   * Any modifications should be synchronized on mIndex.
+   */
+  private final Map<T, QuadItem<T>> mItems = new LinkedHashMap<>();
+  /**
+   * Indexed items by ordinal, so that ordinals stay dense as items are removed.
+   * Any modifications should be synchronized on mIndex.
+   */
+  private final List<QuadItem<T>> mOrdinals = new ArrayList<>();
 
   /**
-   * Any modifications should be synchronized on mQuadTree.
+   * Any modifications should be synchronized on mIndex.
    */
-  private final PointQuadTree<QuadItem<T>> mQuadTree = new PointQuadTree<>(0, 1, 0, 1);
+  private final SpatialIndex<QuadItem<T>> mIndex;
   private int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
+  /**
+   * The pool clusters are computed on, or null to compute them on the calling thread.
+   * Any access should be synchronized on mIndex.
+   */
+  private ForkJoinPool mPool;
+  /**
+   * Clusters the items of mIndex. Any access should be synchronized on mIndex.
+   */
+  private final GreedyClustering<T, QuadItem<T>> mClustering = new GreedyClustering<T, QuadItem<T>>() {
+    @Override
+    protected void search(double minX, double maxX, double minY, double maxY,
+                          PointQuadTree.Visitor<? super QuadItem<T>> visitor) {
+      mIndex.search(minX, maxX, minY, maxY, visitor);
+    }
+  };
+
+  /**
+   * Creates an algorithm which indexes its items with a {@link PointQuadTree}.
+   */
+  public MFNonHierarchicalDistanceBasedAlgorithm() {
+    this(PointQuadTree.FACTORY);
+  }
+
+  /**
+   * Creates an algorithm which indexes its items with the given kind of spatial index, such as
+   * {@link PointQuadTree#FACTORY} or {@link KdTree#FACTORY}.
+   *
+   * @param indexFactory creates the index used by this algorithm
+   */
+  public MFNonHierarchicalDistanceBasedAlgorithm(SpatialIndex.Factory indexFactory) {
+    mIndex = indexFactory.create(new Bounds(0, 1, 0, 1));
+  }
 
   /**
    * Adds an item to the algorithm
@@ -53,10 +103,10 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
   public boolean addItem(T item) {
     boolean result;
     final QuadItem<T> quadItem = new QuadItem<>(item);
-    synchronized (mQuadTree) {
-      result = mItems.add(quadItem);
+    synchronized (mIndex) {
+      result = putIfAbsent(quadItem);
       if (result) {
-        mQuadTree.add(quadItem);
+        mIndex.add(quadItem);
       }
     }
     return result;
@@ -70,21 +120,28 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
    */
   @Override
   public boolean addItems(Collection<T> items) {
-    boolean result = false;
+    final List<QuadItem<T>> quadItems = new ArrayList<>(items.size());
     for (T item : items) {
-      boolean individualResult = addItem(item);
-      if (individualResult) {
-        result = true;
+      quadItems.add(new QuadItem<>(item));
+    }
+    final List<QuadItem<T>> added = new ArrayList<>(quadItems.size());
+    synchronized (mIndex) {
+      for (QuadItem<T> quadItem : quadItems) {
+        if (putIfAbsent(quadItem)) {
+          added.add(quadItem);
+        }
       }
+      mIndex.addAll(added);
     }
-    return result;
+    return !added.isEmpty();
   }
 
   @Override
   public void clearItems() {
-    synchronized (mQuadTree) {
+    synchronized (mIndex) {
       mItems.clear();
-      mQuadTree.clear();
+      mOrdinals.clear();
+      mIndex.clear();
     }
   }
 
@@ -97,17 +154,15 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
    */
   @Override
   public boolean removeItem(T item) {
-    boolean result;
-    // QuadItem delegates hashcode() and equals() to its item so,
-    //   removing any QuadItem to that item will remove the item
-    final QuadItem<T> quadItem = new QuadItem<>(item);
-    synchronized (mQuadTree) {
-      result = mItems.remove(quadItem);
-      if (result) {
-        mQuadTree.remove(quadItem);
+    synchronized (mIndex) {
+      final QuadItem<T> quadItem = mItems.remove(item);
+      if (quadItem == null) {
+        return false;
       }
+      releaseOrdinal(quadItem);
+      mIndex.remove(quadItem);
     }
-    return result;
+    return true;
   }
 
   /**
@@ -119,14 +174,12 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
   @Override
   public boolean removeItems(Collection<T> items) {
     boolean result = false;
-    synchronized (mQuadTree) {
+    synchronized (mIndex) {
       for (T item : items) {
-        // QuadItem delegates hashcode() and equals() to its item so,
-        //   removing any QuadItem to that item will remove the item
-        final QuadItem<T> quadItem = new QuadItem<>(item);
-        boolean individualResult = mItems.remove(quadItem);
-        if (individualResult) {
-          mQuadTree.remove(quadItem);
+        final QuadItem<T> quadItem = mItems.remove(item);
+        if (quadItem != null) {
+          releaseOrdinal(quadItem);
+          mIndex.remove(quadItem);
           result = true;
         }
       }
@@ -134,6 +187,56 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
     return result;
   }
 
+  @Override
+  public Point getIndexedPoint(T item) {
+    synchronized (mIndex) {
+      final QuadItem<T> quadItem = mItems.get(item);
+      return quadItem == null ? null : quadItem.getPoint();
+    }
+  }
+
+  /**
+   * Finds the nearest other item in the spatial index. Items outside of the index are never
+   * clustered with other items, so only items inside of it have a known distance.
+   */
+  @Override
+  public double getDistanceToNearestItem(T item) {
+    synchronized (mIndex) {
+      final QuadItem<T> quadItem = mItems.get(item);
+      return quadItem == null ? 0 : getDistanceToNearestItem(mIndex, quadItem);
+    }
+  }
+
+  /**
+   * Returns a lower bound of the distance from an item to the nearest other item of the index, as
+   * described by {@link MFLocalAlgorithm#getDistanceToNearestItem}.
+   *
+   * @return the distance, 0 if the item is outside of the index, or positive infinity if there is
+   * no other item
+   */
+  static <I extends PointQuadTree.Item> double getDistanceToNearestItem(SpatialIndex<I> index, I item) {
+    final Point point = item.getPoint();
+    if (!isIndexed(point)) {
+      return 0;
+    }
+    for (I nearest : index.nearest(point.x, point.y, 2)) {
+      if (nearest != item) {
+        // The euclidean distance is at most sqrt(2) times the larger of the distances along x and y.
+        return Math.sqrt(GreedyClustering.distanceSquared(nearest.getPoint(), point) / 2);
+      }
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Releases memory held by the spatial index after many items have been removed.
+   */
+  public void compact() {
+    synchronized (mIndex) {
+      mIndex.compact();
+    }
+  }
+
   /**
    * Updates the provided item in the algorithm
    *
@@ -143,16 +246,64 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
    */
   @Override
   public boolean updateItem(T item) {
-    // TODO - Can this be optimized to update the item in-place if the location hasn't changed?
-    boolean result;
-    synchronized (mQuadTree) {
-      result = removeItem(item);
-      if (result) {
-        // Only add the item if it was removed (to help prevent accidental duplicates on map)
-        result = addItem(item);
+    final MFLocationCoordinate position = item.getPosition();
+    final Point point = PROJECTION.toPoint(position);
+    synchronized (mIndex) {
+      final QuadItem<T> quadItem = mItems.get(item);
+      if (quadItem == null) {
+        return false;
+      }
+      // The quad tree finds the item by its old point, so only update it once it has moved.
+      final boolean indexed = mIndex.move(quadItem, point.x, point.y);
+      quadItem.update(item, position, point);
+      if (!indexed) {
+        mIndex.add(quadItem);
       }
     }
-    return result;
+    return true;
+  }
+
+  /**
+   * Sets the number of threads clusters are computed on. Parallel clustering returns the same
+   * clusters as sequential clustering, and is only used for large numbers of items.
+   *
+   * @param parallelism the number of threads, or 1 to compute clusters on the calling thread
+   */
+  public void setParallelism(int parallelism) {
+    synchronized (mIndex) {
+      if (mPool != null) {
+        mPool.shutdown();
+      }
+      mPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+  }
+
+  /**
+   * Adds the item to {@link #mItems} unless an equal item is already there, hashing it once.
+   *
+   * @return true if the item was added
+   */
+  private boolean putIfAbsent(QuadItem<T> quadItem) {
+    final QuadItem<T> existing = mItems.put(quadItem.mClusterItem, quadItem);
+    if (existing != null) {
+      // Restore the existing item; this doesn't change the iteration order.
+      mItems.put(existing.mClusterItem, existing);
+      return false;
+    }
+    quadItem.mOrdinal = mOrdinals.size();
+    mOrdinals.add(quadItem);
+    return true;
+  }
+
+  /**
+   * Gives the ordinal of a removed item to the item with the last ordinal.
+   */
+  private void releaseOrdinal(QuadItem<T> quadItem) {
+    final QuadItem<T> last = mOrdinals.remove(mOrdinals.size() - 1);
+    if (last != quadItem) {
+      last.mOrdinal = quadItem.mOrdinal;
+      mOrdinals.set(last.mOrdinal, last);
+    }
   }
 
   @Override
@@ -161,67 +312,182 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
 
     final double zoomSpecificSpan = mMaxDistance / Math.pow(2, discreteZoom) / 256;
 
-    final Set<QuadItem<T>> visitedCandidates = new HashSet<>();
-    final Set<MFCluster<T>> results = new HashSet<>();
-    final Map<QuadItem<T>, Double> distanceToCluster = new HashMap<>();
-    final Map<QuadItem<T>, MFStaticCluster<T>> itemToCluster = new HashMap<>();
+    // TODO: Use a span that takes into account the visual size of the marker, not just its
+    // LatLng.
+    final double halfSpan = zoomSpecificSpan / 2;
 
-    synchronized (mQuadTree) {
-      for (QuadItem<T> candidate : getClusteringItems(mQuadTree, zoom)) {
-        if (visitedCandidates.contains(candidate)) {
-          // Candidate is already part of another cluster.
-          continue;
+    synchronized (mIndex) {
+      final Collection<QuadItem<T>> candidates = getClusteringItems(mIndex, zoom);
+      if (mPool != null && mItems.size() >= MIN_PARALLEL_ITEMS) {
+        final Set<MFCluster<T>> parallelClusters = new ParallelClustering(candidates, halfSpan).run();
+        if (parallelClusters != null) {
+          return parallelClusters;
         }
+      }
+      return mClustering.cluster(candidates, mOrdinals.size(), halfSpan, 0, null);
+    }
+  }
 
-        Bounds searchBounds = createBoundsFromSpan(candidate.getPoint(), zoomSpecificSpan);
-        Collection<QuadItem<T>> clusterItems;
-        clusterItems = mQuadTree.search(searchBounds);
-        if (clusterItems.size() == 1) {
-          // Only the current marker is in range. Just add the single item to the results.
-          results.add(candidate);
-          visitedCandidates.add(candidate);
-          distanceToCluster.put(candidate, 0d);
-          continue;
-        }
-        MFStaticCluster<T> cluster = new MFStaticCluster<>(candidate.mClusterItem.getPosition());
-        results.add(cluster);
-
-        for (QuadItem<T> clusterItem : clusterItems) {
-          Double existingDistance = distanceToCluster.get(clusterItem);
-          double distance = distanceSquared(clusterItem.getPoint(), candidate.getPoint());
-          if (existingDistance != null) {
-            // Item already belongs to another cluster. Check if it's closer to this cluster.
-            if (existingDistance < distance) {
-              continue;
+  /**
+   * Clusters the items of the given tiles, without merging items of different tiles. The world is
+   * divided into 2^n by 2^n tiles, where n is the integer part of the zoom.
+   *
+   * @param zoom  the zoom to cluster at
+   * @param tiles the keys of the tiles to cluster, as returned by {@link #getTileKey}
+   * @return the clusters of each tile, by tile key
+   */
+  protected Map<Long, Set<MFCluster<T>>> getClustersInTiles(double zoom, Collection<Long> tiles) {
+    final int discreteZoom = (int) zoom;
+    final double halfSpan = mMaxDistance / Math.pow(2, discreteZoom) / 256 / 2;
+    final long tileCount = 1L << discreteZoom;
+    final List<QuadItem<T>> candidates = new ArrayList<>();
+    final Map<Long, Set<MFCluster<T>>> tileClusters = new HashMap<>();
+    synchronized (mIndex) {
+      for (final long tile : tiles) {
+        tileClusters.put(tile, new HashSet<MFCluster<T>>());
+        final long tileX = tile / tileCount;
+        final long tileY = tile % tileCount;
+        mIndex.search(
+          (double) tileX / tileCount, (double) (tileX + 1) / tileCount,
+          (double) tileY / tileCount, (double) (tileY + 1) / tileCount,
+          new PointQuadTree.Visitor<QuadItem<T>>() {
+            @Override
+            public void visit(QuadItem<T> item) {
+              // Items on the border of two tiles are only clustered in one of them.
+              if (getTileKey(item.getPoint(), tileCount) == tile) {
+                candidates.add(item);
+              }
             }
-            // Move item to the closer cluster.
-            itemToCluster.get(clusterItem).remove(clusterItem.mClusterItem);
-          }
-          distanceToCluster.put(clusterItem, distance);
-          cluster.add(clusterItem.mClusterItem);
-          itemToCluster.put(clusterItem, cluster);
-        }
-        visitedCandidates.addAll(clusterItems);
+          });
       }
+      mClustering.cluster(candidates, mOrdinals.size(), halfSpan, tileCount, tileClusters);
     }
-    return results;
+    return tileClusters;
+  }
+
+  /**
+   * Returns the key of the tile containing a projected point, in a world of tileCount by
+   * tileCount tiles.
+   */
+  protected static long getTileKey(Point point, long tileCount) {
+    final long x = Math.max(0, Math.min(tileCount - 1, (long) Math.floor(point.x * tileCount)));
+    final long y = Math.max(0, Math.min(tileCount - 1, (long) Math.floor(point.y * tileCount)));
+    return x * tileCount + y;
   }
 
-  protected Collection<QuadItem<T>> getClusteringItems(PointQuadTree<QuadItem<T>> quadTree, double zoom) {
-    return mItems;
+  protected Collection<QuadItem<T>> getClusteringItems(SpatialIndex<QuadItem<T>> index, double zoom) {
+    return mItems.values();
   }
 
   @Override
   public Collection<T> getItems() {
     final Set<T> items = new LinkedHashSet<>();
-    synchronized (mQuadTree) {
-      for (QuadItem<T> quadItem : mItems) {
+    synchronized (mIndex) {
+      for (QuadItem<T> quadItem : mItems.values()) {
+        items.add(quadItem.mClusterItem);
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Returns up to {@code count} items closest to the given position, nearest first. Distances are
+   * measured in the projected plane the items are clustered in.
+   *
+   * @param position the position to search around
+   * @param count    the maximum number of items to return
+   */
+  public List<T> getNearestItems(MFLocationCoordinate position, int count) {
+    final Point point = PROJECTION.toPoint(position);
+    final List<T> items = new ArrayList<>();
+    synchronized (mIndex) {
+      for (QuadItem<T> quadItem : mIndex.nearest(point.x, point.y, count)) {
         items.add(quadItem.mClusterItem);
       }
     }
     return items;
   }
 
+  /**
+   * Returns the items that are within the given on-screen distance of a position.
+   *
+   * @param position the position to search around
+   * @param radius   the search radius, in dp
+   * @param zoom     the zoom level the radius is measured at
+   */
+  public Collection<T> getItemsWithinRadius(MFLocationCoordinate position, int radius, double zoom) {
+    final Point point = PROJECTION.toPoint(position);
+    final double worldRadius = radius / Math.pow(2, zoom) / 256;
+    final List<T> items = new ArrayList<>();
+    synchronized (mIndex) {
+      mIndex.withinRadius(point.x, point.y, worldRadius, new PointQuadTree.Visitor<QuadItem<T>>() {
+        @Override
+        public void visit(QuadItem<T> item) {
+          items.add(item.mClusterItem);
+        }
+      });
+    }
+    return items;
+  }
+
+  /**
+   * Returns the number of items inside the given geographic bounds, without collecting them.
+   *
+   * @param southWest the south west corner of the bounds
+   * @param northEast the north east corner of the bounds
+   */
+  public int getItemCount(MFLocationCoordinate southWest, MFLocationCoordinate northEast) {
+    int count = 0;
+    synchronized (mIndex) {
+      for (Bounds bounds : toProjectedBounds(southWest, northEast)) {
+        count += mIndex.count(bounds);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the centroid of the items inside the given geographic bounds, without collecting
+   * them.
+   *
+   * @param southWest the south west corner of the bounds
+   * @param northEast the north east corner of the bounds
+   * @return the centroid, or null if there are no items inside the bounds
+   */
+  public MFLocationCoordinate getCentroid(MFLocationCoordinate southWest, MFLocationCoordinate northEast) {
+    int count = 0;
+    double sumX = 0;
+    double sumY = 0;
+    synchronized (mIndex) {
+      for (Bounds bounds : toProjectedBounds(southWest, northEast)) {
+        final Point centroid = mIndex.centroid(bounds);
+        if (centroid != null) {
+          final int boundsCount = mIndex.count(bounds);
+          count += boundsCount;
+          sumX += centroid.x * boundsCount;
+          sumY += centroid.y * boundsCount;
+        }
+      }
+    }
+    if (count == 0) {
+      return null;
+    }
+    return PROJECTION.toLocationCoordinate(new Point(sumX / count, sumY / count));
+  }
+
+  /**
+   * Projects geographic bounds, splitting them in two if they cross the international date line.
+   */
+  private static Bounds[] toProjectedBounds(MFLocationCoordinate southWest, MFLocationCoordinate northEast) {
+    final Point sw = PROJECTION.toPoint(southWest);
+    final Point ne = PROJECTION.toPoint(northEast);
+    // Projected y grows southwards.
+    if (sw.x <= ne.x) {
+      return new Bounds[]{new Bounds(sw.x, ne.x, ne.y, sw.y)};
+    }
+    return new Bounds[]{new Bounds(sw.x, 1, ne.y, sw.y), new Bounds(0, ne.x, ne.y, sw.y)};
+  }
+
   @Override
   public int getMaxDistanceBetweenClusteredItems() {
     return mMaxDistance;
@@ -236,26 +502,276 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
     return (a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y);
   }
 
-  private Bounds createBoundsFromSpan(Point p, double span) {
-    // TODO: Use a span that takes into account the visual size of the marker, not just its
-    // LatLng.
-    double halfSpan = span / 2;
-    return new Bounds(
-      p.x - halfSpan, p.x + halfSpan,
-      p.y - halfSpan, p.y + halfSpan);
+  /**
+   * Computes the clusters of {@link #getClusters(double)} on {@link #mPool}.
+   * <p/>
+   * The sequential algorithm makes each candidate the center of a cluster (a seed) unless it is
+   * within the span of an earlier seed, and then gives every item to the closest seed whose span
+   * contains it, later seeds winning ties. Seeds are more than half a span apart, so finding them
+   * only takes a grid of the seeds found so far. Assigning the items, where most of the work is,
+   * is then independent for each item: the items are split into vertical strips which are assigned
+   * in parallel, reading the seeds near strip borders from the shared grid.
+   */
+  private class ParallelClustering {
+    private final Collection<QuadItem<T>> mCandidates;
+    private final double mHalfSpan;
+    /**
+     * Cells are a span wide, so the seeds whose span contains a point are in the 3x3 cells
+     * around it.
+     */
+    private final double mCellSize;
+    private final Map<Long, SeedCell> mCells = new HashMap<>();
+    private final List<QuadItem<T>> mSeeds = new ArrayList<>();
+    private QuadItem<T>[] mAll;
+    /**
+     * For each item of mAll, the index of the seed it belongs to, or -1.
+     */
+    private int[] mOwners;
+    /**
+     * For each seed, whether its span contains other items than itself.
+     */
+    private boolean[] mShared;
+
+    ParallelClustering(Collection<QuadItem<T>> candidates, double halfSpan) {
+      mCandidates = candidates;
+      mHalfSpan = halfSpan;
+      mCellSize = halfSpan * 2;
+    }
+
+    /**
+     * @return the clusters, or null if they must be computed sequentially.
+     */
+    @SuppressWarnings("unchecked")
+    Set<MFCluster<T>> run() {
+      for (QuadItem<T> candidate : mCandidates) {
+        if (!isIndexed(candidate.getPoint())) {
+          // The sequential algorithm treats unindexed candidates specially; leave them to it.
+          return null;
+        }
+        if (!isCovered(candidate.getPoint())) {
+          addSeed(candidate);
+        }
+      }
+
+      final List<QuadItem<T>> all = new ArrayList<>(mItems.size());
+      for (QuadItem<T> quadItem : mItems.values()) {
+        if (isIndexed(quadItem.getPoint())) {
+          all.add(quadItem);
+        }
+      }
+      mAll = all.toArray(new QuadItem[all.size()]);
+      mOwners = new int[mAll.length];
+      mShared = new boolean[mSeeds.size()];
+
+      // Sort the items into strips, so that each task reads a small part of the grid.
+      final int strips = mPool.getParallelism() * 4;
+      final int[] stripStarts = new int[strips + 1];
+      final int[] itemStrips = new int[mAll.length];
+      for (int i = 0; i < mAll.length; i++) {
+        itemStrips[i] = Math.min(strips - 1, (int) (mAll[i].getPoint().x * strips));
+        stripStarts[itemStrips[i] + 1]++;
+      }
+      for (int i = 0; i < strips; i++) {
+        stripStarts[i + 1] += stripStarts[i];
+      }
+      final int[] next = stripStarts.clone();
+      final int[] order = new int[mAll.length];
+      for (int i = 0; i < mAll.length; i++) {
+        order[next[itemStrips[i]]++] = i;
+      }
+      mPool.invoke(new AssignTask(order, stripStarts, 0, strips));
+
+      final Set<MFCluster<T>> results = new HashSet<>();
+      final MFStaticCluster<T>[] clusters = new MFStaticCluster[mSeeds.size()];
+      for (int i = 0; i < clusters.length; i++) {
+        if (mShared[i]) {
+          clusters[i] = new MFStaticCluster<>(mSeeds.get(i).mClusterItem.getPosition());
+        } else {
+          // Only the seed is in range.
+          results.add(mSeeds.get(i).getCluster());
+        }
+      }
+      for (int i = 0; i < mAll.length; i++) {
+        final int owner = mOwners[i];
+        if (owner >= 0 && clusters[owner] != null) {
+          clusters[owner].add(mAll[i].mClusterItem);
+        }
+      }
+      for (MFStaticCluster<T> cluster : clusters) {
+        if (cluster != null) {
+          results.add(cluster);
+        }
+      }
+      return results;
+    }
+
+    /**
+     * Finds the seed an item belongs to, the same way the sequential algorithm does.
+     */
+    private void assign(int item) {
+      final QuadItem<T> quadItem = mAll[item];
+      final Point point = quadItem.getPoint();
+      int best = -1;
+      double bestDistance = 0;
+      final long cellX = cell(point.x);
+      final long cellY = cell(point.y);
+      for (long x = cellX - 1; x <= cellX + 1; x++) {
+        for (long y = cellY - 1; y <= cellY + 1; y++) {
+          final SeedCell cell = mCells.get(key(x, y));
+          if (cell == null) {
+            continue;
+          }
+          for (int i = 0; i < cell.mSize; i++) {
+            final int seed = cell.mSeeds[i];
+            final QuadItem<T> seedItem = mSeeds.get(seed);
+            if (!covers(seedItem.getPoint(), point)) {
+              continue;
+            }
+            if (seedItem != quadItem) {
+              mShared[seed] = true;
+            }
+            final double distance = distanceSquared(point, seedItem.getPoint());
+            if (best == -1 || distance < bestDistance || (distance == bestDistance && seed > best)) {
+              best = seed;
+              bestDistance = distance;
+            }
+          }
+        }
+      }
+      mOwners[item] = best;
+    }
+
+    private boolean isCovered(Point point) {
+      final long cellX = cell(point.x);
+      final long cellY = cell(point.y);
+      for (long x = cellX - 1; x <= cellX + 1; x++) {
+        for (long y = cellY - 1; y <= cellY + 1; y++) {
+          final SeedCell cell = mCells.get(key(x, y));
+          if (cell == null) {
+            continue;
+          }
+          for (int i = 0; i < cell.mSize; i++) {
+            if (covers(mSeeds.get(cell.mSeeds[i]).getPoint(), point)) {
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+
+    private void addSeed(QuadItem<T> seed) {
+      final Point point = seed.getPoint();
+      final Long key = key(cell(point.x), cell(point.y));
+      SeedCell cell = mCells.get(key);
+      if (cell == null) {
+        cell = new SeedCell();
+        mCells.put(key, cell);
+      }
+      cell.add(mSeeds.size());
+      mSeeds.add(seed);
+    }
+
+    /**
+     * Whether the point is inside the search bounds the sequential algorithm uses for the seed.
+     */
+    private boolean covers(Point seed, Point point) {
+      return seed.x - mHalfSpan <= point.x && point.x <= seed.x + mHalfSpan
+        && seed.y - mHalfSpan <= point.y && point.y <= seed.y + mHalfSpan;
+    }
+
+    private long cell(double value) {
+      return (long) Math.floor(value / mCellSize);
+    }
+
+    /**
+     * Cells whose keys collide share their seeds, which only costs a few more distance checks.
+     */
+    private long key(long x, long y) {
+      return x * 0x9E3779B97F4A7C15L + y;
+    }
+
+    /**
+     * Assigns the items of a range of strips, splitting it in two until it is a single strip.
+     */
+    private class AssignTask extends RecursiveAction {
+      private final int[] mOrder;
+      private final int[] mStripStarts;
+      private final int mFrom;
+      private final int mTo;
+
+      AssignTask(int[] order, int[] stripStarts, int from, int to) {
+        mOrder = order;
+        mStripStarts = stripStarts;
+        mFrom = from;
+        mTo = to;
+      }
+
+      @Override
+      protected void compute() {
+        if (mTo - mFrom == 1) {
+          for (int i = mStripStarts[mFrom]; i < mStripStarts[mTo]; i++) {
+            assign(mOrder[i]);
+          }
+          return;
+        }
+        final int mid = (mFrom + mTo) >>> 1;
+        invokeAll(new AssignTask(mOrder, mStripStarts, mFrom, mid),
+          new AssignTask(mOrder, mStripStarts, mid, mTo));
+      }
+    }
+  }
+
+  /**
+   * Whether the point is inside the bounds of the spatial index.
+   */
+  static boolean isIndexed(Point point) {
+    return 0 <= point.x && point.x <= 1 && 0 <= point.y && point.y <= 1;
+  }
+
+  /**
+   * The indexes of the seeds in a cell of {@link ParallelClustering}.
+   */
+  private static class SeedCell {
+    private int[] mSeeds = new int[4];
+    private int mSize;
+
+    void add(int seed) {
+      if (mSize == mSeeds.length) {
+        mSeeds = Arrays.copyOf(mSeeds, mSize * 2);
+      }
+      mSeeds[mSize++] = seed;
+    }
   }
 
-  protected static class QuadItem<T extends MFClusterItem> implements PointQuadTree.Item, MFCluster<T> {
-    private final T mClusterItem;
-    private final Point mPoint;
-    private final MFLocationCoordinate mPosition;
-    private Set<T> singletonSet;
+  /**
+   * An item as it is indexed. The index moves it in place when its item is updated, so clustering
+   * hands out its immutable {@link #getCluster() cluster} rather than the quad item itself.
+   */
+  protected static class QuadItem<T extends MFClusterItem> implements GreedyClustering.Item<T> {
+    private T mClusterItem;
+    /**
+     * Dense index of this item among the items of the algorithm, for bookkeeping in arrays.
+     */
+    private int mOrdinal;
+    private Point mPoint;
+    private MFSingletonCluster<T> mCluster;
 
     private QuadItem(T item) {
+      final MFLocationCoordinate position = item.getPosition();
       mClusterItem = item;
-      mPosition = item.getPosition();
-      mPoint = PROJECTION.toPoint(mPosition);
-      singletonSet = Collections.singleton(mClusterItem);
+      mPoint = PROJECTION.toPoint(position);
+      mCluster = new MFSingletonCluster<>(item, position);
+    }
+
+    /**
+     * Points this quad item at the given (equal) item and its new position. Clusters handed out
+     * before keep the old position.
+     */
+    private void update(T item, MFLocationCoordinate position, Point point) {
+      mClusterItem = item;
+      mPoint = point;
+      mCluster = new MFSingletonCluster<>(item, position);
     }
 
     @Override
@@ -264,18 +780,29 @@ public class MFNonHierarchicalDistanceBasedAlgorithm<T extends MFClusterItem> ex
     }
 
     @Override
-    public MFLocationCoordinate getPosition() {
-      return mPosition;
+    public int getOrdinal() {
+      return mOrdinal;
+    }
+
+    @Override
+    public T getClusterItem() {
+      return mClusterItem;
     }
 
+    /**
+     * Returns the current position of the item, as clusters centered on it have.
+     */
     @Override
-    public Set<T> getItems() {
-      return singletonSet;
+    public MFLocationCoordinate getPosition() {
+      return mClusterItem.getPosition();
     }
 
+    /**
+     * Returns the cluster of this item alone, at the position it was last indexed at.
+     */
     @Override
-    public int getSize() {
-      return 1;
+    public MFCluster<T> getCluster() {
+      return mCluster;
     }
 
     @Override
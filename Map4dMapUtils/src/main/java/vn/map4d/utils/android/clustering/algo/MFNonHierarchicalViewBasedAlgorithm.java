@@ -1,19 +1,34 @@
 package vn.map4d.utils.android.clustering.algo;
 
+import androidx.collection.LruCache;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import vn.map4d.map.camera.MFCameraPosition;
-import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
 import vn.map4d.utils.android.clustering.MFClusterItem;
 import vn.map4d.utils.android.geometry.Bounds;
 import vn.map4d.utils.android.geometry.Point;
 import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
-import vn.map4d.utils.android.quadtree.PointQuadTree;
+import vn.map4d.utils.android.quadtree.SpatialIndex;
 
 /**
  * This algorithm works the same way as {@link NonHierarchicalDistanceBasedAlgorithm} but works, only in
  * visible area. It requires to be reclustered on camera movement because clustering is done only for visible area.
+ * <p/>
+ * With {@link #setIncrementalPanning(boolean)}, clusters are anchored to the map tiles of the zoom
+ * instead: the items of each visible tile are clustered on their own, and the clusters of each
+ * tile are cached by zoom and tile position. Moving the map only clusters the tiles which were not
+ * seen recently, and the least recently visible tiles are evicted first, see
+ * {@link #setMaxCachedTiles(int)}. Changing items only evicts the tiles which contain them.
  *
  * @param <T>
  */
@@ -21,43 +36,274 @@ public class MFNonHierarchicalViewBasedAlgorithm<T extends MFClusterItem>
   extends MFNonHierarchicalDistanceBasedAlgorithm<T> implements MFScreenBasedAlgorithm<T> {
 
   private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+  private static final int DEFAULT_MAX_CACHED_TILES = 256;
+  /**
+   * Tile keys use the low bits, which is enough for zooms up to 29.
+   */
+  private static final int ZOOM_SHIFT = 58;
+  /**
+   * Changes with more items than this evict every tile, rather than only the tiles of the items.
+   */
+  private static final int MAX_SCOPED_CHANGES = 256;
 
-  private int mViewWidth;
-  private int mViewHeight;
+  private final Viewport mViewport;
 
-  private MFLocationCoordinate mMapCenter;
+  private boolean mIncrementalPanning;
+  /**
+   * Clusters of recently visible tiles, keyed by zoom and tile key.
+   * Any access should be synchronized on mTileClusters.
+   */
+  private final LruCache<Long, Set<MFCluster<T>>> mTileClusters =
+    new LruCache<Long, Set<MFCluster<T>>>(DEFAULT_MAX_CACHED_TILES) {
+      @Override
+      protected void entryRemoved(boolean evicted, Long key, Set<MFCluster<T>> oldValue,
+                                  Set<MFCluster<T>> newValue) {
+        if (newValue == null) {
+          mTilesPerZoom[(int) (key >>> ZOOM_SHIFT)]--;
+        }
+      }
+    };
+  /**
+   * Number of tiles in mTileClusters by zoom, so that changes only look for tiles of cached zooms.
+   * Any access should be synchronized on mTileClusters.
+   */
+  private final int[] mTilesPerZoom = new int[1 << (Long.SIZE - ZOOM_SHIFT)];
 
   /**
    * @param screenWidth  map width in dp
    * @param screenHeight map height in dp
    */
   public MFNonHierarchicalViewBasedAlgorithm(int screenWidth, int screenHeight) {
-    mViewWidth = screenWidth;
-    mViewHeight = screenHeight;
+    mViewport = new Viewport(screenWidth, screenHeight);
+  }
+
+  /**
+   * @param screenWidth  map width in dp
+   * @param screenHeight map height in dp
+   * @param indexFactory creates the spatial index used by this algorithm
+   */
+  public MFNonHierarchicalViewBasedAlgorithm(int screenWidth, int screenHeight, SpatialIndex.Factory indexFactory) {
+    super(indexFactory);
+    mViewport = new Viewport(screenWidth, screenHeight);
+  }
+
+  /**
+   * Sets whether clusters are anchored to map tiles, so that panning only clusters the tiles which
+   * become visible. Items of different tiles are never clustered together.
+   *
+   * @param incremental true to cluster visible tiles independently, false to cluster the whole
+   *                    visible area at once
+   */
+  public void setIncrementalPanning(boolean incremental) {
+    synchronized (mTileClusters) {
+      mIncrementalPanning = incremental;
+      mTileClusters.evictAll();
+    }
+  }
+
+  /**
+   * Sets how many tiles, across all zooms, keep their clusters when incremental panning is
+   * enabled. The cache should hold at least the tiles of a screen, or panning will recluster
+   * every tile.
+   *
+   * @param maxTiles the maximum number of cached tiles
+   */
+  public void setMaxCachedTiles(int maxTiles) {
+    synchronized (mTileClusters) {
+      mTileClusters.resize(maxTiles);
+    }
+  }
+
+  @Override
+  public boolean addItem(T item) {
+    synchronized (mTileClusters) {
+      final boolean result = super.addItem(item);
+      if (result) {
+        evictTiles(Collections.singleton(PROJECTION.toPoint(item.getPosition())));
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public boolean addItems(Collection<T> items) {
+    synchronized (mTileClusters) {
+      final boolean result = super.addItems(items);
+      if (result) {
+        if (items.size() > MAX_SCOPED_CHANGES) {
+          mTileClusters.evictAll();
+        } else {
+          final List<Point> points = new ArrayList<>(items.size());
+          for (T item : items) {
+            points.add(PROJECTION.toPoint(item.getPosition()));
+          }
+          evictTiles(points);
+        }
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public void clearItems() {
+    synchronized (mTileClusters) {
+      super.clearItems();
+      mTileClusters.evictAll();
+    }
+  }
+
+  @Override
+  public boolean removeItem(T item) {
+    synchronized (mTileClusters) {
+      final Point point = getIndexedPoint(item);
+      final boolean result = super.removeItem(item);
+      if (result) {
+        evictTiles(Collections.singleton(point));
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public boolean removeItems(Collection<T> items) {
+    synchronized (mTileClusters) {
+      if (items.size() > MAX_SCOPED_CHANGES) {
+        final boolean result = super.removeItems(items);
+        if (result) {
+          mTileClusters.evictAll();
+        }
+        return result;
+      }
+      final List<Point> points = new ArrayList<>(items.size());
+      for (T item : items) {
+        final Point point = getIndexedPoint(item);
+        if (point != null) {
+          points.add(point);
+        }
+      }
+      final boolean result = super.removeItems(items);
+      if (result) {
+        evictTiles(points);
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public boolean updateItem(T item) {
+    synchronized (mTileClusters) {
+      final Point oldPoint = getIndexedPoint(item);
+      final boolean result = super.updateItem(item);
+      if (result) {
+        evictTiles(Arrays.asList(oldPoint, PROJECTION.toPoint(item.getPosition())));
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Returns 0, as clusters also depend on the camera, so no change is isolated from them.
+   */
+  @Override
+  public double getDistanceToNearestItem(T item) {
+    return 0;
+  }
+
+  @Override
+  public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+    synchronized (mTileClusters) {
+      super.setMaxDistanceBetweenClusteredItems(maxDistance);
+      mTileClusters.evictAll();
+    }
+  }
+
+  /**
+   * Evicts the tiles containing the given points at every cached zoom. Must be called with
+   * mTileClusters held.
+   */
+  private void evictTiles(Collection<Point> points) {
+    for (int zoom = 0; zoom < mTilesPerZoom.length; zoom++) {
+      if (mTilesPerZoom[zoom] == 0) {
+        continue;
+      }
+      final long zoomKey = (long) zoom << ZOOM_SHIFT;
+      final long tileCount = 1L << zoom;
+      for (Point point : points) {
+        mTileClusters.remove(zoomKey | getTileKey(point, tileCount));
+      }
+    }
+  }
+
+  @Override
+  public Set<? extends MFCluster<T>> getClusters(double zoom) {
+    synchronized (mTileClusters) {
+      if (!mIncrementalPanning) {
+        return super.getClusters(zoom);
+      }
+      final int discreteZoom = (int) zoom;
+      final long zoomKey = (long) discreteZoom << ZOOM_SHIFT;
+
+      // Find the visible tiles, wrapping around the international date line.
+      final long tileCount = 1L << discreteZoom;
+      final Bounds visibleBounds = mViewport.getVisibleBounds(zoom);
+      final long minX = (long) Math.floor(visibleBounds.minX * tileCount);
+      final long maxX = Math.min(minX + tileCount - 1, (long) Math.floor(visibleBounds.maxX * tileCount));
+      final long minY = Math.max(0, (long) Math.floor(visibleBounds.minY * tileCount));
+      final long maxY = Math.min(tileCount - 1, (long) Math.floor(visibleBounds.maxY * tileCount));
+      final Map<Long, Set<MFCluster<T>>> visible = new HashMap<>();
+      final List<Long> missing = new ArrayList<>();
+      for (long x = minX; x <= maxX; x++) {
+        final long tileX = ((x % tileCount) + tileCount) % tileCount;
+        for (long y = minY; y <= maxY; y++) {
+          final long tile = tileX * tileCount + y;
+          final Set<MFCluster<T>> clusters = mTileClusters.get(zoomKey | tile);
+          if (clusters == null) {
+            missing.add(tile);
+          } else {
+            visible.put(tile, clusters);
+          }
+        }
+      }
+      if (!missing.isEmpty()) {
+        final Map<Long, Set<MFCluster<T>>> computed = getClustersInTiles(zoom, missing);
+        for (Map.Entry<Long, Set<MFCluster<T>>> entry : computed.entrySet()) {
+          if (mTileClusters.put(zoomKey | entry.getKey(), entry.getValue()) == null) {
+            mTilesPerZoom[discreteZoom]++;
+          }
+        }
+        visible.putAll(computed);
+      }
+
+      final Set<MFCluster<T>> results = new HashSet<>();
+      for (Set<MFCluster<T>> clusters : visible.values()) {
+        results.addAll(clusters);
+      }
+      return results;
+    }
   }
 
   @Override
   public void onCameraChange(MFCameraPosition cameraPosition) {
-    mMapCenter = cameraPosition.getTarget();
+    mViewport.setCenter(cameraPosition.getTarget());
   }
 
   @Override
-  protected Collection<QuadItem<T>> getClusteringItems(PointQuadTree<QuadItem<T>> quadTree, double zoom) {
-    Bounds visibleBounds = getVisibleBounds(zoom);
+  protected Collection<QuadItem<T>> getClusteringItems(SpatialIndex<QuadItem<T>> index, double zoom) {
+    Bounds visibleBounds = mViewport.getVisibleBounds(zoom);
     Collection<QuadItem<T>> items = new ArrayList<>();
 
     // Handle wrapping around international date line
     if (visibleBounds.minX < 0) {
       Bounds wrappedBounds = new Bounds(visibleBounds.minX + 1, 1, visibleBounds.minY, visibleBounds.maxY);
-      items.addAll(quadTree.search(wrappedBounds));
+      items.addAll(index.search(wrappedBounds));
       visibleBounds = new Bounds(0, visibleBounds.maxX, visibleBounds.minY, visibleBounds.maxY);
     }
     if (visibleBounds.maxX > 1) {
       Bounds wrappedBounds = new Bounds(0, visibleBounds.maxX - 1, visibleBounds.minY, visibleBounds.maxY);
-      items.addAll(quadTree.search(wrappedBounds));
+      items.addAll(index.search(wrappedBounds));
       visibleBounds = new Bounds(visibleBounds.minX, 1, visibleBounds.minY, visibleBounds.maxY);
     }
-    items.addAll(quadTree.search(visibleBounds));
+    items.addAll(index.search(visibleBounds));
 
     return items;
   }
@@ -75,22 +321,6 @@ public class MFNonHierarchicalViewBasedAlgorithm<T extends MFClusterItem>
    * @param height map height in dp
    */
   public void updateViewSize(int width, int height) {
-    mViewWidth = width;
-    mViewHeight = height;
-  }
-
-  private Bounds getVisibleBounds(double zoom) {
-    if (mMapCenter == null) {
-      return new Bounds(0, 0, 0, 0);
-    }
-
-    Point p = PROJECTION.toPoint(mMapCenter);
-
-    final double halfWidthSpan = mViewWidth / Math.pow(2, zoom) / 256 / 2;
-    final double halfHeightSpan = mViewHeight / Math.pow(2, zoom) / 256 / 2;
-
-    return new Bounds(
-      p.x - halfWidthSpan, p.x + halfWidthSpan,
-      p.y - halfHeightSpan, p.y + halfHeightSpan);
+    mViewport.setSize(width, height);
   }
 }
@@ -0,0 +1,514 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+
+/**
+ * Keeps the clusters of every zoom of a static set of items in a file, so that they are not
+ * computed again when the app starts.
+ * <p/>
+ * The first time clusters are requested, the decorator looks for a file matching a fingerprint of
+ * the item positions, the wrapped algorithm, the maximum distance between clustered items and the
+ * key given to the constructor. The positions are hashed in sorted order, so the fingerprint does
+ * not depend on the order the wrapped algorithm returns its items in. If there is no such file,
+ * the wrapped algorithm clusters every zoom up to the maximum zoom and the clusters are written to
+ * a new file. The file is then memory mapped, and the clusters returned by
+ * {@link #getClusters(double)} read their position and items from it as they are used.
+ * <p/>
+ * Any change to the items computes all the zooms again on the next request, so this decorator is
+ * meant for items which rarely change. Files of other fingerprints are deleted when a new file is
+ * written, so the directory should be used by this decorator only. If the file can't be written or
+ * read, clusters are computed by the wrapped algorithm instead.
+ * <p/>
+ * Other settings of the wrapped algorithm, such as {@link MFDensityBasedAlgorithm#setMinPoints(int)}
+ * or {@link MFGridBasedAlgorithm#setPyramidMaxZoom(int)}, are not part of the fingerprint and
+ * should be part of the key, as should anything telling apart items at the same positions.
+ * <p/>
+ * Each file holds a header, then one section per zoom from 0 to the maximum zoom:<br>
+ * - header: magic, version, fingerprint, maximum distance, item count, maximum zoom<br>
+ * - section: cluster count and item count, then the position, first item and size of each
+ * cluster, then the index of each clustered item in the items, ordered so that the items of each
+ * cluster are a range. Items are indexed in the order of their positions.
+ */
+public class MFPersistentAlgorithmDecorator<T extends MFClusterItem> extends MFAbstractAlgorithm<T> {
+  private static final int DEFAULT_MAX_ZOOM = 20;
+  private static final int MAGIC = 0x4d464348; // "MFCH"
+  private static final int VERSION = 2;
+  private static final String FILE_PREFIX = "clusters-";
+  private static final String FILE_SUFFIX = ".bin";
+  private static final int HEADER_BYTES = 28;
+  private static final int SECTION_HEADER_BYTES = 8;
+  private static final int CLUSTER_BYTES = 24;
+  private static final int INDEX_BYTES = 4;
+  /**
+   * Orders items by latitude then longitude, so that the file doesn't depend on the order of
+   * {@link MFAlgorithm#getItems()}, which may change between launches.
+   */
+  private static final Comparator<MFClusterItem> POSITION_ORDER = new Comparator<MFClusterItem>() {
+    @Override
+    public int compare(MFClusterItem a, MFClusterItem b) {
+      final MFLocationCoordinate first = a.getPosition();
+      final MFLocationCoordinate second = b.getPosition();
+      final int latitude = Double.compare(first.getLatitude(), second.getLatitude());
+      return latitude != 0 ? latitude : Double.compare(first.getLongitude(), second.getLongitude());
+    }
+  };
+
+  private final MFAlgorithm<T> mAlgorithm;
+  private final File mDirectory;
+  private final int mMaxZoom;
+  private final String mKey;
+  private final Object mFileLock = new Object();
+  /**
+   * Any access to mHierarchy and mUnavailable should be synchronized on mFileLock.
+   */
+  private MappedHierarchy<T> mHierarchy;
+  /**
+   * Whether the file of the current items couldn't be written or read, in which case clusters are
+   * computed by the wrapped algorithm until the items change.
+   */
+  private boolean mUnavailable;
+
+  /**
+   * @param algorithm the algorithm computing the clusters
+   * @param directory the directory the files are kept in, such as a directory of its own in
+   *                  {@link android.content.Context#getCacheDir()}
+   */
+  public MFPersistentAlgorithmDecorator(MFAlgorithm<T> algorithm, File directory) {
+    this(algorithm, directory, DEFAULT_MAX_ZOOM);
+  }
+
+  /**
+   * @param algorithm the algorithm computing the clusters
+   * @param directory the directory the files are kept in
+   * @param maxZoom   the highest zoom kept in the file. Clusters of higher zooms are computed by
+   *                  the wrapped algorithm.
+   */
+  public MFPersistentAlgorithmDecorator(MFAlgorithm<T> algorithm, File directory, int maxZoom) {
+    this(algorithm, directory, maxZoom, "");
+  }
+
+  /**
+   * @param algorithm the algorithm computing the clusters
+   * @param directory the directory the files are kept in
+   * @param maxZoom   the highest zoom kept in the file. Clusters of higher zooms are computed by
+   *                  the wrapped algorithm.
+   * @param key       identifies the data set and the settings of the wrapped algorithm, so that a
+   *                  file is not used for other settings, e.g. "stations-minPoints=4"
+   */
+  public MFPersistentAlgorithmDecorator(MFAlgorithm<T> algorithm, File directory, int maxZoom, String key) {
+    mAlgorithm = algorithm;
+    mDirectory = directory;
+    mMaxZoom = maxZoom;
+    mKey = key;
+  }
+
+  @Override
+  public boolean addItem(T item) {
+    return invalidateIf(mAlgorithm.addItem(item));
+  }
+
+  @Override
+  public boolean addItems(Collection<T> items) {
+    return invalidateIf(mAlgorithm.addItems(items));
+  }
+
+  @Override
+  public void clearItems() {
+    mAlgorithm.clearItems();
+    invalidateIf(true);
+  }
+
+  @Override
+  public boolean removeItem(T item) {
+    return invalidateIf(mAlgorithm.removeItem(item));
+  }
+
+  @Override
+  public boolean removeItems(Collection<T> items) {
+    return invalidateIf(mAlgorithm.removeItems(items));
+  }
+
+  @Override
+  public boolean updateItem(T item) {
+    return invalidateIf(mAlgorithm.updateItem(item));
+  }
+
+  private boolean invalidateIf(boolean changed) {
+    if (changed) {
+      synchronized (mFileLock) {
+        mHierarchy = null;
+        mUnavailable = false;
+      }
+    }
+    return changed;
+  }
+
+  @Override
+  public Set<? extends MFCluster<T>> getClusters(double zoom) {
+    final int discreteZoom = (int) zoom;
+    if (discreteZoom < 0 || discreteZoom > mMaxZoom) {
+      return mAlgorithm.getClusters(zoom);
+    }
+    final MappedHierarchy<T> hierarchy = getHierarchy();
+    if (hierarchy == null) {
+      return mAlgorithm.getClusters(zoom);
+    }
+    return hierarchy.getClusters(discreteZoom);
+  }
+
+  @Override
+  public Collection<T> getItems() {
+    return mAlgorithm.getItems();
+  }
+
+  @Override
+  public int getMaxDistanceBetweenClusteredItems() {
+    return mAlgorithm.getMaxDistanceBetweenClusteredItems();
+  }
+
+  @Override
+  public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+    mAlgorithm.setMaxDistanceBetweenClusteredItems(maxDistance);
+    invalidateIf(true);
+  }
+
+  /**
+   * Maps the file of the current items, writing it first if needed.
+   *
+   * @return the mapped clusters, or null if the file couldn't be written or read
+   */
+  private MappedHierarchy<T> getHierarchy() {
+    synchronized (mFileLock) {
+      if (mHierarchy != null || mUnavailable) {
+        return mHierarchy;
+      }
+      final List<T> items = new ArrayList<>(mAlgorithm.getItems());
+      Collections.sort(items, POSITION_ORDER);
+      final int maxDistance = mAlgorithm.getMaxDistanceBetweenClusteredItems();
+      final long fingerprint = fingerprint(items);
+      final File file = new File(mDirectory,
+        FILE_PREFIX + Long.toHexString(fingerprint) + "-" + maxDistance + FILE_SUFFIX);
+      final Object[] itemArray = items.toArray();
+      mHierarchy = load(file, itemArray, fingerprint, maxDistance);
+      if (mHierarchy == null) {
+        try {
+          write(file, items, fingerprint, maxDistance);
+          mHierarchy = load(file, itemArray, fingerprint, maxDistance);
+        } catch (IOException e) {
+          // Fall back to the wrapped algorithm below.
+        }
+        mUnavailable = mHierarchy == null;
+      }
+      return mHierarchy;
+    }
+  }
+
+  /**
+   * @return the mapped clusters, or null if the file is missing, of other items or truncated
+   */
+  private MappedHierarchy<T> load(File file, Object[] items, long fingerprint, int maxDistance) {
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      final ByteBuffer buffer = map(file);
+      if (!hasHeader(buffer, fingerprint, maxDistance, items.length)) {
+        return null;
+      }
+      return new MappedHierarchy<>(buffer, items, mMaxZoom);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Hashes the positions of the items, sorted by {@link #POSITION_ORDER}, with the wrapped
+   * algorithm, maximum zoom and key.
+   */
+  private long fingerprint(List<T> items) {
+    long hash = 0xcbf29ce484222325L; // 64 bit FNV-1a
+    hash = mix(hash, mAlgorithm.getClass().getName().hashCode());
+    hash = mix(hash, mMaxZoom);
+    hash = mix(hash, mKey.length());
+    for (int i = 0; i < mKey.length(); i++) {
+      hash = mix(hash, mKey.charAt(i));
+    }
+    hash = mix(hash, items.size());
+    for (T item : items) {
+      final MFLocationCoordinate position = item.getPosition();
+      hash = mix(hash, Double.doubleToLongBits(position.getLatitude()));
+      hash = mix(hash, Double.doubleToLongBits(position.getLongitude()));
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, long value) {
+    for (int shift = 0; shift < 64; shift += 8) {
+      hash ^= (value >>> shift) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private boolean hasHeader(ByteBuffer buffer, long fingerprint, int maxDistance, int itemCount) {
+    return buffer.capacity() >= HEADER_BYTES
+      && buffer.getInt(0) == MAGIC
+      && buffer.getInt(4) == VERSION
+      && buffer.getLong(8) == fingerprint
+      && buffer.getInt(16) == maxDistance
+      && buffer.getInt(20) == itemCount
+      && buffer.getInt(24) == mMaxZoom;
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    final RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = input.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Too large to map: " + file);
+      }
+      // The mapping stays valid once the file is closed.
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Clusters every zoom and writes the clusters to a temporary file, which then replaces the file
+   * and any file of other fingerprints.
+   */
+  private void write(File file, List<T> items, long fingerprint, int maxDistance) throws IOException {
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      throw new IOException("Can't create " + mDirectory);
+    }
+    final Map<T, Integer> indexes = new HashMap<>(items.size() * 2);
+    for (int i = 0; i < items.size(); i++) {
+      indexes.put(items.get(i), i);
+    }
+    final File temporary = new File(mDirectory, file.getName() + ".tmp");
+    boolean written = false;
+    try {
+      final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+      try {
+        writeClusters(output, items, indexes, fingerprint, maxDistance);
+      } finally {
+        output.close();
+      }
+      file.delete();
+      written = temporary.renameTo(file);
+    } finally {
+      if (!written) {
+        temporary.delete();
+      }
+    }
+    if (!written) {
+      throw new IOException("Can't write " + file);
+    }
+    final File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File other : files) {
+        final String name = other.getName();
+        if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX) && !other.equals(file)) {
+          other.delete();
+        }
+      }
+    }
+  }
+
+  private void writeClusters(DataOutputStream output, List<T> items, Map<T, Integer> indexes,
+                             long fingerprint, int maxDistance) throws IOException {
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+    output.writeLong(fingerprint);
+    output.writeInt(maxDistance);
+    output.writeInt(items.size());
+    output.writeInt(mMaxZoom);
+    long size = HEADER_BYTES;
+    for (int zoom = 0; zoom <= mMaxZoom; zoom++) {
+      final Set<? extends MFCluster<T>> clusters = mAlgorithm.getClusters(zoom);
+      int itemCount = 0;
+      for (MFCluster<T> cluster : clusters) {
+        itemCount += cluster.getSize();
+      }
+      size += SECTION_HEADER_BYTES + (long) clusters.size() * CLUSTER_BYTES + (long) itemCount * INDEX_BYTES;
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Too many clusters to map");
+      }
+      output.writeInt(clusters.size());
+      output.writeInt(itemCount);
+      final int[] order = new int[itemCount];
+      int start = 0;
+      for (MFCluster<T> cluster : clusters) {
+        final MFLocationCoordinate position = cluster.getPosition();
+        output.writeDouble(position.getLatitude());
+        output.writeDouble(position.getLongitude());
+        output.writeInt(start);
+        output.writeInt(cluster.getSize());
+        for (T item : cluster.getItems()) {
+          final Integer index = indexes.get(item);
+          if (index == null) {
+            throw new IOException("Clustered item is not in the algorithm: " + item);
+          }
+          order[start++] = index;
+        }
+      }
+      for (int index : order) {
+        output.writeInt(index);
+      }
+    }
+  }
+
+  /**
+   * The clusters of a mapped file. Cluster sets are made on first use, of clusters which read
+   * their position and items from the file.
+   */
+  private static final class MappedHierarchy<T extends MFClusterItem> {
+    private final ByteBuffer mBuffer;
+    private final Object[] mItems;
+    /**
+     * The offset of each zoom's section in the file.
+     */
+    private final int[] mSections;
+    private final List<Set<MFCluster<T>>> mClusterSets;
+
+    /**
+     * @throws IOException if the sections don't fit in the file
+     */
+    MappedHierarchy(ByteBuffer buffer, Object[] items, int maxZoom) throws IOException {
+      mBuffer = buffer;
+      mItems = items;
+      mSections = new int[maxZoom + 1];
+      mClusterSets = new ArrayList<>(Collections.<Set<MFCluster<T>>>nCopies(maxZoom + 1, null));
+      long offset = HEADER_BYTES;
+      for (int zoom = 0; zoom <= maxZoom; zoom++) {
+        if (offset + SECTION_HEADER_BYTES > buffer.capacity()) {
+          throw new IOException("Truncated file");
+        }
+        mSections[zoom] = (int) offset;
+        offset += SECTION_HEADER_BYTES
+          + (long) buffer.getInt((int) offset) * CLUSTER_BYTES
+          + (long) buffer.getInt((int) offset + 4) * INDEX_BYTES;
+      }
+      if (offset > buffer.capacity()) {
+        throw new IOException("Truncated file");
+      }
+    }
+
+    Set<MFCluster<T>> getClusters(int zoom) {
+      synchronized (this) {
+        if (mClusterSets.get(zoom) == null) {
+          final int section = mSections[zoom];
+          final int clusterCount = mBuffer.getInt(section);
+          final int indexes = section + SECTION_HEADER_BYTES + clusterCount * CLUSTER_BYTES;
+          final Set<MFCluster<T>> clusters = new HashSet<>(clusterCount * 2);
+          for (int i = 0; i < clusterCount; i++) {
+            clusters.add(new MappedCluster<T>(mBuffer, mItems,
+              section + SECTION_HEADER_BYTES + i * CLUSTER_BYTES, indexes));
+          }
+          mClusterSets.set(zoom, Collections.unmodifiableSet(clusters));
+        }
+        return mClusterSets.get(zoom);
+      }
+    }
+  }
+
+  /**
+   * A cluster whose position and items are read from a mapped file.
+   */
+  private static final class MappedCluster<T extends MFClusterItem> implements MFCluster<T> {
+    private final ByteBuffer mBuffer;
+    private final Object[] mItems;
+    private final int mOffset;
+    private final int mIndexes;
+    private MFLocationCoordinate mPosition;
+
+    /**
+     * @param offset  the offset of the cluster in the file
+     * @param indexes the offset of the item indexes of the cluster's zoom in the file
+     */
+    MappedCluster(ByteBuffer buffer, Object[] items, int offset, int indexes) {
+      mBuffer = buffer;
+      mItems = items;
+      mOffset = offset;
+      mIndexes = indexes;
+    }
+
+    @Override
+    public MFLocationCoordinate getPosition() {
+      if (mPosition == null) {
+        mPosition = new MFLocationCoordinate(mBuffer.getDouble(mOffset), mBuffer.getDouble(mOffset + 8));
+      }
+      return mPosition;
+    }
+
+    @Override
+    public Collection<T> getItems() {
+      final int start = mBuffer.getInt(mOffset + 16);
+      final int size = getSize();
+      return new AbstractList<T>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+          if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException();
+          }
+          return (T) mItems[mBuffer.getInt(mIndexes + (start + index) * INDEX_BYTES)];
+        }
+
+        @Override
+        public int size() {
+          return size;
+        }
+      };
+    }
+
+    @Override
+    public int getSize() {
+      return mBuffer.getInt(mOffset + 20);
+    }
+
+    @Override
+    public String toString() {
+      return "MappedCluster{" +
+        "mPosition=" + getPosition() +
+        ", mSize=" + getSize() +
+        '}';
+    }
+
+    @Override
+    public int hashCode() {
+      return mOffset;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof MappedCluster<?>)) {
+        return false;
+      }
+      final MappedCluster<?> cluster = (MappedCluster<?>) other;
+      return cluster.mBuffer == mBuffer && cluster.mOffset == mOffset;
+    }
+  }
+}
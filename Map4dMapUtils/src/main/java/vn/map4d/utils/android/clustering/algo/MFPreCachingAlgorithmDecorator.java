@@ -1,101 +1,507 @@
 package vn.map4d.utils.android.clustering.algo;
 
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
 import androidx.collection.LruCache;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import vn.map4d.types.MFLocationCoordinate;
 import vn.map4d.utils.android.clustering.MFCluster;
 import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+import vn.map4d.utils.android.quadtree.PointQuadTree;
 
 /**
  * Optimistically fetch clusters for adjacent zoom levels, caching them as necessary.
+ * <p/>
+ * Clusters of each zoom are computed at most once at a time: a request for a zoom which is being
+ * prefetched waits for the prefetch, or runs it if it hasn't started yet. Prefetches run on a
+ * bounded executor, and those which haven't started are cancelled once the requested zoom moves
+ * away from them.
+ * <p/>
+ * By default a change to the items evicts the cached clusters. If the wrapped algorithm is a
+ * {@link MFLocalAlgorithm}, a small change only evicts the zooms where it may change clusters: an
+ * item added or removed with no other item within the zoom's span is patched into the cached
+ * clusters as a cluster of its own. With {@link #setIncrementalClustering(boolean)}, small
+ * changes are patched into the cached clusters at every zoom instead. Either way changes are also
+ * patched into clusters being computed while they are made.
+ * <p/>
+ * The cache is bounded by the estimated memory its clusters retain, see
+ * {@link #setMaxCacheSize(int)}. Register the decorator with
+ * {@link android.content.Context#registerComponentCallbacks} to shrink the cache when the system
+ * runs low on memory.
  */
-public class MFPreCachingAlgorithmDecorator<T extends MFClusterItem> extends MFAbstractAlgorithm<T> {
+public class MFPreCachingAlgorithmDecorator<T extends MFClusterItem> extends MFAbstractAlgorithm<T>
+  implements ComponentCallbacks2 {
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+  /**
+   * Changes with more items than this evict the cache, as clustering again is then cheaper than
+   * patching.
+   */
+  private static final int MAX_INCREMENTAL_CHANGES = 256;
+  private static final int DEFAULT_PREFETCH_DEPTH = 1;
+  /**
+   * Estimated bytes retained by a cached cluster, with its item collection and position.
+   */
+  private static final int BYTES_PER_CLUSTER = 96;
+  /**
+   * Estimated bytes retained by each item of a cached cluster, for its entry in the cluster's item
+   * collection. Items themselves are owned by the algorithm.
+   */
+  private static final int BYTES_PER_ITEM = 40;
+  /**
+   * Estimated bytes added by the indexes of patched clusters, per cluster and per item.
+   */
+  private static final int BYTES_PER_INDEXED_CLUSTER = 112;
+  private static final int BYTES_PER_INDEXED_ITEM = 48;
+  /**
+   * Share of the maximum heap the cache may retain by default.
+   */
+  private static final int DEFAULT_HEAP_FRACTION = 16;
+
   private final MFAlgorithm<T> mAlgorithm;
 
-  // TODO: evaluate maxSize parameter for LruCache.
-  private final LruCache<Integer, Set<? extends MFCluster<T>>> mCache = new LruCache<Integer, Set<? extends MFCluster<T>>>(5);
+  /**
+   * Cached clusters by zoom, weighed in estimated bytes. Only trimmed by {@link #trimCache()}, so
+   * that the most recently requested zoom is kept whatever its weight.
+   */
+  private final LruCache<Integer, CachedClusters> mCache = new LruCache<Integer, CachedClusters>(Integer.MAX_VALUE) {
+    @Override
+    protected int sizeOf(Integer zoom, CachedClusters cached) {
+      return cached.mWeight;
+    }
+  };
   private final ReadWriteLock mCacheLock = new ReentrantReadWriteLock();
-  private final Executor mExecutor = Executors.newCachedThreadPool();
+  /**
+   * The estimated bytes the cached clusters may retain. Any write should be done with the write
+   * lock held, and any read with either lock held.
+   */
+  private int mMaxCacheSize = getDefaultCacheSize();
+  /**
+   * The zoom of the latest request, which is kept in the cache rather than the prefetched zooms.
+   */
+  private volatile int mRequestedZoom = -1;
+  private final Executor mExecutor;
+  /**
+   * Computations in flight, by zoom. Any access should be synchronized on mTasks.
+   */
+  private final Map<Integer, ZoomTask> mTasks = new HashMap<>();
+  /**
+   * Incremented, with the write lock held, whenever the items change, so that clusters computed
+   * from older items are not cached as they are.
+   */
+  private volatile long mGeneration;
+  /**
+   * Number of computations running, which may be working on older items.
+   */
+  private final AtomicInteger mRunning = new AtomicInteger();
+  /**
+   * The changes patched into the cache after generation mLogStart, so that they can also be
+   * patched into clusters computed meanwhile. Any access should be done with the write lock held.
+   */
+  private final List<Change> mChanges = new ArrayList<>();
+  private int mLoggedItems;
+  private long mLogStart;
+  private volatile int mPrefetchDepth = DEFAULT_PREFETCH_DEPTH;
+  private volatile boolean mIncremental;
 
+  /**
+   * Creates a decorator which prefetches on a single low priority background thread.
+   */
   public MFPreCachingAlgorithmDecorator(MFAlgorithm<T> algorithm) {
+    this(algorithm, newDefaultExecutor());
+  }
+
+  /**
+   * @param algorithm the algorithm computing the clusters
+   * @param executor  the executor prefetches run on. It should be bounded, as prefetches compete
+   *                  with the clusters being requested.
+   */
+  public MFPreCachingAlgorithmDecorator(MFAlgorithm<T> algorithm, Executor executor) {
     mAlgorithm = algorithm;
+    mExecutor = executor;
+  }
+
+  private static Executor newDefaultExecutor() {
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, "MFPreCachingAlgorithmDecorator");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private static int getDefaultCacheSize() {
+    return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / DEFAULT_HEAP_FRACTION);
+  }
+
+  /**
+   * Sets how many zooms above and below the requested zoom are prefetched. Defaults to 1.
+   *
+   * @param depth the number of zooms prefetched on each side, or 0 to disable prefetching
+   */
+  public void setPrefetchDepth(int depth) {
+    mPrefetchDepth = Math.max(0, depth);
+  }
+
+  /**
+   * Sets the estimated memory the cached clusters may retain, evicting the least recently used
+   * zooms beyond it. Defaults to a sixteenth of the maximum heap size.
+   * <p/>
+   * The most recently requested zoom is kept even if its clusters alone exceed the budget, so that
+   * requesting it again doesn't compute them again. Prefetched clusters which don't fit alongside
+   * it are not cached.
+   *
+   * @param bytes the budget, in bytes
+   */
+  public void setMaxCacheSize(int bytes) {
+    mCacheLock.writeLock().lock();
+    try {
+      mMaxCacheSize = Math.max(1, bytes);
+      trimCache();
+    } finally {
+      mCacheLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Sets the budget of the cache as a number of items, counting each time an item is cached at a
+   * zoom. This is a shorthand for {@link #setMaxCacheSize(int)}.
+   *
+   * @param items the number of cached items
+   */
+  public void setMaxCachedItems(int items) {
+    setMaxCacheSize((int) Math.min(Integer.MAX_VALUE, (long) items * (BYTES_PER_ITEM + BYTES_PER_INDEXED_ITEM)));
+  }
+
+  /**
+   * Shrinks the cache as the system asks for memory: to half its budget while the app is running
+   * or its UI is hidden, to a quarter when memory runs low or the app is in the background, and
+   * empties it when memory is critical or the app is likely to be killed. Later clusters fill the
+   * cache up to its budget again.
+   */
+  @Override
+  public void onTrimMemory(int level) {
+    mCacheLock.writeLock().lock();
+    try {
+      final int maxSize = mMaxCacheSize;
+      if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+        mCache.evictAll();
+      } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+        mCache.trimToSize(maxSize / 4);
+      } else {
+        mCache.trimToSize(maxSize / 2);
+      }
+    } finally {
+      mCacheLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void onLowMemory() {
+    onTrimMemory(TRIM_MEMORY_COMPLETE);
+  }
+
+  @Override
+  public void onConfigurationChanged(Configuration newConfig) {
+  }
+
+  /**
+   * Sets whether added, removed and updated items are patched into the cached clusters at every
+   * zoom, rather than evicting the zooms where they may change clusters, or every zoom if the
+   * wrapped algorithm is not a {@link MFLocalAlgorithm}.
+   * <p/>
+   * A patched item joins the nearest cached cluster within the zoom's span, or becomes a cluster of
+   * its own, and clusters keep their position. Clusters are then close to, but not exactly, what
+   * the wrapped algorithm would compute; they are computed again after larger changes or when a
+   * zoom leaves the cache.
+   *
+   * @param incremental true to patch cached clusters, false to evict the zooms a change may
+   *                    affect
+   */
+  public void setIncrementalClustering(boolean incremental) {
+    mIncremental = incremental;
   }
 
   @Override
   public boolean addItem(T item) {
-    boolean result = mAlgorithm.addItem(item);
-    if (result) {
-      clearCache();
+    mCacheLock.writeLock().lock();
+    try {
+      final Change change = newChange(Collections.<T>emptySet(), Collections.singleton(item));
+      boolean result = mAlgorithm.addItem(item);
+      if (result) {
+        onItemsChanged(change);
+      }
+      return result;
+    } finally {
+      mCacheLock.writeLock().unlock();
     }
-    return result;
   }
 
   @Override
   public boolean addItems(Collection<T> items) {
-    boolean result = mAlgorithm.addItems(items);
-    if (result) {
-      clearCache();
+    mCacheLock.writeLock().lock();
+    try {
+      final Change change = newChange(Collections.<T>emptySet(), items);
+      boolean result = mAlgorithm.addItems(items);
+      if (result) {
+        onItemsChanged(change);
+      }
+      return result;
+    } finally {
+      mCacheLock.writeLock().unlock();
     }
-    return result;
   }
 
   @Override
   public void clearItems() {
-    mAlgorithm.clearItems();
-    clearCache();
+    mCacheLock.writeLock().lock();
+    try {
+      mAlgorithm.clearItems();
+      clearCache();
+    } finally {
+      mCacheLock.writeLock().unlock();
+    }
   }
 
   @Override
   public boolean removeItem(T item) {
-    boolean result = mAlgorithm.removeItem(item);
-    if (result) {
-      clearCache();
+    mCacheLock.writeLock().lock();
+    try {
+      final Change change = newChange(Collections.singleton(item), Collections.<T>emptySet());
+      boolean result = mAlgorithm.removeItem(item);
+      if (result) {
+        onItemsChanged(change);
+      }
+      return result;
+    } finally {
+      mCacheLock.writeLock().unlock();
     }
-    return result;
   }
 
   @Override
   public boolean removeItems(Collection<T> items) {
-    boolean result = mAlgorithm.removeItems(items);
-    if (result) {
-      clearCache();
+    mCacheLock.writeLock().lock();
+    try {
+      final Change change = newChange(items, Collections.<T>emptySet());
+      boolean result = mAlgorithm.removeItems(items);
+      if (result) {
+        onItemsChanged(change);
+      }
+      return result;
+    } finally {
+      mCacheLock.writeLock().unlock();
     }
-    return result;
   }
 
   @Override
   public boolean updateItem(T item) {
-    boolean result = mAlgorithm.updateItem(item);
-    if (result) {
+    mCacheLock.writeLock().lock();
+    try {
+      final Change change = newChange(Collections.singleton(item), Collections.singleton(item));
+      boolean result = mAlgorithm.updateItem(item);
+      if (result) {
+        onItemsChanged(change);
+      }
+      return result;
+    } finally {
+      mCacheLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Starts recording a change before it is made to the wrapped algorithm. Must be called with the
+   * write lock held.
+   *
+   * @return the change, or null if it can't be patched into cached clusters
+   */
+  private Change newChange(Collection<T> removed, Collection<T> added) {
+    final boolean local = mAlgorithm instanceof MFLocalAlgorithm;
+    if (removed.size() + added.size() > MAX_INCREMENTAL_CHANGES || (!mIncremental && !local)) {
+      return null;
+    }
+    // Where the change is and how isolated it is only matters to clusters cached or being computed.
+    final boolean locate = !mIncremental && (mCache.size() > 0 || mRunning.get() > 0);
+    return new Change(removed, added, locate);
+  }
+
+  /**
+   * Patches or evicts the cached clusters after items changed. Must be called with the write lock
+   * held, so that the cache sees changes in the order they are made.
+   *
+   * @param change the change, as returned by {@link #newChange} before it was made
+   */
+  private void onItemsChanged(Change change) {
+    if (change == null) {
       clearCache();
+      return;
     }
-    return result;
+    change.locateAdded();
+    mGeneration++;
+    change.mGeneration = mGeneration;
+    forgetStartedTasks();
+    // Patching changes the weight of the clusters, so cache them again. The snapshot is ordered
+    // from least to most recently used, so this keeps their order.
+    for (Map.Entry<Integer, CachedClusters> entry : mCache.snapshot().entrySet()) {
+      final CachedClusters cached = entry.getValue();
+      mCache.remove(entry.getKey());
+      if (change.patch(cached)) {
+        cached.measure();
+        mCache.put(entry.getKey(), cached);
+      }
+    }
+    trimCache();
+    // A computation which starts from now on reads the new generation, so the change only needs
+    // to be logged for those already running.
+    if (mRunning.get() == 0) {
+      resetLog();
+    } else {
+      mChanges.add(change);
+      mLoggedItems += change.mRemoved.size() + change.mAdded.size();
+      if (mLoggedItems > MAX_INCREMENTAL_CHANGES) {
+        resetLog();
+      }
+    }
+  }
+
+  /**
+   * Evicts the least recently used zooms beyond the budget, but always keeps the most recently
+   * requested one. Must be called with the write lock held.
+   */
+  private void trimCache() {
+    // Getting the requested zoom makes it the most recently used, so it is evicted last.
+    final CachedClusters requested = mCache.get(mRequestedZoom);
+    mCache.trimToSize(requested == null ? mMaxCacheSize : Math.max(mMaxCacheSize, requested.mWeight));
   }
 
+  /**
+   * Whether clusters of a zoom which wasn't requested last fit in the cache alongside those of the
+   * requested zoom. Must be called with the write lock held.
+   */
+  private boolean fitsBesideRequested(CachedClusters cached) {
+    final CachedClusters requested = mCache.snapshot().get(mRequestedZoom);
+    return requested == null || (long) requested.mWeight + cached.mWeight <= mMaxCacheSize;
+  }
+
+  /**
+   * Must be called with the write lock held.
+   */
   private void clearCache() {
+    mGeneration++;
+    forgetStartedTasks();
+    resetLog();
     mCache.evictAll();
   }
 
+  /**
+   * Forgets the changes logged so far. Clusters computed from items older than the current
+   * generation are then no longer cached.
+   */
+  private void resetLog() {
+    mChanges.clear();
+    mLoggedItems = 0;
+    mLogStart = mGeneration;
+  }
+
+  /**
+   * Forgets the computations which have started, as they may work on older items, so that later
+   * requests compute the clusters again. Requests already waiting for them still get their
+   * clusters. Computations which haven't started will read the current items.
+   */
+  private void forgetStartedTasks() {
+    synchronized (mTasks) {
+      final Iterator<ZoomTask> iterator = mTasks.values().iterator();
+      while (iterator.hasNext()) {
+        if (iterator.next().mStarted) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
   @Override
   public Set<? extends MFCluster<T>> getClusters(double zoom) {
-    int discreteZoom = (int) zoom;
-    Set<? extends MFCluster<T>> results = getClustersInternal(discreteZoom);
-    // TODO: Check if requests are already in-flight.
-    if (mCache.get(discreteZoom + 1) == null) {
-      mExecutor.execute(new PrecacheRunnable(discreteZoom + 1));
+    final int discreteZoom = (int) zoom;
+    final int depth = mPrefetchDepth;
+    // Prefetches which haven't started and are no longer near the requested zoom are stale.
+    synchronized (mTasks) {
+      for (ZoomTask task : new ArrayList<>(mTasks.values())) {
+        if (!task.mRequested && Math.abs(task.mZoom - discreteZoom) > depth) {
+          task.cancel(false);
+        }
+      }
     }
-    if (mCache.get(discreteZoom - 1) == null) {
-      mExecutor.execute(new PrecacheRunnable(discreteZoom - 1));
+    final Set<? extends MFCluster<T>> results = getClustersInternal(discreteZoom);
+    if (!hasRoomBesideRequested()) {
+      // Prefetched clusters wouldn't be cached.
+      return results;
+    }
+    // Prefetch the nearest zooms first.
+    for (int distance = 1; distance <= depth; distance++) {
+      prefetch(discreteZoom + distance);
+      prefetch(discreteZoom - distance);
     }
     return results;
   }
 
+  /**
+   * Whether the cache has room left beside the clusters of the requested zoom.
+   */
+  private boolean hasRoomBesideRequested() {
+    mCacheLock.readLock().lock();
+    try {
+      final CachedClusters requested = mCache.snapshot().get(mRequestedZoom);
+      return requested == null || requested.mWeight < mMaxCacheSize;
+    } finally {
+      mCacheLock.readLock().unlock();
+    }
+  }
+
+  private void prefetch(int zoom) {
+    if (zoom < 0 || getCached(zoom) != null) {
+      return;
+    }
+    final ZoomTask task;
+    synchronized (mTasks) {
+      if (mTasks.containsKey(zoom)) {
+        return;
+      }
+      task = new ZoomTask(zoom);
+      mTasks.put(zoom, task);
+    }
+    mExecutor.execute(task);
+  }
+
   @Override
   public Collection<T> getItems() {
     return mAlgorithm.getItems();
@@ -108,44 +514,551 @@ public class MFPreCachingAlgorithmDecorator<T extends MFClusterItem> extends MFA
 
   @Override
   public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
-    mAlgorithm.setMaxDistanceBetweenClusteredItems(maxDistance);
-    clearCache();
+    mCacheLock.writeLock().lock();
+    try {
+      mAlgorithm.setMaxDistanceBetweenClusteredItems(maxDistance);
+      clearCache();
+    } finally {
+      mCacheLock.writeLock().unlock();
+    }
   }
 
-  private Set<? extends MFCluster<T>> getClustersInternal(int discreteZoom) {
-    Set<? extends MFCluster<T>> results;
+  private Set<? extends MFCluster<T>> getCached(int discreteZoom) {
     mCacheLock.readLock().lock();
-    results = mCache.get(discreteZoom);
-    mCacheLock.readLock().unlock();
+    try {
+      final CachedClusters cached = mCache.get(discreteZoom);
+      return cached == null ? null : cached.getClusters();
+    } finally {
+      mCacheLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the cached clusters of a zoom, or computes them on the calling thread, outside of the
+   * cache lock. If they are already being computed, waits for that computation instead, or runs it
+   * if it is a prefetch which hasn't started.
+   */
+  private Set<? extends MFCluster<T>> getClustersInternal(int discreteZoom) {
+    mRequestedZoom = discreteZoom;
+    while (true) {
+      final Set<? extends MFCluster<T>> cached = getCached(discreteZoom);
+      if (cached != null) {
+        return cached;
+      }
+      ZoomTask task;
+      synchronized (mTasks) {
+        task = mTasks.get(discreteZoom);
+        if (task == null) {
+          task = new ZoomTask(discreteZoom);
+          mTasks.put(discreteZoom, task);
+        }
+        task.mRequested = true;
+      }
+      // Does nothing if the task has already started, or was cancelled before it was requested.
+      task.run();
+      try {
+        return task.get();
+      } catch (CancellationException e) {
+        // The task was a stale prefetch; look again.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return mAlgorithm.getClusters(discreteZoom);
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new RuntimeException(cause);
+      }
+    }
+  }
 
-    if (results == null) {
+  /**
+   * Computes the clusters of a zoom and caches them, patched with the changes made in the
+   * meantime if they are logged.
+   */
+  private Set<? extends MFCluster<T>> computeClusters(int zoom) {
+    mRunning.incrementAndGet();
+    try {
+      final long generation = mGeneration;
+      final Set<? extends MFCluster<T>> clusters = mAlgorithm.getClusters(zoom);
+      final CachedClusters cached = new CachedClusters(zoom, clusters);
       mCacheLock.writeLock().lock();
-      results = mCache.get(discreteZoom);
-      if (results == null) {
-        results = mAlgorithm.getClusters(discreteZoom);
-        mCache.put(discreteZoom, results);
+      try {
+        if (generation >= mLogStart) {
+          // Changes the clusters already reflect are patched again, which leaves them unchanged.
+          boolean patched = true;
+          for (Change change : mChanges) {
+            if (patched && change.mGeneration > generation) {
+              patched = change.patch(cached);
+            }
+          }
+          if (!patched) {
+            return clusters;
+          }
+          cached.measure();
+          // A prefetch mustn't evict the zoom being looked at.
+          if (zoom == mRequestedZoom || fitsBesideRequested(cached)) {
+            mCache.put(zoom, cached);
+            trimCache();
+          }
+          return cached.getClusters();
+        }
+      } finally {
+        mCacheLock.writeLock().unlock();
       }
-      mCacheLock.writeLock().unlock();
+      return clusters;
+    } finally {
+      mRunning.decrementAndGet();
     }
-    return results;
   }
 
-  private class PrecacheRunnable implements Runnable {
+  /**
+   * The computation of the clusters of a zoom, run by a request or as a prefetch.
+   */
+  private class ZoomTask extends FutureTask<Set<? extends MFCluster<T>>> {
     private final int mZoom;
+    /**
+     * Whether a request is waiting for this task, in which case it is never cancelled. Any
+     * access should be synchronized on mTasks.
+     */
+    private boolean mRequested;
+    private volatile boolean mStarted;
 
-    public PrecacheRunnable(int zoom) {
+    ZoomTask(final int zoom) {
+      super(new Callable<Set<? extends MFCluster<T>>>() {
+        @Override
+        public Set<? extends MFCluster<T>> call() {
+          return computeClusters(zoom);
+        }
+      });
       mZoom = zoom;
     }
 
     @Override
     public void run() {
-      try {
-        // Wait between 500 - 1000 ms.
-        Thread.sleep((long) (Math.random() * 500 + 500));
-      } catch (InterruptedException e) {
-        // ignore. keep going.
+      // Mark the task started before it reads the generation, so that a change either forgets
+      // this task or is seen by it.
+      mStarted = true;
+      super.run();
+    }
+
+    @Override
+    protected void done() {
+      synchronized (mTasks) {
+        if (mTasks.get(mZoom) == this) {
+          mTasks.remove(mZoom);
+        }
+      }
+    }
+  }
+
+  /**
+   * The clusters of one zoom. Clusters handed out are never modified: patches replace the
+   * clusters they change with copies, which further patches modify in place until the next call
+   * to {@link #getClusters()} hands them out in a new set.
+   * <p/>
+   * Patches must be made with the write lock held.
+   */
+  private class CachedClusters {
+    private final int mZoom;
+    private Set<? extends MFCluster<T>> mClusters;
+
+    /**
+     * The index entries of the patched clusters, by cluster identity so that replacing a cluster
+     * doesn't hash its items. Null until the first patch, along with the index below.
+     */
+    private Map<MFCluster<T>, ClusterEntry<T>> mPatched;
+    /**
+     * The patched clusters which haven't been handed out yet, by identity.
+     */
+    private Set<MFCluster<T>> mUnpublished;
+    private boolean mDirty;
+    private PointQuadTree<ClusterEntry<T>> mIndex;
+    /**
+     * The entries of the clusters of the items. Null until the first incremental patch.
+     */
+    private Map<T, ClusterEntry<T>> mEntries;
+    private int mClusterCount;
+    private int mItemCount;
+    /**
+     * The estimated bytes retained, as measured when last put into the cache.
+     */
+    private int mWeight;
+
+    CachedClusters(int zoom, Set<? extends MFCluster<T>> clusters) {
+      mZoom = zoom;
+      mClusters = clusters;
+      mClusterCount = clusters.size();
+      for (MFCluster<T> cluster : clusters) {
+        mItemCount += cluster.getSize();
+      }
+    }
+
+    /**
+     * Updates the weight of these clusters. Must not be called while they are in the cache, which
+     * expects their weight to stay the same.
+     */
+    synchronized void measure() {
+      long weight = (long) mClusterCount * BYTES_PER_CLUSTER + (long) mItemCount * BYTES_PER_ITEM;
+      if (mIndex != null) {
+        weight += (long) mClusterCount * BYTES_PER_INDEXED_CLUSTER;
+      }
+      if (mEntries != null) {
+        weight += (long) mItemCount * BYTES_PER_INDEXED_ITEM;
+      }
+      mWeight = (int) Math.min(Integer.MAX_VALUE, weight);
+    }
+
+    synchronized Set<? extends MFCluster<T>> getClusters() {
+      if (mDirty) {
+        mClusters = Collections.unmodifiableSet(new HashSet<>(mPatched.keySet()));
+        mUnpublished.clear();
+        mDirty = false;
+      }
+      return mClusters;
+    }
+
+    /**
+     * Adds the item to the nearest cluster whose center is within the zoom's span, or to a new
+     * cluster.
+     */
+    synchronized void add(T item, int maxDistance) {
+      ensureItemsIndexed();
+      if (mEntries.containsKey(item)) {
+        return;
+      }
+      final Point point = PROJECTION.toPoint(item.getPosition());
+      final double halfSpan = maxDistance / Math.pow(2, mZoom) / 256 / 2;
+      final NearestVisitor<T> nearest = new NearestVisitor<>(point);
+      mIndex.search(
+        point.x - halfSpan, point.x + halfSpan,
+        point.y - halfSpan, point.y + halfSpan,
+        nearest);
+
+      final ClusterEntry<T> entry;
+      final MFStaticCluster<T> cluster;
+      if (nearest.mEntry == null) {
+        cluster = new MFStaticCluster<>(item.getPosition());
+        entry = addCluster(point, cluster);
+      } else {
+        entry = nearest.mEntry;
+        cluster = getWritableCluster(entry);
+      }
+      cluster.add(item);
+      mEntries.put(item, entry);
+      mItemCount++;
+      mDirty = true;
+    }
+
+    /**
+     * Removes the item from its cluster, dropping the cluster if it was the last item.
+     */
+    synchronized void remove(T item) {
+      ensureItemsIndexed();
+      final ClusterEntry<T> entry = mEntries.remove(item);
+      if (entry == null) {
+        return;
+      }
+      mItemCount--;
+      if (entry.mCluster.getSize() <= 1) {
+        removeCluster(entry);
+      } else {
+        getWritableCluster(entry).remove(item);
+      }
+      mDirty = true;
+    }
+
+    /**
+     * Patches a change into these clusters if it is isolated from the other items at this zoom:
+     * each removed item was a cluster of its own, each added item becomes one, and the other
+     * clusters stay as they are. Changes these clusters already reflect leave them unchanged.
+     *
+     * @return false if the change may affect other clusters, in which case these clusters must no
+     * longer be used
+     */
+    synchronized boolean patchIsolated(Change change, int maxDistance) {
+      final double span = maxDistance / Math.pow(2, mZoom) / 256;
+      if (!(span < change.mIsolation)) {
+        return false;
+      }
+      ensureIndexed();
+      for (int i = 0; i < change.mRemoved.size(); i++) {
+        final T item = change.mRemoved.get(i);
+        final ClusterEntry<T> entry = findSingleton(item, change.mRemovedPoints.get(i), span / 2);
+        if (entry != null) {
+          removeCluster(entry);
+          if (mEntries != null) {
+            mEntries.remove(item);
+          }
+          mItemCount--;
+          mDirty = true;
+        }
+      }
+      for (int i = 0; i < change.mAdded.size(); i++) {
+        final T item = change.mAdded.get(i);
+        final Point point = change.mAddedPoints.get(i);
+        if (findSingleton(item, point, span / 2) != null) {
+          continue;
+        }
+        final MFStaticCluster<T> cluster = new MFStaticCluster<>(change.mAddedPositions.get(i));
+        cluster.add(item);
+        final ClusterEntry<T> entry = addCluster(point, cluster);
+        if (mEntries != null) {
+          mEntries.put(item, entry);
+        }
+        mItemCount++;
+        mDirty = true;
+      }
+      return true;
+    }
+
+    /**
+     * Returns the entry of the cluster made of only the given item, looking for it around the
+     * point the item is clustered at, or null if there is none.
+     */
+    private ClusterEntry<T> findSingleton(T item, Point point, double halfSpan) {
+      final SingletonVisitor<T> singleton = new SingletonVisitor<>(item);
+      mIndex.search(
+        point.x - halfSpan, point.x + halfSpan,
+        point.y - halfSpan, point.y + halfSpan,
+        singleton);
+      return singleton.mEntry;
+    }
+
+    private ClusterEntry<T> addCluster(Point point, MFStaticCluster<T> cluster) {
+      final ClusterEntry<T> entry = new ClusterEntry<T>(point, cluster);
+      mIndex.add(entry);
+      mPatched.put(cluster, entry);
+      mUnpublished.add(cluster);
+      mClusterCount++;
+      return entry;
+    }
+
+    private void removeCluster(ClusterEntry<T> entry) {
+      mPatched.remove(entry.mCluster);
+      mUnpublished.remove(entry.mCluster);
+      mIndex.remove(entry);
+      mClusterCount--;
+    }
+
+    /**
+     * Returns the cluster of an entry if it hasn't been handed out, or else replaces it with a
+     * copy which can be modified.
+     */
+    private MFStaticCluster<T> getWritableCluster(ClusterEntry<T> entry) {
+      if (mUnpublished.contains(entry.mCluster)) {
+        return (MFStaticCluster<T>) entry.mCluster;
+      }
+      final MFStaticCluster<T> copy = copyOf(entry.mCluster);
+      mPatched.remove(entry.mCluster);
+      mPatched.put(copy, entry);
+      mUnpublished.add(copy);
+      entry.mCluster = copy;
+      return copy;
+    }
+
+    /**
+     * Indexes the clusters by position.
+     */
+    private void ensureIndexed() {
+      if (mIndex != null) {
+        return;
+      }
+      mPatched = new IdentityHashMap<>();
+      mUnpublished = Collections.newSetFromMap(new IdentityHashMap<MFCluster<T>, Boolean>());
+      mIndex = new PointQuadTree<>(0, 1, 0, 1);
+      for (MFCluster<T> cluster : mClusters) {
+        final ClusterEntry<T> entry = new ClusterEntry<T>(PROJECTION.toPoint(cluster.getPosition()), cluster);
+        mPatched.put(cluster, entry);
+        mIndex.add(entry);
+      }
+    }
+
+    /**
+     * Indexes the clusters by position and by item, which finds the items of every cluster.
+     */
+    private void ensureItemsIndexed() {
+      if (mEntries != null) {
+        return;
+      }
+      ensureIndexed();
+      mEntries = new HashMap<>();
+      for (ClusterEntry<T> entry : mPatched.values()) {
+        for (T item : entry.mCluster.getItems()) {
+          mEntries.put(item, entry);
+        }
+      }
+    }
+  }
+
+  /**
+   * Items removed and added by one change.
+   */
+  private class Change {
+    private long mGeneration;
+    private final List<T> mRemoved;
+    private final List<T> mAdded;
+    /**
+     * Unless the change isn't located: the projected points the removed items were clustered at
+     * before the change, and those of the added items and their positions after it.
+     */
+    private final List<Point> mRemovedPoints = new ArrayList<>();
+    private final List<Point> mAddedPoints = new ArrayList<>();
+    private final List<MFLocationCoordinate> mAddedPositions = new ArrayList<>();
+    /**
+     * A lower bound of the distance between any changed item and any other item, as the larger of
+     * their distances along x and y in a world of width 1, or 0 if the change isn't located.
+     */
+    private double mIsolation;
+
+    /**
+     * Records the items of a change which is about to be made, along with where the removed items
+     * are if the change is located.
+     */
+    Change(Collection<T> removed, Collection<T> added, boolean locate) {
+      if (!locate) {
+        // Copy the items, as the caller may reuse its collections.
+        mRemoved = new ArrayList<>(removed);
+        mAdded = new ArrayList<>(added);
+        return;
+      }
+      final MFLocalAlgorithm<T> algorithm = (MFLocalAlgorithm<T>) mAlgorithm;
+      mRemoved = new ArrayList<>(removed.size());
+      mAdded = new ArrayList<>(added.size());
+      mIsolation = Double.POSITIVE_INFINITY;
+      for (T item : removed) {
+        final Point point = algorithm.getIndexedPoint(item);
+        if (point != null) {
+          mRemoved.add(item);
+          mRemovedPoints.add(point);
+          isolate(algorithm, item);
+        }
+      }
+      for (T item : added) {
+        // Items already in the algorithm are left as they are, unless they are updated.
+        if (mRemoved.contains(item) || algorithm.getIndexedPoint(item) == null) {
+          mAdded.add(item);
+        }
+      }
+    }
+
+    /**
+     * Records where the added items are, once the change is made.
+     */
+    void locateAdded() {
+      if (mIsolation == 0) {
+        return;
+      }
+      final MFLocalAlgorithm<T> algorithm = (MFLocalAlgorithm<T>) mAlgorithm;
+      for (T item : mAdded) {
+        final Point point = algorithm.getIndexedPoint(item);
+        if (point == null) {
+          mIsolation = 0;
+          return;
+        }
+        mAddedPoints.add(point);
+        mAddedPositions.add(item.getPosition());
+        isolate(algorithm, item);
+      }
+    }
+
+    private void isolate(MFLocalAlgorithm<T> algorithm, T item) {
+      if (mIsolation > 0) {
+        mIsolation = Math.min(mIsolation, algorithm.getDistanceToNearestItem(item));
+      }
+    }
+
+    /**
+     * @return false if the clusters could not be patched and must no longer be used
+     */
+    boolean patch(CachedClusters cached) {
+      final int maxDistance = mAlgorithm.getMaxDistanceBetweenClusteredItems();
+      if (!mIncremental) {
+        return cached.patchIsolated(this, maxDistance);
+      }
+      for (T item : mRemoved) {
+        cached.remove(item);
+      }
+      for (T item : mAdded) {
+        cached.add(item, maxDistance);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Copies a cluster.
+   */
+  private static <T extends MFClusterItem> MFStaticCluster<T> copyOf(MFCluster<T> cluster) {
+    final MFStaticCluster<T> copy = new MFStaticCluster<>(cluster.getPosition());
+    for (T item : cluster.getItems()) {
+      copy.add(item);
+    }
+    return copy;
+  }
+
+  /**
+   * A cached cluster, indexed by the projected position of its center.
+   */
+  private static class ClusterEntry<T extends MFClusterItem> implements PointQuadTree.Item {
+    private final Point mPoint;
+    private MFCluster<T> mCluster;
+
+    ClusterEntry(Point point, MFCluster<T> cluster) {
+      mPoint = point;
+      mCluster = cluster;
+    }
+
+    @Override
+    public Point getPoint() {
+      return mPoint;
+    }
+  }
+
+  /**
+   * Keeps the visited entry whose cluster is made of only the given item.
+   */
+  private static class SingletonVisitor<T extends MFClusterItem> implements PointQuadTree.Visitor<ClusterEntry<T>> {
+    private final T mItem;
+    private ClusterEntry<T> mEntry;
+
+    SingletonVisitor(T item) {
+      mItem = item;
+    }
+
+    @Override
+    public void visit(ClusterEntry<T> entry) {
+      if (entry.mCluster.getSize() == 1 && entry.mCluster.getItems().contains(mItem)) {
+        mEntry = entry;
+      }
+    }
+  }
+
+  /**
+   * Keeps the visited entry closest to a point.
+   */
+  private static class NearestVisitor<T extends MFClusterItem> implements PointQuadTree.Visitor<ClusterEntry<T>> {
+    private final Point mPoint;
+    private ClusterEntry<T> mEntry;
+    private double mDistance = Double.POSITIVE_INFINITY;
+
+    NearestVisitor(Point point) {
+      mPoint = point;
+    }
+
+    @Override
+    public void visit(ClusterEntry<T> entry) {
+      final double dx = entry.mPoint.x - mPoint.x;
+      final double dy = entry.mPoint.y - mPoint.y;
+      final double distance = dx * dx + dy * dy;
+      if (distance < mDistance) {
+        mDistance = distance;
+        mEntry = entry;
       }
-      getClustersInternal(mZoom);
     }
   }
 }
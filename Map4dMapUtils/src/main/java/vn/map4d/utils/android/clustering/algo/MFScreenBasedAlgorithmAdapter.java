@@ -70,6 +70,20 @@ public class MFScreenBasedAlgorithmAdapter<T extends MFClusterItem> extends MFAb
     mAlgorithm.setMaxDistanceBetweenClusteredItems(maxDistance);
   }
 
+  /**
+   * Locks the wrapped algorithm, so that algorithms which don't need external locking (such as
+   * {@link MFSnapshotDistanceBasedAlgorithm}) aren't serialized by this adapter.
+   */
+  @Override
+  public void lock() {
+    mAlgorithm.lock();
+  }
+
+  @Override
+  public void unlock() {
+    mAlgorithm.unlock();
+  }
+
   @Override
   public void onCameraChange(MFCameraPosition cameraPosition) {
     // stub
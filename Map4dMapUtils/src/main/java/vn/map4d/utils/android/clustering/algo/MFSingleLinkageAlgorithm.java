@@ -0,0 +1,357 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+import vn.map4d.utils.android.quadtree.StaticKdIndex;
+
+/**
+ * A clustering algorithm which links items closer than the zoom's span, directly or through other
+ * items (single linkage clustering).
+ * <p/>
+ * High level algorithm:<br>
+ * 1. Build the minimum spanning tree of the projected items, leaving out edges longer than the
+ * span at zoom 0.<br>
+ * 2. For each requested zoom, join the items along the edges no longer than the zoom's span.
+ * Each resulting group of items is a cluster.
+ * <p/>
+ * The tree is built the first time clusters are requested after the items changed, after which
+ * {@link #getClusters(double)} is linear in the number of items. Clusters are hierarchical: every
+ * cluster at a zoom is made of whole clusters of the higher zooms. Clusters are placed at the
+ * centroid of their items.
+ */
+public class MFSingleLinkageAlgorithm<T extends MFClusterItem> extends MFAbstractAlgorithm<T> {
+  private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+
+  /**
+   * Any access to mTree should be synchronized on mItems.
+   */
+  private final Set<T> mItems = Collections.synchronizedSet(new LinkedHashSet<T>());
+  private int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
+  /**
+   * The spanning tree of the current items, or null if it needs to be built again.
+   */
+  private SpanningTree<T> mTree;
+
+  /**
+   * Adds an item to the algorithm
+   *
+   * @param item the item to be added
+   * @return true if the algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean addItem(T item) {
+    synchronized (mItems) {
+      return invalidateIf(mItems.add(item));
+    }
+  }
+
+  /**
+   * Adds a collection of items to the algorithm
+   *
+   * @param items the items to be added
+   * @return true if the algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean addItems(Collection<T> items) {
+    synchronized (mItems) {
+      return invalidateIf(mItems.addAll(items));
+    }
+  }
+
+  @Override
+  public void clearItems() {
+    synchronized (mItems) {
+      mItems.clear();
+      mTree = null;
+    }
+  }
+
+  /**
+   * Removes an item from the algorithm
+   *
+   * @param item the item to be removed
+   * @return true if this algorithm contained the specified element (or equivalently, if this
+   * algorithm changed as a result of the call).
+   */
+  @Override
+  public boolean removeItem(T item) {
+    synchronized (mItems) {
+      return invalidateIf(mItems.remove(item));
+    }
+  }
+
+  /**
+   * Removes a collection of items from the algorithm
+   *
+   * @param items the items to be removed
+   * @return true if this algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean removeItems(Collection<T> items) {
+    synchronized (mItems) {
+      return invalidateIf(mItems.removeAll(items));
+    }
+  }
+
+  /**
+   * Updates the provided item in the algorithm
+   *
+   * @param item the item to be updated
+   * @return true if the item existed in the algorithm and was updated, or false if the item did
+   * not exist in the algorithm and the algorithm contents remain unchanged.
+   */
+  @Override
+  public boolean updateItem(T item) {
+    boolean result;
+    synchronized (mItems) {
+      result = removeItem(item);
+      if (result) {
+        // Only add the item if it was removed (to help prevent accidental duplicates on map)
+        result = addItem(item);
+      }
+    }
+    return result;
+  }
+
+  private boolean invalidateIf(boolean changed) {
+    if (changed) {
+      mTree = null;
+    }
+    return changed;
+  }
+
+  @Override
+  public Set<? extends MFCluster<T>> getClusters(double zoom) {
+    final int discreteZoom = Math.max(0, (int) zoom);
+    final SpanningTree<T> tree;
+    final double span;
+    synchronized (mItems) {
+      if (mTree == null) {
+        mTree = new SpanningTree<>(new ArrayList<>(mItems), mMaxDistance / 256.0);
+      }
+      tree = mTree;
+      span = mMaxDistance / Math.pow(2, discreteZoom) / 256;
+    }
+    return tree.cut(span);
+  }
+
+  @Override
+  public Collection<T> getItems() {
+    synchronized (mItems) {
+      return new LinkedHashSet<>(mItems);
+    }
+  }
+
+  @Override
+  public int getMaxDistanceBetweenClusteredItems() {
+    return mMaxDistance;
+  }
+
+  @Override
+  public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+    synchronized (mItems) {
+      mMaxDistance = maxDistance;
+      mTree = null;
+    }
+  }
+
+  /**
+   * The minimum spanning forest of a fixed set of items, with edges sorted by length.
+   */
+  private static final class SpanningTree<T extends MFClusterItem> {
+    private final List<T> mItems;
+    private final double[] mXs;
+    private final double[] mYs;
+    private final int[] mFrom;
+    private final int[] mTo;
+    private final double[] mLengths;
+    private final int mEdgeCount;
+
+    /**
+     * Builds the tree with Boruvka's algorithm: every round links each group of items to its
+     * nearest item outside of the group, until no group has another within maxLength.
+     *
+     * @param maxLength the length above which edges are left out
+     */
+    SpanningTree(List<T> items, double maxLength) {
+      final int size = items.size();
+      mItems = items;
+      mXs = new double[size];
+      mYs = new double[size];
+      for (int i = 0; i < size; i++) {
+        final Point point = PROJECTION.toPoint(items.get(i).getPosition());
+        mXs[i] = point.x;
+        mYs[i] = point.y;
+      }
+
+      final StaticKdIndex index = new StaticKdIndex(mXs, mYs, size);
+      final int[] parents = new int[size];
+      final int[] labels = new int[size];
+      final double[] bestLengths = new double[size];
+      final int[] bestFrom = new int[size];
+      final int[] bestTo = new int[size];
+      final int[] from = new int[Math.max(0, size - 1)];
+      final int[] to = new int[from.length];
+      final double[] lengths = new double[from.length];
+      int edgeCount = 0;
+      for (int i = 0; i < size; i++) {
+        parents[i] = i;
+      }
+
+      boolean linked = size > 1;
+      while (linked) {
+        linked = false;
+        for (int i = 0; i < size; i++) {
+          // Items at the poles are projected to infinity and are never linked.
+          labels[i] = isFinite(i) ? find(parents, i) : -1;
+        }
+        final StaticKdIndex.Labels groups = index.label(labels);
+        Arrays.fill(bestLengths, maxLength);
+        Arrays.fill(bestTo, -1);
+        for (int i = 0; i < size; i++) {
+          final int group = labels[i];
+          if (group == -1) {
+            continue;
+          }
+          final int nearest = groups.nearestOutside(mXs[i], mYs[i], group, bestLengths[group]);
+          if (nearest == -1) {
+            continue;
+          }
+          final double length = distance(i, nearest);
+          if (bestTo[group] == -1 || length < bestLengths[group]) {
+            bestLengths[group] = length;
+            bestFrom[group] = i;
+            bestTo[group] = nearest;
+          }
+        }
+        for (int group = 0; group < size; group++) {
+          if (bestTo[group] == -1) {
+            continue;
+          }
+          final int a = find(parents, bestFrom[group]);
+          final int b = find(parents, bestTo[group]);
+          if (a == b) {
+            // Both groups picked the same, or an equally long, edge.
+            continue;
+          }
+          parents[a] = b;
+          from[edgeCount] = bestFrom[group];
+          to[edgeCount] = bestTo[group];
+          lengths[edgeCount] = bestLengths[group];
+          edgeCount++;
+          linked = true;
+        }
+      }
+
+      final Integer[] order = new Integer[edgeCount];
+      for (int i = 0; i < edgeCount; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Double.compare(lengths[a], lengths[b]);
+        }
+      });
+      mFrom = new int[edgeCount];
+      mTo = new int[edgeCount];
+      mLengths = new double[edgeCount];
+      for (int i = 0; i < edgeCount; i++) {
+        mFrom[i] = from[order[i]];
+        mTo[i] = to[order[i]];
+        mLengths[i] = lengths[order[i]];
+      }
+      mEdgeCount = edgeCount;
+    }
+
+    private boolean isFinite(int i) {
+      return !Double.isInfinite(mXs[i]) && !Double.isNaN(mXs[i])
+        && !Double.isInfinite(mYs[i]) && !Double.isNaN(mYs[i]);
+    }
+
+    private double distance(int a, int b) {
+      final double dx = mXs[a] - mXs[b];
+      final double dy = mYs[a] - mYs[b];
+      return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Clusters the items linked by edges no longer than span.
+     */
+    Set<MFCluster<T>> cut(double span) {
+      final int size = mItems.size();
+      final int[] parents = new int[size];
+      for (int i = 0; i < size; i++) {
+        parents[i] = i;
+      }
+      for (int e = 0; e < mEdgeCount && mLengths[e] <= span; e++) {
+        final int a = find(parents, mFrom[e]);
+        final int b = find(parents, mTo[e]);
+        if (a != b) {
+          parents[a] = b;
+        }
+      }
+
+      // Number the groups, then sum their positions to place the clusters.
+      final int[] groups = new int[size];
+      final int[] groupOfRoot = new int[size];
+      Arrays.fill(groupOfRoot, -1);
+      int groupCount = 0;
+      for (int i = 0; i < size; i++) {
+        final int root = find(parents, i);
+        if (groupOfRoot[root] == -1) {
+          groupOfRoot[root] = groupCount++;
+        }
+        groups[i] = groupOfRoot[root];
+      }
+      final int[] counts = new int[groupCount];
+      final double[] sumXs = new double[groupCount];
+      final double[] sumYs = new double[groupCount];
+      for (int i = 0; i < size; i++) {
+        final int group = groups[i];
+        counts[group]++;
+        sumXs[group] += mXs[i];
+        sumYs[group] += mYs[i];
+      }
+
+      final List<MFStaticCluster<T>> clusters = new ArrayList<>(groupCount);
+      for (int group = 0; group < groupCount; group++) {
+        clusters.add(null);
+      }
+      for (int i = 0; i < size; i++) {
+        final int group = groups[i];
+        MFStaticCluster<T> cluster = clusters.get(group);
+        if (cluster == null) {
+          cluster = new MFStaticCluster<>(counts[group] == 1
+            ? mItems.get(i).getPosition()
+            : PROJECTION.toLocationCoordinate(
+            new Point(sumXs[group] / counts[group], sumYs[group] / counts[group])));
+          clusters.set(group, cluster);
+        }
+        cluster.add(mItems.get(i));
+      }
+      return new HashSet<MFCluster<T>>(clusters);
+    }
+
+    private static int find(int[] parents, int i) {
+      while (parents[i] != i) {
+        parents[i] = parents[parents[i]];
+        i = parents[i];
+      }
+      return i;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.util.Collections;
+import java.util.Set;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+
+/**
+ * An immutable cluster of a single item, at the position the item had when the cluster was made.
+ */
+public final class MFSingletonCluster<T extends MFClusterItem> implements MFCluster<T> {
+  private final T mItem;
+  private final MFLocationCoordinate mPosition;
+  private final Set<T> mItems;
+
+  public MFSingletonCluster(T item, MFLocationCoordinate position) {
+    mItem = item;
+    mPosition = position;
+    mItems = Collections.singleton(item);
+  }
+
+  @Override
+  public MFLocationCoordinate getPosition() {
+    return mPosition;
+  }
+
+  @Override
+  public Set<T> getItems() {
+    return mItems;
+  }
+
+  @Override
+  public int getSize() {
+    return 1;
+  }
+
+  @Override
+  public String toString() {
+    return "SingletonCluster{" +
+      "mPosition=" + mPosition +
+      ", mItem=" + mItem +
+      '}';
+  }
+
+  @Override
+  public int hashCode() {
+    return mItem.hashCode();
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof MFSingletonCluster<?>)) {
+      return false;
+    }
+    final MFSingletonCluster<?> cluster = (MFSingletonCluster<?>) other;
+    return cluster.mItem.equals(mItem) && cluster.mPosition.equals(mPosition);
+  }
+}
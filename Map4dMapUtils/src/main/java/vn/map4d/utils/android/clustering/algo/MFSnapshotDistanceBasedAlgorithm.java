@@ -0,0 +1,296 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+import vn.map4d.utils.android.quadtree.PersistentPointQuadTree;
+import vn.map4d.utils.android.quadtree.PointQuadTree;
+
+/**
+ * A variant of {@link MFNonHierarchicalDistanceBasedAlgorithm} whose items are indexed by a
+ * {@link PersistentPointQuadTree}.
+ * <p/>
+ * Every mutation publishes a new immutable snapshot of the index, and {@link #getClusters(double)}
+ * works on whichever snapshot was current when it started. Clustering therefore never blocks item
+ * updates and item updates never block clustering, so {@link #lock()} and {@link #unlock()} are
+ * no-ops. Mutations are serialized internally.
+ * <p/>
+ * Candidate clusters are visited in quad tree order rather than in insertion order, which is the
+ * only difference with the clusters computed by {@link MFNonHierarchicalDistanceBasedAlgorithm}.
+ * To keep reads lock-free, use this algorithm directly rather than wrapped in a
+ * {@link MFPreCachingAlgorithmDecorator}.
+ */
+public class MFSnapshotDistanceBasedAlgorithm<T extends MFClusterItem> extends MFAbstractAlgorithm<T> {
+  private static final int DEFAULT_MAX_DISTANCE_AT_ZOOM = 100; // essentially 100 dp.
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+
+  /**
+   * Indexed items, keyed by the item they wrap. Only accessed while synchronized on mItems, which
+   * also serializes the publication of snapshots.
+   */
+  private final Map<T, SnapshotItem<T>> mItems = new LinkedHashMap<>();
+  /**
+   * Ordinals of removed items, which new items reuse. An ordinal is only reused once its item is
+   * removed, so the items of each snapshot have distinct ordinals. Only accessed while
+   * synchronized on mItems.
+   */
+  private int[] mFreeOrdinals = new int[16];
+  private int mFreeOrdinalCount;
+  private int mNextOrdinal;
+
+  /**
+   * The current snapshot. Only replaced while synchronized on mItems.
+   */
+  private volatile PersistentPointQuadTree<SnapshotItem<T>> mSnapshot =
+    new PersistentPointQuadTree<>(0, 1, 0, 1);
+  private volatile int mMaxDistance = DEFAULT_MAX_DISTANCE_AT_ZOOM;
+
+  /**
+   * Does nothing, readers work on snapshots and writers are serialized internally.
+   */
+  @Override
+  public void lock() {
+  }
+
+  /**
+   * Does nothing, readers work on snapshots and writers are serialized internally.
+   */
+  @Override
+  public void unlock() {
+  }
+
+  /**
+   * Adds an item to the algorithm
+   *
+   * @param item the item to be added
+   * @return true if the algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean addItem(T item) {
+    synchronized (mItems) {
+      if (mItems.containsKey(item)) {
+        return false;
+      }
+      final SnapshotItem<T> snapshotItem = new SnapshotItem<>(item, acquireOrdinal());
+      mItems.put(item, snapshotItem);
+      mSnapshot = mSnapshot.plus(snapshotItem);
+    }
+    return true;
+  }
+
+  /**
+   * Adds a collection of items to the algorithm
+   *
+   * @param items the items to be added
+   * @return true if the algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean addItems(Collection<T> items) {
+    final List<SnapshotItem<T>> added = new ArrayList<>(items.size());
+    synchronized (mItems) {
+      for (T item : items) {
+        if (!mItems.containsKey(item)) {
+          final SnapshotItem<T> snapshotItem = new SnapshotItem<>(item, acquireOrdinal());
+          mItems.put(item, snapshotItem);
+          added.add(snapshotItem);
+        }
+      }
+      mSnapshot = mSnapshot.plusAll(added);
+    }
+    return !added.isEmpty();
+  }
+
+  @Override
+  public void clearItems() {
+    synchronized (mItems) {
+      mItems.clear();
+      mFreeOrdinalCount = 0;
+      mNextOrdinal = 0;
+      mSnapshot = new PersistentPointQuadTree<>(0, 1, 0, 1);
+    }
+  }
+
+  /**
+   * Removes an item from the algorithm
+   *
+   * @param item the item to be removed
+   * @return true if this algorithm contained the specified element (or equivalently, if this
+   * algorithm changed as a result of the call).
+   */
+  @Override
+  public boolean removeItem(T item) {
+    synchronized (mItems) {
+      final SnapshotItem<T> snapshotItem = mItems.remove(item);
+      if (snapshotItem == null) {
+        return false;
+      }
+      mSnapshot = mSnapshot.minus(snapshotItem);
+      releaseOrdinal(snapshotItem.mOrdinal);
+    }
+    return true;
+  }
+
+  /**
+   * Removes a collection of items from the algorithm
+   *
+   * @param items the items to be removed
+   * @return true if this algorithm contents changed as a result of the call
+   */
+  @Override
+  public boolean removeItems(Collection<T> items) {
+    boolean result = false;
+    synchronized (mItems) {
+      PersistentPointQuadTree<SnapshotItem<T>> snapshot = mSnapshot;
+      for (T item : items) {
+        final SnapshotItem<T> snapshotItem = mItems.remove(item);
+        if (snapshotItem != null) {
+          snapshot = snapshot.minus(snapshotItem);
+          releaseOrdinal(snapshotItem.mOrdinal);
+          result = true;
+        }
+      }
+      mSnapshot = snapshot;
+    }
+    return result;
+  }
+
+  /**
+   * Updates the provided item in the algorithm
+   *
+   * @param item the item to be updated
+   * @return true if the item existed in the algorithm and was updated, or false if the item did
+   * not exist in the algorithm and the algorithm contents remain unchanged.
+   */
+  @Override
+  public boolean updateItem(T item) {
+    synchronized (mItems) {
+      final SnapshotItem<T> existing = mItems.get(item);
+      if (existing == null) {
+        return false;
+      }
+      // The new snapshot holds the updated item instead of the existing one, so they share an ordinal.
+      final SnapshotItem<T> snapshotItem = new SnapshotItem<>(item, existing.mOrdinal);
+      mItems.put(item, snapshotItem);
+      mSnapshot = mSnapshot.minus(existing).plus(snapshotItem);
+    }
+    return true;
+  }
+
+  @Override
+  public Set<? extends MFCluster<T>> getClusters(double zoom) {
+    final PersistentPointQuadTree<SnapshotItem<T>> snapshot = mSnapshot;
+    final int discreteZoom = (int) zoom;
+
+    final double zoomSpecificSpan = mMaxDistance / Math.pow(2, discreteZoom) / 256;
+    final double halfSpan = zoomSpecificSpan / 2;
+
+    final List<SnapshotItem<T>> candidates = new ArrayList<>(snapshot.size());
+    final int[] ordinalCount = new int[1];
+    snapshot.visitAll(new PointQuadTree.Visitor<SnapshotItem<T>>() {
+      @Override
+      public void visit(SnapshotItem<T> item) {
+        candidates.add(item);
+        ordinalCount[0] = Math.max(ordinalCount[0], item.mOrdinal + 1);
+      }
+    });
+    final GreedyClustering<T, SnapshotItem<T>> clustering = new GreedyClustering<T, SnapshotItem<T>>() {
+      @Override
+      protected void search(double minX, double maxX, double minY, double maxY,
+                            PointQuadTree.Visitor<? super SnapshotItem<T>> visitor) {
+        snapshot.search(minX, maxX, minY, maxY, visitor);
+      }
+    };
+    return clustering.cluster(candidates, ordinalCount[0], halfSpan, 0, null);
+  }
+
+  @Override
+  public Collection<T> getItems() {
+    synchronized (mItems) {
+      return new LinkedHashSet<>(mItems.keySet());
+    }
+  }
+
+  @Override
+  public int getMaxDistanceBetweenClusteredItems() {
+    return mMaxDistance;
+  }
+
+  @Override
+  public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+    mMaxDistance = maxDistance;
+  }
+
+  /**
+   * Must be called while synchronized on mItems.
+   */
+  private int acquireOrdinal() {
+    return mFreeOrdinalCount > 0 ? mFreeOrdinals[--mFreeOrdinalCount] : mNextOrdinal++;
+  }
+
+  /**
+   * Must be called while synchronized on mItems.
+   */
+  private void releaseOrdinal(int ordinal) {
+    if (mFreeOrdinalCount == mFreeOrdinals.length) {
+      mFreeOrdinals = Arrays.copyOf(mFreeOrdinals, mFreeOrdinalCount * 2);
+    }
+    mFreeOrdinals[mFreeOrdinalCount++] = ordinal;
+  }
+
+  /**
+   * An item as it is indexed in the snapshots. Snapshot items are immutable, updates replace them.
+   */
+  private static final class SnapshotItem<T extends MFClusterItem> implements GreedyClustering.Item<T> {
+    private final T mClusterItem;
+    private final int mOrdinal;
+    private final Point mPoint;
+    private final MFSingletonCluster<T> mCluster;
+
+    private SnapshotItem(T item, int ordinal) {
+      final MFLocationCoordinate position = item.getPosition();
+      mClusterItem = item;
+      mOrdinal = ordinal;
+      mPoint = PROJECTION.toPoint(position);
+      mCluster = new MFSingletonCluster<>(item, position);
+    }
+
+    @Override
+    public Point getPoint() {
+      return mPoint;
+    }
+
+    @Override
+    public int getOrdinal() {
+      return mOrdinal;
+    }
+
+    @Override
+    public T getClusterItem() {
+      return mClusterItem;
+    }
+
+    /**
+     * Returns the position of the item when it was indexed.
+     */
+    @Override
+    public MFLocationCoordinate getPosition() {
+      return mCluster.getPosition();
+    }
+
+    @Override
+    public MFCluster<T> getCluster() {
+      return mCluster;
+    }
+  }
+}
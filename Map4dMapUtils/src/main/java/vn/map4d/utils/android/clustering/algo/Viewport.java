@@ -0,0 +1,67 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+
+/**
+ * The size and center of the map, from which screen based algorithms find the area they cluster.
+ */
+final class Viewport {
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+
+  private int mWidth;
+  private int mHeight;
+  private MFLocationCoordinate mCenter;
+
+  /**
+   * @param width  map width in dp
+   * @param height map height in dp
+   */
+  Viewport(int width, int height) {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  /**
+   * @param width  map width in dp
+   * @param height map height in dp
+   */
+  void setSize(int width, int height) {
+    mWidth = width;
+    mHeight = height;
+  }
+
+  void setCenter(MFLocationCoordinate center) {
+    mCenter = center;
+  }
+
+  /**
+   * Returns the visible area at the given zoom, in projected coordinates of a world of width 1.
+   * The horizontal bounds may extend past the international date line, below 0 or above 1.
+   */
+  Bounds getVisibleBounds(double zoom) {
+    return getVisibleBounds(zoom, 0);
+  }
+
+  /**
+   * Returns the visible area at the given zoom, extended on each side by the given distance.
+   *
+   * @param padding the distance, in projected coordinates of a world of width 1
+   */
+  Bounds getVisibleBounds(double zoom, double padding) {
+    if (mCenter == null) {
+      return new Bounds(0, 0, 0, 0);
+    }
+
+    Point p = PROJECTION.toPoint(mCenter);
+
+    final double halfWidthSpan = mWidth / Math.pow(2, zoom) / 256 / 2 + padding;
+    final double halfHeightSpan = mHeight / Math.pow(2, zoom) / 256 / 2 + padding;
+
+    return new Bounds(
+      p.x - halfWidthSpan, p.x + halfWidthSpan,
+      p.y - halfHeightSpan, p.y + halfHeightSpan);
+  }
+}
@@ -0,0 +1,117 @@
+package vn.map4d.utils.android.quadtree;
+
+/**
+ * Routines for KD-trees laid out implicitly in parallel coordinate arrays, shared by
+ * {@link KdTree} and {@link StaticKdIndex}.
+ * <p/>
+ * The node of a range [left, right] is its median m = (left + right) >>> 1, which splits the range
+ * along the node's axis into [left, m - 1] and [m + 1, right] on the other axis. Ranges of at most
+ * {@link #NODE_SIZE} points are not split and are scanned linearly.
+ */
+final class KdArrays {
+  /**
+   * Maximum number of points in a node which is scanned linearly instead of being split.
+   */
+  static final int NODE_SIZE = 16;
+
+  private KdArrays() {
+  }
+
+  /**
+   * Arranges [left, right] so that every node's median splits its range along the node's axis.
+   *
+   * @param payload swaps whatever the owner keeps alongside the coordinates
+   */
+  static void sort(double[] xs, double[] ys, int left, int right, int axis, Payload payload) {
+    if (right - left <= NODE_SIZE) {
+      return;
+    }
+    final int m = (left + right) >>> 1;
+    select(xs, ys, m, left, right, axis, payload);
+    sort(xs, ys, left, m - 1, 1 - axis, payload);
+    sort(xs, ys, m + 1, right, 1 - axis, payload);
+  }
+
+  /**
+   * Moves the k-th smallest point along the axis to index k, with smaller points before it and
+   * larger ones after it (quickselect).
+   */
+  private static void select(double[] xs, double[] ys, int k, int left, int right, int axis, Payload payload) {
+    final double[] values = axis == 0 ? xs : ys;
+    while (right > left) {
+      final double pivot = values[(left + right) >>> 1];
+      int i = left;
+      int j = right;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(xs, ys, i, j, payload);
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private static void swap(double[] xs, double[] ys, int i, int j, Payload payload) {
+    final double x = xs[i];
+    xs[i] = xs[j];
+    xs[j] = x;
+    final double y = ys[i];
+    ys[i] = ys[j];
+    ys[j] = y;
+    payload.swap(i, j);
+  }
+
+  /**
+   * Hands the index of every point of [left, right] within the given bounds to the visitor.
+   */
+  static void range(double[] xs, double[] ys, int left, int right, int axis,
+                    double minX, double maxX, double minY, double maxY, IndexVisitor visitor) {
+    if (right - left <= NODE_SIZE) {
+      for (int i = left; i <= right; i++) {
+        final double x = xs[i];
+        final double y = ys[i];
+        if (minX <= x && x <= maxX && minY <= y && y <= maxY) {
+          visitor.visit(i);
+        }
+      }
+      return;
+    }
+    final int m = (left + right) >>> 1;
+    final double x = xs[m];
+    final double y = ys[m];
+    if (minX <= x && x <= maxX && minY <= y && y <= maxY) {
+      visitor.visit(m);
+    }
+    if (axis == 0 ? minX <= x : minY <= y) {
+      range(xs, ys, left, m - 1, 1 - axis, minX, maxX, minY, maxY, visitor);
+    }
+    if (axis == 0 ? maxX >= x : maxY >= y) {
+      range(xs, ys, m + 1, right, 1 - axis, minX, maxX, minY, maxY, visitor);
+    }
+  }
+
+  /**
+   * Data kept alongside the coordinates, which moves with them.
+   */
+  interface Payload {
+    void swap(int i, int j);
+  }
+
+  interface IndexVisitor {
+    void visit(int index);
+  }
+}
@@ -0,0 +1,444 @@
+package vn.map4d.utils.android.quadtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+
+/**
+ * A static, balanced KD-tree which tracks items with a Point geometry.
+ * <p/>
+ * Points are stored in flat arrays ordered so that every node of the tree is the median of its
+ * range along alternating axes, which bounds the query depth to log2(n) regardless of how the
+ * points are distributed. Nodes of at most {@link #NODE_SIZE} points are scanned linearly.
+ * <p/>
+ * The tree is rebuilt lazily: additions, and entries moved out of the tree, are appended to the
+ * arrays and scanned linearly by queries until scanning them has cost as much as sorting them into
+ * place, so that a few updates between queries don't rebuild the whole tree. Removals only mark
+ * their entry as removed until {@link #compact()} is called or half of the entries are removed.
+ * It is best suited to data which is mostly loaded up front and queried many times.
+ * This class is not thread safe.
+ */
+public class KdTree<T extends PointQuadTree.Item> implements SpatialIndex<T> {
+  /**
+   * Maximum number of points in a node which is scanned linearly instead of being split.
+   */
+  private final static int NODE_SIZE = KdArrays.NODE_SIZE;
+  /**
+   * Creates KD-trees.
+   */
+  public final static SpatialIndex.Factory FACTORY = new SpatialIndex.Factory() {
+    @Override
+    public <T extends PointQuadTree.Item> SpatialIndex<T> create(Bounds bounds) {
+      return new KdTree<T>(bounds);
+    }
+  };
+
+  /**
+   * Only items inside these bounds are indexed.
+   */
+  private final Bounds mBounds;
+  private double[] mXs = new double[16];
+  private double[] mYs = new double[16];
+  private Object[] mItems = new Object[16];
+  private boolean[] mRemoved = new boolean[16];
+  /**
+   * Number of entries in the arrays, including removed ones.
+   */
+  private int mSize;
+  /**
+   * Number of leading entries which are sorted into the tree. Entries after it are scanned
+   * linearly until the next rebuild.
+   */
+  private int mSorted;
+  /**
+   * Number of entries marked as removed.
+   */
+  private int mRemovedCount;
+  /**
+   * The entries after {@link #mSorted}.
+   */
+  private final PendingEntries mPending = new PendingEntries();
+
+  public KdTree(double minX, double maxX, double minY, double maxY) {
+    this(new Bounds(minX, maxX, minY, maxY));
+  }
+
+  public KdTree(Bounds bounds) {
+    mBounds = bounds;
+  }
+
+  @Override
+  public void add(T item) {
+    Point point = item.getPoint();
+    if (mBounds.contains(point.x, point.y)) {
+      append(point.x, point.y, item);
+    }
+  }
+
+  @Override
+  public void addAll(Collection<? extends T> items) {
+    ensureCapacity(mSize + items.size());
+    for (T item : items) {
+      add(item);
+    }
+  }
+
+  @Override
+  public boolean remove(T item) {
+    Point point = item.getPoint();
+    if (!mBounds.contains(point.x, point.y)) {
+      return false;
+    }
+    final int index = indexOf(point.x, point.y, item);
+    if (index < 0) {
+      return false;
+    }
+    markRemoved(index);
+    return true;
+  }
+
+  @Override
+  public boolean move(T item, double x, double y) {
+    Point point = item.getPoint();
+    if (!mBounds.contains(point.x, point.y)) {
+      return false;
+    }
+    final int index = indexOf(point.x, point.y, item);
+    if (index < 0) {
+      return false;
+    }
+    if (index >= mSorted) {
+      // Not sorted into the tree yet, so it can be moved in place.
+      if (mBounds.contains(x, y)) {
+        mXs[index] = x;
+        mYs[index] = y;
+      } else {
+        markRemoved(index);
+      }
+      return true;
+    }
+    final Object stored = mItems[index];
+    markRemoved(index);
+    if (mBounds.contains(x, y)) {
+      append(x, y, stored);
+    }
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    mXs = new double[16];
+    mYs = new double[16];
+    mItems = new Object[16];
+    mRemoved = new boolean[16];
+    mSize = 0;
+    mSorted = 0;
+    mRemovedCount = 0;
+    mPending.clear();
+  }
+
+  /**
+   * Drops removed entries, trims the arrays and rebuilds the tree.
+   */
+  @Override
+  public void compact() {
+    int size = 0;
+    for (int i = 0; i < mSize; i++) {
+      if (!mRemoved[i]) {
+        mXs[size] = mXs[i];
+        mYs[size] = mYs[i];
+        mItems[size] = mItems[i];
+        size++;
+      }
+    }
+    final int capacity = Math.max(size, 16);
+    mXs = Arrays.copyOf(mXs, capacity);
+    mYs = Arrays.copyOf(mYs, capacity);
+    mItems = Arrays.copyOf(mItems, capacity);
+    mRemoved = new boolean[capacity];
+    mSize = size;
+    mRemovedCount = 0;
+    mSorted = 0;
+    build();
+  }
+
+  @Override
+  public Collection<T> search(Bounds searchBounds) {
+    final List<T> results = new ArrayList<T>();
+    search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        results.add(item);
+      }
+    });
+    return results;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void search(double minX, double maxX, double minY, double maxY,
+                     final PointQuadTree.Visitor<? super T> visitor) {
+    ensureBuilt();
+    KdArrays.range(mXs, mYs, 0, mSorted - 1, 0, minX, maxX, minY, maxY, new KdArrays.IndexVisitor() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public void visit(int index) {
+        if (!mRemoved[index]) {
+          visitor.visit((T) mItems[index]);
+        }
+      }
+    });
+    for (int i = mSorted; i < mSize; i++) {
+      final double x = mXs[i];
+      final double y = mYs[i];
+      if (!mRemoved[i] && minX <= x && x <= maxX && minY <= y && y <= maxY) {
+        visitor.visit((T) mItems[i]);
+      }
+    }
+  }
+
+  /**
+   * Count the items within a given bounds. Unlike {@link PointQuadTree#count(Bounds)} this visits
+   * every matching item.
+   */
+  @Override
+  public int count(Bounds searchBounds) {
+    final int[] count = new int[1];
+    search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        count[0]++;
+      }
+    });
+    return count[0];
+  }
+
+  @Override
+  public Point centroid(Bounds searchBounds) {
+    final double[] aggregate = new double[3];
+    search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        Point point = item.getPoint();
+        aggregate[0]++;
+        aggregate[1] += point.x;
+        aggregate[2] += point.y;
+      }
+    });
+    if (aggregate[0] == 0) {
+      return null;
+    }
+    return new Point(aggregate[1] / aggregate[0], aggregate[2] / aggregate[0]);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<T> nearest(double x, double y, int k) {
+    final List<T> results = new ArrayList<T>();
+    if (k <= 0) {
+      return results;
+    }
+    ensureBuilt();
+    // Max-heap, so that the furthest of the current best items is at the head.
+    final PriorityQueue<Neighbour> best = new PriorityQueue<Neighbour>(k, Collections.reverseOrder());
+    for (int i = mSorted; i < mSize; i++) {
+      offer(i, x, y, k, best);
+    }
+    nearest(0, mSorted - 1, 0, mBounds.minX, mBounds.maxX, mBounds.minY, mBounds.maxY, x, y, k, best);
+    while (!best.isEmpty()) {
+      results.add((T) mItems[best.poll().mIndex]);
+    }
+    Collections.reverse(results);
+    return results;
+  }
+
+  private void nearest(int left, int right, int axis,
+                       double minX, double maxX, double minY, double maxY,
+                       double x, double y, int k, PriorityQueue<Neighbour> best) {
+    if (left > right) {
+      return;
+    }
+    if (best.size() == k && distanceSquared(minX, maxX, minY, maxY, x, y) > best.peek().mDistance) {
+      return;
+    }
+    if (right - left <= NODE_SIZE) {
+      for (int i = left; i <= right; i++) {
+        offer(i, x, y, k, best);
+      }
+      return;
+    }
+    final int m = (left + right) >>> 1;
+    offer(m, x, y, k, best);
+    final double split = axis == 0 ? mXs[m] : mYs[m];
+    final boolean lowerFirst = (axis == 0 ? x : y) < split;
+    for (int pass = 0; pass < 2; pass++) {
+      if ((pass == 0) == lowerFirst) {
+        nearest(left, m - 1, 1 - axis,
+          minX, axis == 0 ? split : maxX, minY, axis == 0 ? maxY : split, x, y, k, best);
+      } else {
+        nearest(m + 1, right, 1 - axis,
+          axis == 0 ? split : minX, maxX, axis == 0 ? minY : split, maxY, x, y, k, best);
+      }
+    }
+  }
+
+  private void offer(int index, double x, double y, int k, PriorityQueue<Neighbour> best) {
+    if (mRemoved[index]) {
+      return;
+    }
+    final double dx = mXs[index] - x;
+    final double dy = mYs[index] - y;
+    final double distance = dx * dx + dy * dy;
+    if (best.size() < k) {
+      best.add(new Neighbour(index, distance));
+    } else if (distance < best.peek().mDistance) {
+      best.poll();
+      best.add(new Neighbour(index, distance));
+    }
+  }
+
+  @Override
+  public void withinRadius(double x, double y, double radius, final PointQuadTree.Visitor<? super T> visitor) {
+    final double radiusSquared = radius * radius;
+    final double cx = x;
+    final double cy = y;
+    search(x - radius, x + radius, y - radius, y + radius, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        Point point = item.getPoint();
+        final double dx = point.x - cx;
+        final double dy = point.y - cy;
+        if (dx * dx + dy * dy <= radiusSquared) {
+          visitor.visit(item);
+        }
+      }
+    });
+  }
+
+  private static double distanceSquared(double minX, double maxX, double minY, double maxY, double x, double y) {
+    final double dx = Math.max(0, Math.max(minX - x, x - maxX));
+    final double dy = Math.max(0, Math.max(minY - y, y - maxY));
+    return dx * dx + dy * dy;
+  }
+
+  private void append(double x, double y, Object item) {
+    ensureCapacity(mSize + 1);
+    mXs[mSize] = x;
+    mYs[mSize] = y;
+    mItems[mSize] = item;
+    mRemoved[mSize] = false;
+    mPending.appended(item, mSize);
+    mSize++;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > mXs.length) {
+      capacity = Math.max(capacity, mXs.length * 2);
+      mXs = Arrays.copyOf(mXs, capacity);
+      mYs = Arrays.copyOf(mYs, capacity);
+      mItems = Arrays.copyOf(mItems, capacity);
+      mRemoved = Arrays.copyOf(mRemoved, capacity);
+    }
+  }
+
+  private void markRemoved(int index) {
+    if (index >= mSorted) {
+      mPending.removed(mItems[index]);
+    }
+    mRemoved[index] = true;
+    mItems[index] = null;
+    mRemovedCount++;
+  }
+
+  /**
+   * @return the index of the given item, which is located at (x, y), or -1 if it isn't indexed.
+   */
+  private int indexOf(final double x, final double y, T item) {
+    final int index = mPending.indexOf(mXs, mYs, mItems, mRemoved, mSorted, mSize, x, y, item);
+    if (index >= 0) {
+      return index;
+    }
+    return indexOf(0, mSorted - 1, 0, x, y, item);
+  }
+
+  private int indexOf(int left, int right, int axis, double x, double y, T item) {
+    if (right - left <= NODE_SIZE) {
+      for (int i = left; i <= right; i++) {
+        if (!mRemoved[i] && mXs[i] == x && mYs[i] == y && matches(i, item)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    final int m = (left + right) >>> 1;
+    if (!mRemoved[m] && mXs[m] == x && mYs[m] == y && matches(m, item)) {
+      return m;
+    }
+    final double split = axis == 0 ? mXs[m] : mYs[m];
+    final double value = axis == 0 ? x : y;
+    int index = -1;
+    if (value <= split) {
+      index = indexOf(left, m - 1, 1 - axis, x, y, item);
+    }
+    if (index < 0 && value >= split) {
+      index = indexOf(m + 1, right, 1 - axis, x, y, item);
+    }
+    return index;
+  }
+
+  private boolean matches(int index, T item) {
+    return mItems[index] == item || mItems[index].equals(item);
+  }
+
+  /**
+   * Drops removed entries if they make up half of the tree, or sorts pending entries into it once
+   * scanning them costs more than sorting them.
+   */
+  private void ensureBuilt() {
+    if (mRemovedCount * 2 > mSize) {
+      compact();
+    } else if (mPending.shouldBuild(mSorted, mSize)) {
+      build();
+    }
+  }
+
+  private void build() {
+    KdArrays.sort(mXs, mYs, 0, mSize - 1, 0, new KdArrays.Payload() {
+      @Override
+      public void swap(int i, int j) {
+        final Object item = mItems[i];
+        mItems[i] = mItems[j];
+        mItems[j] = item;
+        final boolean removed = mRemoved[i];
+        mRemoved[i] = mRemoved[j];
+        mRemoved[j] = removed;
+      }
+    });
+    mSorted = mSize;
+    mPending.clear();
+  }
+
+  /**
+   * An entry ranked by its squared distance to a query point.
+   */
+  private static final class Neighbour implements Comparable<Neighbour> {
+    private final int mIndex;
+    private final double mDistance;
+
+    Neighbour(int index, double distance) {
+      mIndex = index;
+      mDistance = distance;
+    }
+
+    @Override
+    public int compareTo(Neighbour other) {
+      return Double.compare(mDistance, other.mDistance);
+    }
+  }
+}
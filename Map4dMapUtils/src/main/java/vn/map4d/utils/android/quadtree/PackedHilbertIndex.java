@@ -0,0 +1,615 @@
+package vn.map4d.utils.android.quadtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+
+/**
+ * A packed, read-mostly index of items with a Point geometry.
+ * <p/>
+ * Points are sorted along a Hilbert curve and grouped into nodes of {@link #NODE_SIZE}, whose
+ * bounding boxes are grouped again level by level up to a single root (a packed Hilbert R-tree).
+ * Coordinates and boxes live in flat {@code double[]} arrays, so the index costs a few arrays
+ * instead of an object graph and range queries scan memory sequentially.
+ * <p/>
+ * The index is meant for datasets which rarely change after they are loaded. Items added or moved
+ * after the index was packed are appended to the arrays and scanned linearly by queries until
+ * scanning them has cost as much as re-packing the index from scratch. Removed items are only
+ * marked as such until {@link #compact()} is called or half of the entries are removed.
+ * This class is not thread safe.
+ */
+public class PackedHilbertIndex<T extends PointQuadTree.Item> implements SpatialIndex<T> {
+  /**
+   * Number of children of each node.
+   */
+  private final static int NODE_SIZE = 16;
+  /**
+   * Resolution of the grid the Hilbert curve is computed on.
+   */
+  private final static int HILBERT_MAX = (1 << 16) - 1;
+  /**
+   * Creates packed Hilbert indexes.
+   */
+  public final static SpatialIndex.Factory FACTORY = new SpatialIndex.Factory() {
+    @Override
+    public <T extends PointQuadTree.Item> SpatialIndex<T> create(Bounds bounds) {
+      return new PackedHilbertIndex<T>(bounds);
+    }
+  };
+
+  /**
+   * Only items inside these bounds are indexed.
+   */
+  private final Bounds mBounds;
+  private double[] mXs = new double[16];
+  private double[] mYs = new double[16];
+  private Object[] mItems = new Object[16];
+  private boolean[] mRemoved = new boolean[16];
+  /**
+   * Number of entries, including removed ones.
+   */
+  private int mSize;
+  /**
+   * Number of leading entries which are packed into the index. Entries after it are scanned
+   * linearly until the next pack.
+   */
+  private int mPacked;
+  /**
+   * Number of entries marked as removed.
+   */
+  private int mRemovedCount;
+  /**
+   * Bounding boxes (minX, minY, maxX, maxY) of the nodes of all levels above the points, from
+   * the lowest level to the root.
+   */
+  private double[] mBoxes = new double[0];
+  /**
+   * Index (in boxes) of the first node of each level above the points, plus the total count.
+   */
+  private int[] mLevels = new int[]{0};
+  /**
+   * The entries after {@link #mPacked}.
+   */
+  private final PendingEntries mPending = new PendingEntries();
+
+  public PackedHilbertIndex(double minX, double maxX, double minY, double maxY) {
+    this(new Bounds(minX, maxX, minY, maxY));
+  }
+
+  public PackedHilbertIndex(Bounds bounds) {
+    mBounds = bounds;
+  }
+
+  @Override
+  public void add(T item) {
+    Point point = item.getPoint();
+    if (mBounds.contains(point.x, point.y)) {
+      append(point.x, point.y, item);
+    }
+  }
+
+  @Override
+  public void addAll(Collection<? extends T> items) {
+    ensureCapacity(mSize + items.size());
+    for (T item : items) {
+      add(item);
+    }
+  }
+
+  @Override
+  public boolean remove(T item) {
+    Point point = item.getPoint();
+    if (!mBounds.contains(point.x, point.y)) {
+      return false;
+    }
+    final int index = indexOf(point.x, point.y, item);
+    if (index < 0) {
+      return false;
+    }
+    markRemoved(index);
+    return true;
+  }
+
+  @Override
+  public boolean move(T item, double x, double y) {
+    Point point = item.getPoint();
+    if (!mBounds.contains(point.x, point.y)) {
+      return false;
+    }
+    final int index = indexOf(point.x, point.y, item);
+    if (index < 0) {
+      return false;
+    }
+    if (index >= mPacked) {
+      // Not packed yet, so it can be moved in place.
+      if (mBounds.contains(x, y)) {
+        mXs[index] = x;
+        mYs[index] = y;
+      } else {
+        markRemoved(index);
+      }
+      return true;
+    }
+    final Object stored = mItems[index];
+    markRemoved(index);
+    if (mBounds.contains(x, y)) {
+      append(x, y, stored);
+    }
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    mXs = new double[16];
+    mYs = new double[16];
+    mItems = new Object[16];
+    mRemoved = new boolean[16];
+    mSize = 0;
+    mPacked = 0;
+    mRemovedCount = 0;
+    mBoxes = new double[0];
+    mLevels = new int[]{0};
+    mPending.clear();
+  }
+
+  /**
+   * Drops removed entries, trims the arrays and re-packs the index.
+   */
+  @Override
+  public void compact() {
+    int size = 0;
+    for (int i = 0; i < mSize; i++) {
+      if (!mRemoved[i]) {
+        mXs[size] = mXs[i];
+        mYs[size] = mYs[i];
+        mItems[size] = mItems[i];
+        size++;
+      }
+    }
+    mXs = Arrays.copyOf(mXs, size);
+    mYs = Arrays.copyOf(mYs, size);
+    mItems = Arrays.copyOf(mItems, size);
+    mRemoved = new boolean[size];
+    mSize = size;
+    mRemovedCount = 0;
+    pack();
+  }
+
+  @Override
+  public Collection<T> search(Bounds searchBounds) {
+    final List<T> results = new ArrayList<T>();
+    search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        results.add(item);
+      }
+    });
+    return results;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void search(double minX, double maxX, double minY, double maxY, PointQuadTree.Visitor<? super T> visitor) {
+    ensurePacked();
+    for (int i = mPacked; i < mSize; i++) {
+      final double x = mXs[i];
+      final double y = mYs[i];
+      if (!mRemoved[i] && minX <= x && x <= maxX && minY <= y && y <= maxY) {
+        visitor.visit((T) mItems[i]);
+      }
+    }
+    if (mPacked == 0) {
+      return;
+    }
+    final int levels = mLevels.length - 1;
+    // Stack of (level, node) pairs, level 0 being the points.
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = levels;
+    stack[top++] = 0;
+    while (top > 0) {
+      final int node = stack[--top];
+      final int level = stack[--top];
+      final int childLevel = level - 1;
+      final int first = node * NODE_SIZE;
+      final int last = Math.min(first + NODE_SIZE, levelSize(childLevel));
+      if (childLevel == 0) {
+        for (int i = first; i < last; i++) {
+          final double x = mXs[i];
+          final double y = mYs[i];
+          if (!mRemoved[i] && minX <= x && x <= maxX && minY <= y && y <= maxY) {
+            visitor.visit((T) mItems[i]);
+          }
+        }
+        continue;
+      }
+      for (int child = first; child < last; child++) {
+        final int box = (mLevels[childLevel - 1] + child) * 4;
+        if (mBoxes[box] <= maxX && mBoxes[box + 1] <= maxY && mBoxes[box + 2] >= minX && mBoxes[box + 3] >= minY) {
+          if (top + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+          }
+          stack[top++] = childLevel;
+          stack[top++] = child;
+        }
+      }
+    }
+  }
+
+  /**
+   * Count the items within a given bounds. Unlike {@link PointQuadTree#count(Bounds)} this visits
+   * every matching item.
+   */
+  @Override
+  public int count(Bounds searchBounds) {
+    final int[] count = new int[1];
+    search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        count[0]++;
+      }
+    });
+    return count[0];
+  }
+
+  @Override
+  public Point centroid(Bounds searchBounds) {
+    final double[] aggregate = new double[3];
+    search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        Point point = item.getPoint();
+        aggregate[0]++;
+        aggregate[1] += point.x;
+        aggregate[2] += point.y;
+      }
+    });
+    if (aggregate[0] == 0) {
+      return null;
+    }
+    return new Point(aggregate[1] / aggregate[0], aggregate[2] / aggregate[0]);
+  }
+
+  /**
+   * Find the k items closest to the given point, nearest first. Nodes are visited best-first by
+   * the distance of their bounding box to the point.
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<T> nearest(double x, double y, int k) {
+    final List<T> results = new ArrayList<T>();
+    ensurePacked();
+    if (k <= 0 || mSize == 0) {
+      return results;
+    }
+    // Holds both nodes (level > 0) and points (level 0); a point reaching the head of the queue is
+    // closer than anything left in it.
+    final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+    for (int i = mPacked; i < mSize; i++) {
+      if (!mRemoved[i]) {
+        final double dx = mXs[i] - x;
+        final double dy = mYs[i] - y;
+        queue.add(new Entry(0, i, dx * dx + dy * dy));
+      }
+    }
+    if (mPacked > 0) {
+      queue.add(new Entry(mLevels.length - 1, 0, 0));
+    }
+    while (!queue.isEmpty()) {
+      final Entry entry = queue.poll();
+      if (entry.mLevel == 0) {
+        results.add((T) mItems[entry.mIndex]);
+        if (results.size() == k) {
+          break;
+        }
+        continue;
+      }
+      final int childLevel = entry.mLevel - 1;
+      final int first = entry.mIndex * NODE_SIZE;
+      final int last = Math.min(first + NODE_SIZE, levelSize(childLevel));
+      for (int child = first; child < last; child++) {
+        if (childLevel == 0) {
+          if (!mRemoved[child]) {
+            final double dx = mXs[child] - x;
+            final double dy = mYs[child] - y;
+            queue.add(new Entry(0, child, dx * dx + dy * dy));
+          }
+        } else {
+          final int box = (mLevels[childLevel - 1] + child) * 4;
+          final double dx = Math.max(0, Math.max(mBoxes[box] - x, x - mBoxes[box + 2]));
+          final double dy = Math.max(0, Math.max(mBoxes[box + 1] - y, y - mBoxes[box + 3]));
+          queue.add(new Entry(childLevel, child, dx * dx + dy * dy));
+        }
+      }
+    }
+    return results;
+  }
+
+  @Override
+  public void withinRadius(double x, double y, double radius, final PointQuadTree.Visitor<? super T> visitor) {
+    final double radiusSquared = radius * radius;
+    final double cx = x;
+    final double cy = y;
+    search(x - radius, x + radius, y - radius, y + radius, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        Point point = item.getPoint();
+        final double dx = point.x - cx;
+        final double dy = point.y - cy;
+        if (dx * dx + dy * dy <= radiusSquared) {
+          visitor.visit(item);
+        }
+      }
+    });
+  }
+
+  /**
+   * @return the number of nodes in the given level, level 0 being the points.
+   */
+  private int levelSize(int level) {
+    return level == 0 ? mPacked : mLevels[level] - mLevels[level - 1];
+  }
+
+  private void append(double x, double y, Object item) {
+    ensureCapacity(mSize + 1);
+    mXs[mSize] = x;
+    mYs[mSize] = y;
+    mItems[mSize] = item;
+    mRemoved[mSize] = false;
+    mPending.appended(item, mSize);
+    mSize++;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > mXs.length) {
+      capacity = Math.max(capacity, mXs.length * 2);
+      mXs = Arrays.copyOf(mXs, capacity);
+      mYs = Arrays.copyOf(mYs, capacity);
+      mItems = Arrays.copyOf(mItems, capacity);
+      mRemoved = Arrays.copyOf(mRemoved, capacity);
+    }
+  }
+
+  private void markRemoved(int index) {
+    if (index >= mPacked) {
+      mPending.removed(mItems[index]);
+    }
+    mRemoved[index] = true;
+    mItems[index] = null;
+    mRemovedCount++;
+  }
+
+  /**
+   * @return the index of the given item, which is located at (x, y), or -1 if it isn't indexed.
+   */
+  private int indexOf(final double x, final double y, final T item) {
+    final int[] found = new int[]{mPending.indexOf(mXs, mYs, mItems, mRemoved, mPacked, mSize, x, y, item)};
+    if (found[0] < 0 && mPacked > 0) {
+      searchIndices(x, y, item, found);
+    }
+    return found[0];
+  }
+
+  private void searchIndices(double x, double y, T item, int[] found) {
+    final int levels = mLevels.length - 1;
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = levels;
+    stack[top++] = 0;
+    while (top > 0) {
+      final int node = stack[--top];
+      final int level = stack[--top];
+      final int childLevel = level - 1;
+      final int first = node * NODE_SIZE;
+      final int last = Math.min(first + NODE_SIZE, levelSize(childLevel));
+      for (int child = first; child < last; child++) {
+        if (childLevel == 0) {
+          if (!mRemoved[child] && mXs[child] == x && mYs[child] == y
+            && (mItems[child] == item || mItems[child].equals(item))) {
+            found[0] = child;
+            return;
+          }
+          continue;
+        }
+        final int box = (mLevels[childLevel - 1] + child) * 4;
+        if (mBoxes[box] <= x && mBoxes[box + 1] <= y && mBoxes[box + 2] >= x && mBoxes[box + 3] >= y) {
+          if (top + 2 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+          }
+          stack[top++] = childLevel;
+          stack[top++] = child;
+        }
+      }
+    }
+  }
+
+  /**
+   * Drops removed entries if they make up half of the index, or packs pending entries into it once
+   * scanning them costs more than packing them.
+   */
+  private void ensurePacked() {
+    if (mRemovedCount * 2 > mSize) {
+      compact();
+    } else if (mPending.shouldBuild(mPacked, mSize)) {
+      pack();
+    }
+  }
+
+  /**
+   * Sorts the entries along the Hilbert curve and builds the node levels above them.
+   */
+  private void pack() {
+    final int size = mSize;
+    if (size > 0) {
+      double minX = Double.POSITIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < size; i++) {
+        minX = Math.min(minX, mXs[i]);
+        minY = Math.min(minY, mYs[i]);
+        maxX = Math.max(maxX, mXs[i]);
+        maxY = Math.max(maxY, mYs[i]);
+      }
+      final double width = maxX - minX;
+      final double height = maxY - minY;
+      // Hilbert value in the high bits and the entry's index in the low 31 bits.
+      final long[] keys = new long[size];
+      for (int i = 0; i < size; i++) {
+        final int hx = width == 0 ? 0 : (int) (HILBERT_MAX * (mXs[i] - minX) / width);
+        final int hy = height == 0 ? 0 : (int) (HILBERT_MAX * (mYs[i] - minY) / height);
+        keys[i] = (hilbert(hx, hy) << 31) | i;
+      }
+      Arrays.sort(keys);
+      final double[] xs = new double[mXs.length];
+      final double[] ys = new double[mYs.length];
+      final Object[] items = new Object[mItems.length];
+      final boolean[] removed = new boolean[mRemoved.length];
+      for (int i = 0; i < size; i++) {
+        final int index = (int) (keys[i] & Integer.MAX_VALUE);
+        xs[i] = mXs[index];
+        ys[i] = mYs[index];
+        items[i] = mItems[index];
+        removed[i] = mRemoved[index];
+      }
+      mXs = xs;
+      mYs = ys;
+      mItems = items;
+      mRemoved = removed;
+    }
+    mPacked = size;
+    mPending.clear();
+
+    // Count the nodes of every level above the points.
+    final List<Integer> levels = new ArrayList<Integer>();
+    levels.add(0);
+    int count = size;
+    int total = 0;
+    do {
+      count = (count + NODE_SIZE - 1) / NODE_SIZE;
+      total += count;
+      levels.add(total);
+    } while (count > 1);
+    mLevels = new int[levels.size()];
+    for (int i = 0; i < mLevels.length; i++) {
+      mLevels[i] = levels.get(i);
+    }
+
+    mBoxes = new double[total * 4];
+    for (int level = 1; level < mLevels.length; level++) {
+      final int nodes = levelSize(level);
+      for (int node = 0; node < nodes; node++) {
+        final int first = node * NODE_SIZE;
+        final int last = Math.min(first + NODE_SIZE, levelSize(level - 1));
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int child = first; child < last; child++) {
+          if (level == 1) {
+            minX = Math.min(minX, mXs[child]);
+            minY = Math.min(minY, mYs[child]);
+            maxX = Math.max(maxX, mXs[child]);
+            maxY = Math.max(maxY, mYs[child]);
+          } else {
+            final int box = (mLevels[level - 2] + child) * 4;
+            minX = Math.min(minX, mBoxes[box]);
+            minY = Math.min(minY, mBoxes[box + 1]);
+            maxX = Math.max(maxX, mBoxes[box + 2]);
+            maxY = Math.max(maxY, mBoxes[box + 3]);
+          }
+        }
+        final int box = (mLevels[level - 1] + node) * 4;
+        mBoxes[box] = minX;
+        mBoxes[box + 1] = minY;
+        mBoxes[box + 2] = maxX;
+        mBoxes[box + 3] = maxY;
+      }
+    }
+  }
+
+  /**
+   * @return the position of (x, y) along a Hilbert curve filling a 2^16 by 2^16 grid.
+   * See https://github.com/rawrunprotected/hilbert_curves.
+   */
+  private static long hilbert(int x, int y) {
+    int a = x ^ y;
+    int b = 0xFFFF ^ a;
+    int c = 0xFFFF ^ (x | y);
+    int d = x & (y ^ 0xFFFF);
+
+    int A = a | (b >>> 1);
+    int B = (a >>> 1) ^ a;
+    int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+    int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+    a = A;
+    b = B;
+    c = C;
+    d = D;
+    A = (a & (a >>> 2)) ^ (b & (b >>> 2));
+    B = (a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2));
+    C ^= (a & (c >>> 2)) ^ (b & (d >>> 2));
+    D ^= (b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2));
+
+    a = A;
+    b = B;
+    c = C;
+    d = D;
+    A = (a & (a >>> 4)) ^ (b & (b >>> 4));
+    B = (a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4));
+    C ^= (a & (c >>> 4)) ^ (b & (d >>> 4));
+    D ^= (b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4));
+
+    a = A;
+    b = B;
+    c = C;
+    d = D;
+    C ^= (a & (c >>> 8)) ^ (b & (d >>> 8));
+    D ^= (b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8));
+
+    a = C ^ (C >>> 1);
+    b = D ^ (D >>> 1);
+
+    int i0 = x ^ y;
+    int i1 = b | (0xFFFF ^ (i0 | a));
+
+    i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+    i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+    i0 = (i0 | (i0 << 2)) & 0x33333333;
+    i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+    i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+    i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+    i1 = (i1 | (i1 << 2)) & 0x33333333;
+    i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+    return ((i1 << 1) | i0) & 0xFFFFFFFFL;
+  }
+
+  /**
+   * A node or point ranked by its squared distance to a query point.
+   */
+  private static final class Entry implements Comparable<Entry> {
+    private final int mLevel;
+    private final int mIndex;
+    private final double mDistance;
+
+    Entry(int level, int index, double distance) {
+      mLevel = level;
+      mIndex = index;
+      mDistance = distance;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      return Double.compare(mDistance, other.mDistance);
+    }
+  }
+}
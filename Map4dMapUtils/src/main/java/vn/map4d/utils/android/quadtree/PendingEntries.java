@@ -0,0 +1,99 @@
+package vn.map4d.utils.android.quadtree;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks the entries appended to a bulk built index since it was last built, shared by
+ * {@link KdTree} and {@link PackedHilbertIndex}.
+ * <p/>
+ * Pending entries are the entries [built, size) of the index's arrays. Queries scan them linearly
+ * until the scans since the last build have cost as much as a build, so that a few updates don't
+ * rebuild the whole index on the next query, and many queries don't scan many pending entries.
+ * Looking up a pending entry goes through a map of the pending entries, made on first use.
+ */
+final class PendingEntries {
+  /**
+   * Number of pending entries up to which lookups scan them rather than map them.
+   */
+  private static final int MAX_SCANNED_LOOKUP = 16;
+
+  /**
+   * Pending entries by item, or null until a lookup needs them.
+   */
+  private Map<Object, Integer> mIndexes;
+  /**
+   * Number of pending entries scanned by queries since the last build.
+   */
+  private long mScanned;
+
+  /**
+   * Records that an entry was appended to the index.
+   */
+  void appended(Object item, int index) {
+    if (mIndexes != null) {
+      mIndexes.put(item, index);
+    }
+  }
+
+  /**
+   * Records that a pending entry was removed from the index.
+   */
+  void removed(Object item) {
+    if (mIndexes != null) {
+      mIndexes.remove(item);
+    }
+  }
+
+  /**
+   * Forgets the pending entries, once the index is built or cleared.
+   */
+  void clear() {
+    mIndexes = null;
+    mScanned = 0;
+  }
+
+  /**
+   * Called before a query scans the pending entries.
+   *
+   * @return whether the index should be built instead, as scanning them would cost more than
+   * building it
+   */
+  boolean shouldBuild(int built, int size) {
+    final int pending = size - built;
+    if (pending == 0) {
+      return false;
+    }
+    if (mScanned + pending >= size) {
+      return true;
+    }
+    mScanned += pending;
+    return false;
+  }
+
+  /**
+   * @return the index of the pending entry of the given item, which is located at (x, y), or -1 if
+   * it isn't pending.
+   */
+  int indexOf(double[] xs, double[] ys, Object[] items, boolean[] removed, int built, int size,
+              double x, double y, Object item) {
+    if (size - built <= MAX_SCANNED_LOOKUP) {
+      for (int i = built; i < size; i++) {
+        if (!removed[i] && xs[i] == x && ys[i] == y && (items[i] == item || items[i].equals(item))) {
+          return i;
+        }
+      }
+      return -1;
+    }
+    if (mIndexes == null) {
+      mIndexes = new HashMap<>((size - built) * 2);
+      for (int i = built; i < size; i++) {
+        if (!removed[i]) {
+          mIndexes.put(items[i], i);
+        }
+      }
+    }
+    final Integer index = mIndexes.get(item);
+    return index != null && xs[index] == x && ys[index] == y ? index : -1;
+  }
+}
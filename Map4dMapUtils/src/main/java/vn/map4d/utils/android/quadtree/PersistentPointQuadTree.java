@@ -0,0 +1,376 @@
+package vn.map4d.utils.android.quadtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+
+/**
+ * An immutable quad tree which tracks items with a Point geometry.
+ * <p/>
+ * Adding or removing an item returns a new tree which shares every untouched quad with the
+ * original one, so only the path from the root to the changed leaf is copied. A tree can therefore
+ * be searched from any thread while newer versions are being built, without locking.
+ * Items are expected to be immutable while they are in a tree.
+ */
+public final class PersistentPointQuadTree<T extends PointQuadTree.Item> {
+  /**
+   * Maximum number of elements to store in a quad before splitting.
+   */
+  private final static int MAX_ELEMENTS = 50;
+  /**
+   * Maximum depth.
+   */
+  private final static int MAX_DEPTH = 40;
+  /**
+   * Number of elements at or below which a split quad is merged back into a single quad.
+   */
+  private final static int COLLAPSE_ELEMENTS = MAX_ELEMENTS / 2;
+
+  private final static double[] NO_COORDINATES = new double[0];
+  private final static Object[] NO_ITEMS = new Object[0];
+
+  /**
+   * The bounds of this quad.
+   */
+  private final Bounds mBounds;
+  /**
+   * The depth of this quad in the tree.
+   */
+  private final int mDepth;
+  /**
+   * Number of elements inside this quad and all of its descendants.
+   */
+  private final int mCount;
+  /**
+   * Coordinates and elements of this quad, if it is a leaf.
+   */
+  private final double[] mXs;
+  private final double[] mYs;
+  private final Object[] mItems;
+  /**
+   * Child quads, in the order top left, top right, bottom left, bottom right.
+   */
+  private final PersistentPointQuadTree<T>[] mChildren;
+
+  /**
+   * Creates a new, empty quad tree with specified bounds.
+   */
+  public PersistentPointQuadTree(double minX, double maxX, double minY, double maxY) {
+    this(new Bounds(minX, maxX, minY, maxY));
+  }
+
+  public PersistentPointQuadTree(Bounds bounds) {
+    this(bounds, 0, NO_COORDINATES, NO_COORDINATES, NO_ITEMS);
+  }
+
+  private PersistentPointQuadTree(Bounds bounds, int depth, double[] xs, double[] ys, Object[] items) {
+    mBounds = bounds;
+    mDepth = depth;
+    mCount = items.length;
+    mXs = xs;
+    mYs = ys;
+    mItems = items;
+    mChildren = null;
+  }
+
+  private PersistentPointQuadTree(Bounds bounds, int depth, int count, PersistentPointQuadTree<T>[] children) {
+    mBounds = bounds;
+    mDepth = depth;
+    mCount = count;
+    mXs = null;
+    mYs = null;
+    mItems = null;
+    mChildren = children;
+  }
+
+  /**
+   * @return the number of items in this tree.
+   */
+  public int size() {
+    return mCount;
+  }
+
+  /**
+   * @return a tree containing the items of this tree plus the given item, or this tree if the item
+   * is outside of its bounds.
+   */
+  public PersistentPointQuadTree<T> plus(T item) {
+    Point point = item.getPoint();
+    if (!this.mBounds.contains(point.x, point.y)) {
+      return this;
+    }
+    return plus(point.x, point.y, item);
+  }
+
+  private PersistentPointQuadTree<T> plus(double x, double y, T item) {
+    if (this.mChildren != null) {
+      final int index = childIndex(x, y);
+      final PersistentPointQuadTree<T>[] children = mChildren.clone();
+      children[index] = mChildren[index].plus(x, y, item);
+      return new PersistentPointQuadTree<T>(mBounds, mDepth, mCount + 1, children);
+    }
+    final int size = mItems.length;
+    if (size + 1 > MAX_ELEMENTS && mDepth < MAX_DEPTH) {
+      final Staging staging = new Staging(size + 1);
+      staging.addLeaf(this);
+      staging.add(x, y, item);
+      return build(mBounds, mDepth, staging, 0, staging.mSize);
+    }
+    final double[] xs = new double[size + 1];
+    final double[] ys = new double[size + 1];
+    final Object[] items = new Object[size + 1];
+    System.arraycopy(mXs, 0, xs, 0, size);
+    System.arraycopy(mYs, 0, ys, 0, size);
+    System.arraycopy(mItems, 0, items, 0, size);
+    xs[size] = x;
+    ys[size] = y;
+    items[size] = item;
+    return new PersistentPointQuadTree<T>(mBounds, mDepth, xs, ys, items);
+  }
+
+  /**
+   * @return a tree containing the items of this tree plus the given items. Items outside of the
+   * bounds of this tree are ignored.
+   */
+  public PersistentPointQuadTree<T> plusAll(Collection<? extends T> items) {
+    final Staging staging = new Staging(items.size());
+    for (T item : items) {
+      Point point = item.getPoint();
+      if (this.mBounds.contains(point.x, point.y)) {
+        staging.add(point.x, point.y, item);
+      }
+    }
+    return plusAll(staging, 0, staging.mSize);
+  }
+
+  private PersistentPointQuadTree<T> plusAll(Staging staging, int from, int to) {
+    if (from == to) {
+      return this;
+    }
+    if (this.mChildren == null) {
+      // Stage this leaf's items along with the new ones and rebuild it.
+      final Staging merged = new Staging(mItems.length + to - from);
+      merged.addLeaf(this);
+      for (int i = from; i < to; i++) {
+        merged.add(staging.mXs[i], staging.mYs[i], staging.item(i));
+      }
+      return build(mBounds, mDepth, merged, 0, merged.mSize);
+    }
+    final int[] bounds = staging.partition(mBounds, from, to);
+    final PersistentPointQuadTree<T>[] children = mChildren.clone();
+    for (int i = 0; i < 4; i++) {
+      children[i] = mChildren[i].plusAll(staging, bounds[i], bounds[i + 1]);
+    }
+    return new PersistentPointQuadTree<T>(mBounds, mDepth, mCount + to - from, children);
+  }
+
+  /**
+   * @return a tree containing the items of this tree except the given item, or this tree if the
+   * item isn't in it.
+   */
+  public PersistentPointQuadTree<T> minus(T item) {
+    Point point = item.getPoint();
+    if (!this.mBounds.contains(point.x, point.y)) {
+      return this;
+    }
+    return minus(point.x, point.y, item);
+  }
+
+  private PersistentPointQuadTree<T> minus(double x, double y, T item) {
+    if (this.mChildren != null) {
+      final int index = childIndex(x, y);
+      final PersistentPointQuadTree<T> child = mChildren[index].minus(x, y, item);
+      if (child == mChildren[index]) {
+        return this;
+      }
+      final PersistentPointQuadTree<T>[] children = mChildren.clone();
+      children[index] = child;
+      final PersistentPointQuadTree<T> result = new PersistentPointQuadTree<T>(mBounds, mDepth, mCount - 1, children);
+      if (result.mCount <= COLLAPSE_ELEMENTS) {
+        final Staging staging = new Staging(result.mCount);
+        staging.addAll(result);
+        return build(mBounds, mDepth, staging, 0, staging.mSize);
+      }
+      return result;
+    }
+    int index = -1;
+    for (int i = 0; i < mItems.length; i++) {
+      if (mItems[i] == item || mItems[i].equals(item)) {
+        index = i;
+        break;
+      }
+    }
+    if (index < 0) {
+      return this;
+    }
+    final int size = mItems.length - 1;
+    final double[] xs = new double[size];
+    final double[] ys = new double[size];
+    final Object[] items = new Object[size];
+    System.arraycopy(mXs, 0, xs, 0, index);
+    System.arraycopy(mYs, 0, ys, 0, index);
+    System.arraycopy(mItems, 0, items, 0, index);
+    System.arraycopy(mXs, index + 1, xs, index, size - index);
+    System.arraycopy(mYs, index + 1, ys, index, size - index);
+    System.arraycopy(mItems, index + 1, items, index, size - index);
+    return new PersistentPointQuadTree<T>(mBounds, mDepth, xs, ys, items);
+  }
+
+  /**
+   * Builds a quad holding the staged items in [from, to).
+   */
+  @SuppressWarnings("unchecked")
+  private static <T extends PointQuadTree.Item> PersistentPointQuadTree<T> build(
+    Bounds bounds, int depth, Staging staging, int from, int to) {
+    final int count = to - from;
+    if (count <= MAX_ELEMENTS || depth >= MAX_DEPTH) {
+      final double[] xs = new double[count];
+      final double[] ys = new double[count];
+      final Object[] items = new Object[count];
+      for (int i = 0; i < count; i++) {
+        xs[i] = staging.mXs[from + i];
+        ys[i] = staging.mYs[from + i];
+        items[i] = staging.item(from + i);
+      }
+      return new PersistentPointQuadTree<T>(bounds, depth, xs, ys, items);
+    }
+    final int[] ranges = staging.partition(bounds, from, to);
+    final PersistentPointQuadTree<T>[] children = new PersistentPointQuadTree[4];
+    children[0] = build(new Bounds(bounds.minX, bounds.midX, bounds.minY, bounds.midY), depth + 1, staging, ranges[0], ranges[1]);
+    children[1] = build(new Bounds(bounds.midX, bounds.maxX, bounds.minY, bounds.midY), depth + 1, staging, ranges[1], ranges[2]);
+    children[2] = build(new Bounds(bounds.minX, bounds.midX, bounds.midY, bounds.maxY), depth + 1, staging, ranges[2], ranges[3]);
+    children[3] = build(new Bounds(bounds.midX, bounds.maxX, bounds.midY, bounds.maxY), depth + 1, staging, ranges[3], ranges[4]);
+    return new PersistentPointQuadTree<T>(bounds, depth, count, children);
+  }
+
+  /**
+   * @return the index of the child quad containing the given point.
+   */
+  private int childIndex(double x, double y) {
+    if (y < mBounds.midY) {
+      return x < mBounds.midX ? 0 : 1; // top left, top right
+    } else {
+      return x < mBounds.midX ? 2 : 3; // bottom left, bottom right
+    }
+  }
+
+  /**
+   * Search for all items within a given bounds.
+   */
+  public Collection<T> search(Bounds searchBounds) {
+    final List<T> results = new ArrayList<T>();
+    search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, new PointQuadTree.Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        results.add(item);
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Search for all items within the given bounds, handing each of them to the visitor.
+   */
+  @SuppressWarnings("unchecked")
+  public void search(double minX, double maxX, double minY, double maxY, PointQuadTree.Visitor<? super T> visitor) {
+    if (mCount == 0 || !mBounds.intersects(minX, maxX, minY, maxY)) {
+      return;
+    }
+
+    if (this.mChildren != null) {
+      for (PersistentPointQuadTree<T> quad : mChildren) {
+        quad.search(minX, maxX, minY, maxY, visitor);
+      }
+    } else if (mBounds.minX >= minX && mBounds.maxX <= maxX && mBounds.minY >= minY && mBounds.maxY <= maxY) {
+      for (Object item : mItems) {
+        visitor.visit((T) item);
+      }
+    } else {
+      for (int i = 0; i < mItems.length; i++) {
+        final double x = mXs[i];
+        final double y = mYs[i];
+        if (minX <= x && x <= maxX && minY <= y && y <= maxY) {
+          visitor.visit((T) mItems[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Hands every item of this tree to the visitor, in quad order.
+   */
+  @SuppressWarnings("unchecked")
+  public void visitAll(PointQuadTree.Visitor<? super T> visitor) {
+    if (this.mChildren != null) {
+      for (PersistentPointQuadTree<T> quad : mChildren) {
+        quad.visitAll(visitor);
+      }
+    } else {
+      for (Object item : mItems) {
+        visitor.visit((T) item);
+      }
+    }
+  }
+
+  /**
+   * Parallel coordinate and item arrays used while building quads. Items are addressed through an
+   * int index so that {@link PointQuadTree#partition} can reorder them.
+   */
+  private static final class Staging {
+    private final double[] mXs;
+    private final double[] mYs;
+    private final int[] mIndices;
+    private final Object[] mItems;
+    private int mSize;
+
+    Staging(int capacity) {
+      mXs = new double[capacity];
+      mYs = new double[capacity];
+      mIndices = new int[capacity];
+      mItems = new Object[capacity];
+    }
+
+    void add(double x, double y, Object item) {
+      mXs[mSize] = x;
+      mYs[mSize] = y;
+      mIndices[mSize] = mSize;
+      mItems[mSize] = item;
+      mSize++;
+    }
+
+    void addLeaf(PersistentPointQuadTree<?> leaf) {
+      for (int i = 0; i < leaf.mItems.length; i++) {
+        add(leaf.mXs[i], leaf.mYs[i], leaf.mItems[i]);
+      }
+    }
+
+    void addAll(PersistentPointQuadTree<?> quad) {
+      if (quad.mChildren != null) {
+        for (PersistentPointQuadTree<?> child : quad.mChildren) {
+          addAll(child);
+        }
+      } else {
+        addLeaf(quad);
+      }
+    }
+
+    Object item(int i) {
+      return mItems[mIndices[i]];
+    }
+
+    /**
+     * Partitions [from, to) into the four quadrants of bounds.
+     *
+     * @return the five boundaries of the quadrant ranges, in child order.
+     */
+    int[] partition(Bounds bounds, int from, int to) {
+      final int bottom = PointQuadTree.partition(mXs, mYs, mIndices, from, to, false, bounds.midY);
+      final int topRight = PointQuadTree.partition(mXs, mYs, mIndices, from, bottom, true, bounds.midX);
+      final int bottomRight = PointQuadTree.partition(mXs, mYs, mIndices, bottom, to, true, bounds.midX);
+      return new int[]{from, topRight, bottom, bottomRight, to};
+    }
+  }
+}
@@ -1,10 +1,11 @@
 package vn.map4d.utils.android.quadtree;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.LinkedHashSet;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.PriorityQueue;
 
 import vn.map4d.utils.android.geometry.Bounds;
 import vn.map4d.utils.android.geometry.Point;
@@ -12,9 +13,14 @@ import vn.map4d.utils.android.geometry.Point;
 /**
  * A quad tree which tracks items with a Point geometry.
  * See http://en.wikipedia.org/wiki/Quadtree for details on the data structure.
+ * <p/>
+ * Leaves keep their points as parallel primitive arrays (x, y and an item slot) so that searches
+ * scan contiguous memory instead of walking hash entries. Items themselves live in a slot table
+ * shared by every quad of the tree. The tree does not de-duplicate items; callers are expected
+ * not to add the same item twice.
  * This class is not thread safe.
  */
-public class PointQuadTree<T extends PointQuadTree.Item> {
+public class PointQuadTree<T extends PointQuadTree.Item> implements SpatialIndex<T> {
   /**
    * Maximum number of elements to store in a quad before splitting.
    */
@@ -23,6 +29,25 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
    * Maximum depth.
    */
   private final static int MAX_DEPTH = 40;
+  /**
+   * Number of elements at or below which a split quad is merged back into a single quad when
+   * items are removed. Kept well below {@link #MAX_ELEMENTS} so that a quad hovering around the
+   * split threshold doesn't keep splitting and collapsing.
+   */
+  private final static int COLLAPSE_ELEMENTS = MAX_ELEMENTS / 2;
+  /**
+   * Creates quad trees.
+   */
+  public final static SpatialIndex.Factory FACTORY = new SpatialIndex.Factory() {
+    @Override
+    public <T extends Item> SpatialIndex<T> create(Bounds bounds) {
+      return new PointQuadTree<T>(bounds);
+    }
+  };
+  /**
+   * Initial capacity of the per-leaf arrays.
+   */
+  private final static int INITIAL_LEAF_CAPACITY = 4;
   /**
    * The bounds of this quad.
    */
@@ -32,13 +57,41 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
    */
   private final int mDepth;
   /**
-   * The elements inside this quad, if any.
+   * Item storage shared by all quads of this tree.
+   */
+  private final Slots<T> mSlots;
+  /**
+   * X coordinates of the elements inside this quad, if any.
+   */
+  private double[] mXs;
+  /**
+   * Y coordinates of the elements inside this quad, if any.
+   */
+  private double[] mYs;
+  /**
+   * Slots (in {@link #mSlots}) of the elements inside this quad, if any.
+   */
+  private int[] mItemSlots;
+  /**
+   * Number of elements inside this quad.
    */
-  private Set<T> mItems;
+  private int mSize;
   /**
-   * Child quads.
+   * Number of elements inside this quad and all of its descendants.
    */
-  private List<PointQuadTree<T>> mChildren = null;
+  private int mCount;
+  /**
+   * Sum of the x coordinates of the elements inside this quad and all of its descendants.
+   */
+  private double mSumX;
+  /**
+   * Sum of the y coordinates of the elements inside this quad and all of its descendants.
+   */
+  private double mSumY;
+  /**
+   * Child quads, in the order top left, top right, bottom left, bottom right.
+   */
+  private PointQuadTree<T>[] mChildren = null;
 
   /**
    * Creates a new quad tree with specified bounds.
@@ -53,70 +106,204 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
   }
 
   public PointQuadTree(Bounds bounds) {
-    this(bounds, 0);
+    this(bounds, 0, new Slots<T>());
   }
 
-  private PointQuadTree(double minX, double maxX, double minY, double maxY, int depth) {
-    this(new Bounds(minX, maxX, minY, maxY), depth);
+  private PointQuadTree(double minX, double maxX, double minY, double maxY, int depth, Slots<T> slots) {
+    this(new Bounds(minX, maxX, minY, maxY), depth, slots);
   }
 
-  private PointQuadTree(Bounds bounds, int depth) {
+  private PointQuadTree(Bounds bounds, int depth, Slots<T> slots) {
     mBounds = bounds;
     mDepth = depth;
+    mSlots = slots;
   }
 
   /**
    * Insert an item.
    */
+  @Override
   public void add(T item) {
     Point point = item.getPoint();
     if (this.mBounds.contains(point.x, point.y)) {
-      insert(point.x, point.y, item);
+      insert(point.x, point.y, mSlots.acquire(item));
     }
   }
 
-  private void insert(double x, double y, T item) {
+  private void insert(double x, double y, int slot) {
+    mCount++;
+    mSumX += x;
+    mSumY += y;
     if (this.mChildren != null) {
-      if (y < mBounds.midY) {
-        if (x < mBounds.midX) { // top left
-          mChildren.get(0).insert(x, y, item);
-        } else { // top right
-          mChildren.get(1).insert(x, y, item);
-        }
-      } else {
-        if (x < mBounds.midX) { // bottom left
-          mChildren.get(2).insert(x, y, item);
-        } else {
-          mChildren.get(3).insert(x, y, item);
-        }
-      }
+      childFor(x, y).insert(x, y, slot);
       return;
     }
-    if (mItems == null) {
-      mItems = new LinkedHashSet<>();
+    if (mXs == null) {
+      mXs = new double[INITIAL_LEAF_CAPACITY];
+      mYs = new double[INITIAL_LEAF_CAPACITY];
+      mItemSlots = new int[INITIAL_LEAF_CAPACITY];
+    } else if (mSize == mXs.length) {
+      int capacity = mDepth < MAX_DEPTH ? Math.min(mSize * 2, MAX_ELEMENTS + 1) : mSize * 2;
+      mXs = Arrays.copyOf(mXs, capacity);
+      mYs = Arrays.copyOf(mYs, capacity);
+      mItemSlots = Arrays.copyOf(mItemSlots, capacity);
+    }
+    mXs[mSize] = x;
+    mYs[mSize] = y;
+    mItemSlots[mSize] = slot;
+    mSize++;
+    if (mSize > MAX_ELEMENTS && mDepth < MAX_DEPTH) {
+      split();
+    }
+  }
+
+  /**
+   * Insert a collection of items in one pass.
+   * <p/>
+   * Points are radix-partitioned into quadrants (which orders them along the Z-order curve of
+   * this tree) and each quad is filled once, so leaves are not repeatedly split and re-inserted
+   * as they would be by calling {@link #add(Item)} for every item.
+   */
+  @Override
+  public void addAll(Collection<? extends T> items) {
+    final int count = items.size();
+    final double[] xs = new double[count];
+    final double[] ys = new double[count];
+    final int[] slots = new int[count];
+    int n = 0;
+    for (T item : items) {
+      Point point = item.getPoint();
+      if (this.mBounds.contains(point.x, point.y)) {
+        xs[n] = point.x;
+        ys[n] = point.y;
+        slots[n] = mSlots.acquire(item);
+        n++;
+      }
+    }
+    insertAll(xs, ys, slots, 0, n);
+  }
+
+  private void insertAll(double[] xs, double[] ys, int[] slots, int from, int to) {
+    final int count = to - from;
+    if (count == 0) {
+      return;
     }
-    mItems.add(item);
-    if (mItems.size() > MAX_ELEMENTS && mDepth < MAX_DEPTH) {
+    if (this.mChildren == null) {
+      if (mSize + count <= MAX_ELEMENTS || mDepth >= MAX_DEPTH) {
+        mCount += count;
+        for (int i = from; i < to; i++) {
+          mSumX += xs[i];
+          mSumY += ys[i];
+        }
+        ensureCapacity(mSize + count);
+        System.arraycopy(xs, from, mXs, mSize, count);
+        System.arraycopy(ys, from, mYs, mSize, count);
+        System.arraycopy(slots, from, mItemSlots, mSize, count);
+        mSize += count;
+        return;
+      }
       split();
     }
+    mCount += count;
+    for (int i = from; i < to; i++) {
+      mSumX += xs[i];
+      mSumY += ys[i];
+    }
+    // Partition into top / bottom, then each half into left / right, matching insert().
+    final int bottom = partition(xs, ys, slots, from, to, false, mBounds.midY);
+    final int topRight = partition(xs, ys, slots, from, bottom, true, mBounds.midX);
+    final int bottomRight = partition(xs, ys, slots, bottom, to, true, mBounds.midX);
+    mChildren[0].insertAll(xs, ys, slots, from, topRight);
+    mChildren[1].insertAll(xs, ys, slots, topRight, bottom);
+    mChildren[2].insertAll(xs, ys, slots, bottom, bottomRight);
+    mChildren[3].insertAll(xs, ys, slots, bottomRight, to);
+  }
+
+  /**
+   * Reorders [from, to) so that points whose x (or y) is below mid come first.
+   *
+   * @return the index of the first point at or above mid.
+   */
+  static int partition(double[] xs, double[] ys, int[] slots, int from, int to, boolean byX, double mid) {
+    int i = from;
+    int j = to - 1;
+    while (true) {
+      while (i <= j && (byX ? xs[i] : ys[i]) < mid) {
+        i++;
+      }
+      while (i <= j && (byX ? xs[j] : ys[j]) >= mid) {
+        j--;
+      }
+      if (i >= j) {
+        return i;
+      }
+      double x = xs[i];
+      xs[i] = xs[j];
+      xs[j] = x;
+      double y = ys[i];
+      ys[i] = ys[j];
+      ys[j] = y;
+      int slot = slots[i];
+      slots[i] = slots[j];
+      slots[j] = slot;
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (mXs == null) {
+      capacity = Math.max(capacity, INITIAL_LEAF_CAPACITY);
+      mXs = new double[capacity];
+      mYs = new double[capacity];
+      mItemSlots = new int[capacity];
+    } else if (capacity > mXs.length) {
+      mXs = Arrays.copyOf(mXs, capacity);
+      mYs = Arrays.copyOf(mYs, capacity);
+      mItemSlots = Arrays.copyOf(mItemSlots, capacity);
+    }
   }
 
   /**
    * Split this quad.
    */
+  @SuppressWarnings("unchecked")
   private void split() {
-    mChildren = new ArrayList<PointQuadTree<T>>(4);
-    mChildren.add(new PointQuadTree<T>(mBounds.minX, mBounds.midX, mBounds.minY, mBounds.midY, mDepth + 1));
-    mChildren.add(new PointQuadTree<T>(mBounds.midX, mBounds.maxX, mBounds.minY, mBounds.midY, mDepth + 1));
-    mChildren.add(new PointQuadTree<T>(mBounds.minX, mBounds.midX, mBounds.midY, mBounds.maxY, mDepth + 1));
-    mChildren.add(new PointQuadTree<T>(mBounds.midX, mBounds.maxX, mBounds.midY, mBounds.maxY, mDepth + 1));
+    mChildren = new PointQuadTree[4];
+    mChildren[0] = new PointQuadTree<T>(mBounds.minX, mBounds.midX, mBounds.minY, mBounds.midY, mDepth + 1, mSlots);
+    mChildren[1] = new PointQuadTree<T>(mBounds.midX, mBounds.maxX, mBounds.minY, mBounds.midY, mDepth + 1, mSlots);
+    mChildren[2] = new PointQuadTree<T>(mBounds.minX, mBounds.midX, mBounds.midY, mBounds.maxY, mDepth + 1, mSlots);
+    mChildren[3] = new PointQuadTree<T>(mBounds.midX, mBounds.maxX, mBounds.midY, mBounds.maxY, mDepth + 1, mSlots);
 
-    Set<T> items = mItems;
-    mItems = null;
+    double[] xs = mXs;
+    double[] ys = mYs;
+    int[] slots = mItemSlots;
+    int size = mSize;
+    mXs = null;
+    mYs = null;
+    mItemSlots = null;
+    mSize = 0;
 
-    for (T item : items) {
+    for (int i = 0; i < size; i++) {
       // re-insert items into child quads.
-      insert(item.getPoint().x, item.getPoint().y, item);
+      childFor(xs[i], ys[i]).insert(xs[i], ys[i], slots[i]);
+    }
+  }
+
+  /**
+   * @return the child quad containing the given point. Only valid once this quad is split.
+   */
+  private PointQuadTree<T> childFor(double x, double y) {
+    if (y < mBounds.midY) {
+      if (x < mBounds.midX) { // top left
+        return mChildren[0];
+      } else { // top right
+        return mChildren[1];
+      }
+    } else {
+      if (x < mBounds.midX) { // bottom left
+        return mChildren[2];
+      } else {
+        return mChildren[3];
+      }
     }
   }
 
@@ -125,6 +312,7 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
    *
    * @return whether the item was removed.
    */
+  @Override
   public boolean remove(T item) {
     Point point = item.getPoint();
     if (this.mBounds.contains(point.x, point.y)) {
@@ -135,71 +323,509 @@ public class PointQuadTree<T extends PointQuadTree.Item> {
   }
 
   private boolean remove(double x, double y, T item) {
+    final int slot = detach(x, y, item);
+    if (slot < 0) {
+      return false;
+    }
+    mSlots.release(slot);
+    return true;
+  }
+
+  /**
+   * Unlink the given item from the quads without releasing its slot.
+   *
+   * @return the slot of the item, or -1 if it wasn't found.
+   */
+  private int detach(double x, double y, T item) {
+    final int slot;
     if (this.mChildren != null) {
-      if (y < mBounds.midY) {
-        if (x < mBounds.midX) { // top left
-          return mChildren.get(0).remove(x, y, item);
-        } else { // top right
-          return mChildren.get(1).remove(x, y, item);
+      slot = childFor(x, y).detach(x, y, item);
+      if (slot < 0) {
+        return -1;
+      }
+    } else {
+      int index = indexOf(item);
+      if (index < 0) {
+        return -1;
+      }
+      slot = mItemSlots[index];
+      removeAt(index);
+    }
+    mCount--;
+    if (mCount == 0) {
+      // Avoid carrying rounding errors into an empty quad.
+      mSumX = 0;
+      mSumY = 0;
+    } else {
+      mSumX -= x;
+      mSumY -= y;
+    }
+    if (this.mChildren != null && mCount <= COLLAPSE_ELEMENTS) {
+      collapse();
+    }
+    return slot;
+  }
+
+  /**
+   * Move an item to a new position.
+   * <p/>
+   * The item is looked up at its current {@link Item#getPoint()}, so the point it returns must
+   * only change after this call. If the new position falls in the same leaf the stored
+   * coordinates are updated in place, otherwise the item is only unlinked from its leaf and
+   * relinked below the smallest quad containing both positions. An item moved outside the bounds
+   * of the tree is removed from it.
+   *
+   * @return whether the item was found in the tree.
+   */
+  @Override
+  public boolean move(T item, double x, double y) {
+    Point point = item.getPoint();
+    if (!this.mBounds.contains(point.x, point.y)) {
+      return false;
+    }
+    if (!this.mBounds.contains(x, y)) {
+      return remove(point.x, point.y, item);
+    }
+    return move(point.x, point.y, item, x, y);
+  }
+
+  private boolean move(double fromX, double fromY, T item, double x, double y) {
+    if (this.mChildren != null) {
+      final PointQuadTree<T> from = childFor(fromX, fromY);
+      final PointQuadTree<T> to = childFor(x, y);
+      if (from == to) {
+        if (!from.move(fromX, fromY, item, x, y)) {
+          return false;
         }
       } else {
-        if (x < mBounds.midX) { // bottom left
-          return mChildren.get(2).remove(x, y, item);
-        } else {
-          return mChildren.get(3).remove(x, y, item);
+        final int slot = from.detach(fromX, fromY, item);
+        if (slot < 0) {
+          return false;
         }
+        to.insert(x, y, slot);
       }
     } else {
-      if (mItems == null) {
+      final int index = indexOf(item);
+      if (index < 0) {
         return false;
-      } else {
-        return mItems.remove(item);
       }
+      mXs[index] = x;
+      mYs[index] = y;
+    }
+    mSumX += x - fromX;
+    mSumY += y - fromY;
+    return true;
+  }
+
+  /**
+   * Merge all descendants of this quad back into it, turning it into a leaf.
+   */
+  private void collapse() {
+    final int capacity = Math.max(mCount, INITIAL_LEAF_CAPACITY);
+    final double[] xs = new double[capacity];
+    final double[] ys = new double[capacity];
+    final int[] slots = new int[capacity];
+    gather(xs, ys, slots, 0);
+    mChildren = null;
+    mXs = xs;
+    mYs = ys;
+    mItemSlots = slots;
+    mSize = mCount;
+  }
+
+  /**
+   * Copy the elements of this quad and its descendants into the given arrays, starting at offset.
+   *
+   * @return the offset following the last copied element.
+   */
+  private int gather(double[] xs, double[] ys, int[] slots, int offset) {
+    if (this.mChildren != null) {
+      for (PointQuadTree<T> quad : mChildren) {
+        offset = quad.gather(xs, ys, slots, offset);
+      }
+    } else if (mSize > 0) {
+      System.arraycopy(mXs, 0, xs, offset, mSize);
+      System.arraycopy(mYs, 0, ys, offset, mSize);
+      System.arraycopy(mItemSlots, 0, slots, offset, mSize);
+      offset += mSize;
     }
+    return offset;
+  }
+
+  /**
+   * Reclaim memory left behind by removals.
+   * <p/>
+   * Every split quad holding no more than {@link #MAX_ELEMENTS} items is merged into a single
+   * leaf, leaf arrays are trimmed to their size, the item table is renumbered densely and the
+   * coordinate sums are recomputed to drop accumulated rounding errors.
+   */
+  @Override
+  public void compact() {
+    final Object[] items = new Object[Math.max(mCount, 16)];
+    final int size = compact(items, 0);
+    mSlots.replace(items, size);
+  }
+
+  private int compact(Object[] items, int next) {
+    if (this.mChildren != null && mCount <= MAX_ELEMENTS) {
+      collapse();
+    }
+    mSumX = 0;
+    mSumY = 0;
+    if (this.mChildren != null) {
+      for (PointQuadTree<T> quad : mChildren) {
+        next = quad.compact(items, next);
+        mSumX += quad.mSumX;
+        mSumY += quad.mSumY;
+      }
+    } else if (mSize == 0) {
+      mXs = null;
+      mYs = null;
+      mItemSlots = null;
+    } else {
+      if (mSize < mXs.length) {
+        mXs = Arrays.copyOf(mXs, mSize);
+        mYs = Arrays.copyOf(mYs, mSize);
+        mItemSlots = Arrays.copyOf(mItemSlots, mSize);
+      }
+      for (int i = 0; i < mSize; i++) {
+        mSumX += mXs[i];
+        mSumY += mYs[i];
+        items[next] = mSlots.get(mItemSlots[i]);
+        mItemSlots[i] = next++;
+      }
+    }
+    return next;
+  }
+
+  /**
+   * @return the index of the given item inside this leaf, or -1 if it isn't stored here.
+   */
+  private int indexOf(T item) {
+    for (int i = 0; i < mSize; i++) {
+      T candidate = mSlots.get(mItemSlots[i]);
+      if (candidate == item || candidate.equals(item)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Removes the element at the given leaf index, keeping the insertion order of the others.
+   */
+  private void removeAt(int index) {
+    int tail = mSize - index - 1;
+    if (tail > 0) {
+      System.arraycopy(mXs, index + 1, mXs, index, tail);
+      System.arraycopy(mYs, index + 1, mYs, index, tail);
+      System.arraycopy(mItemSlots, index + 1, mItemSlots, index, tail);
+    }
+    mSize--;
   }
 
   /**
    * Removes all points from the quadTree
    */
+  @Override
   public void clear() {
     mChildren = null;
-    if (mItems != null) {
-      mItems.clear();
-    }
+    mXs = null;
+    mYs = null;
+    mItemSlots = null;
+    mSize = 0;
+    mCount = 0;
+    mSumX = 0;
+    mSumY = 0;
+    mSlots.clear();
   }
 
   /**
    * Search for all items within a given bounds.
    */
+  @Override
   public Collection<T> search(Bounds searchBounds) {
     final List<T> results = new ArrayList<T>();
-    search(searchBounds, results);
+    search(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, new Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        results.add(item);
+      }
+    });
     return results;
   }
 
-  private void search(Bounds searchBounds, Collection<T> results) {
-    if (!mBounds.intersects(searchBounds)) {
+  /**
+   * Search for all items within the given bounds, handing each of them to the visitor instead of
+   * collecting them. Neither the bounds nor a result collection need to be allocated, so a single
+   * visitor can be reused across many searches.
+   */
+  @Override
+  public void search(double minX, double maxX, double minY, double maxY, Visitor<? super T> visitor) {
+    if (!mBounds.intersects(minX, maxX, minY, maxY)) {
       return;
     }
 
     if (this.mChildren != null) {
       for (PointQuadTree<T> quad : mChildren) {
-        quad.search(searchBounds, results);
+        quad.search(minX, maxX, minY, maxY, visitor);
       }
-    } else if (mItems != null) {
-      if (searchBounds.contains(mBounds)) {
-        results.addAll(mItems);
+    } else if (mSize > 0) {
+      if (mBounds.minX >= minX && mBounds.maxX <= maxX && mBounds.minY >= minY && mBounds.maxY <= maxY) {
+        for (int i = 0; i < mSize; i++) {
+          visitor.visit(mSlots.get(mItemSlots[i]));
+        }
       } else {
-        for (T item : mItems) {
-          if (searchBounds.contains(item.getPoint())) {
-            results.add(item);
+        for (int i = 0; i < mSize; i++) {
+          final double x = mXs[i];
+          final double y = mYs[i];
+          if (minX <= x && x <= maxX && minY <= y && y <= maxY) {
+            visitor.visit(mSlots.get(mItemSlots[i]));
           }
         }
       }
     }
   }
 
+  /**
+   * Count the items within a given bounds.
+   * <p/>
+   * Quads entirely inside the bounds contribute their maintained count without being descended,
+   * so only quads crossing the edge of the bounds are scanned.
+   */
+  @Override
+  public int count(Bounds searchBounds) {
+    final double[] aggregate = new double[3];
+    aggregate(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, aggregate);
+    return (int) aggregate[0];
+  }
+
+  /**
+   * Compute the centroid of the items within a given bounds, the same way as
+   * {@link #count(Bounds)}.
+   *
+   * @return the centroid, or null if there are no items within the bounds.
+   */
+  @Override
+  public Point centroid(Bounds searchBounds) {
+    final double[] aggregate = new double[3];
+    aggregate(searchBounds.minX, searchBounds.maxX, searchBounds.minY, searchBounds.maxY, aggregate);
+    if (aggregate[0] == 0) {
+      return null;
+    }
+    return new Point(aggregate[1] / aggregate[0], aggregate[2] / aggregate[0]);
+  }
+
+  /**
+   * Adds the count, x sum and y sum of the items within the given bounds to {@code aggregate}.
+   */
+  private void aggregate(double minX, double maxX, double minY, double maxY, double[] aggregate) {
+    if (mCount == 0 || !mBounds.intersects(minX, maxX, minY, maxY)) {
+      return;
+    }
+    if (mBounds.minX >= minX && mBounds.maxX <= maxX && mBounds.minY >= minY && mBounds.maxY <= maxY) {
+      aggregate[0] += mCount;
+      aggregate[1] += mSumX;
+      aggregate[2] += mSumY;
+    } else if (this.mChildren != null) {
+      for (PointQuadTree<T> quad : mChildren) {
+        quad.aggregate(minX, maxX, minY, maxY, aggregate);
+      }
+    } else {
+      for (int i = 0; i < mSize; i++) {
+        final double x = mXs[i];
+        final double y = mYs[i];
+        if (minX <= x && x <= maxX && minY <= y && y <= maxY) {
+          aggregate[0]++;
+          aggregate[1] += x;
+          aggregate[2] += y;
+        }
+      }
+    }
+  }
+
+  /**
+   * Find the k items closest to the given point, nearest first.
+   * <p/>
+   * Quads are visited best-first by their distance to the point, and the search stops as soon as
+   * the next quad is further away than the k-th best item found so far.
+   */
+  @Override
+  public List<T> nearest(double x, double y, int k) {
+    final List<T> results = new ArrayList<T>();
+    if (k <= 0) {
+      return results;
+    }
+    // Max-heap, so that the furthest of the current best items is at the head.
+    final PriorityQueue<Candidate<T>> best = new PriorityQueue<Candidate<T>>(k, Collections.reverseOrder());
+    final PriorityQueue<Candidate<PointQuadTree<T>>> quads = new PriorityQueue<Candidate<PointQuadTree<T>>>();
+    quads.add(new Candidate<PointQuadTree<T>>(this, distanceSquaredTo(x, y)));
+    while (!quads.isEmpty()) {
+      final Candidate<PointQuadTree<T>> next = quads.poll();
+      if (best.size() == k && next.mDistance > best.peek().mDistance) {
+        break;
+      }
+      final PointQuadTree<T> quad = next.mValue;
+      if (quad.mChildren != null) {
+        for (PointQuadTree<T> child : quad.mChildren) {
+          double distance = child.distanceSquaredTo(x, y);
+          if (best.size() < k || distance <= best.peek().mDistance) {
+            quads.add(new Candidate<PointQuadTree<T>>(child, distance));
+          }
+        }
+      } else {
+        for (int i = 0; i < quad.mSize; i++) {
+          final double dx = quad.mXs[i] - x;
+          final double dy = quad.mYs[i] - y;
+          final double distance = dx * dx + dy * dy;
+          if (best.size() < k) {
+            best.add(new Candidate<T>(mSlots.get(quad.mItemSlots[i]), distance));
+          } else if (distance < best.peek().mDistance) {
+            best.poll();
+            best.add(new Candidate<T>(mSlots.get(quad.mItemSlots[i]), distance));
+          }
+        }
+      }
+    }
+    while (!best.isEmpty()) {
+      results.add(best.poll().mValue);
+    }
+    Collections.reverse(results);
+    return results;
+  }
+
+  /**
+   * Search for all items within the given distance of a point.
+   */
+  public Collection<T> withinRadius(double x, double y, double radius) {
+    final List<T> results = new ArrayList<T>();
+    withinRadius(x, y, radius, new Visitor<T>() {
+      @Override
+      public void visit(T item) {
+        results.add(item);
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Search for all items within the given distance of a point, handing each of them to the
+   * visitor. Quads further away than the radius are skipped.
+   */
+  @Override
+  public void withinRadius(double x, double y, double radius, Visitor<? super T> visitor) {
+    withinRadiusSquared(x, y, radius * radius, visitor);
+  }
+
+  private void withinRadiusSquared(double x, double y, double radiusSquared, Visitor<? super T> visitor) {
+    if (distanceSquaredTo(x, y) > radiusSquared) {
+      return;
+    }
+    if (this.mChildren != null) {
+      for (PointQuadTree<T> quad : mChildren) {
+        quad.withinRadiusSquared(x, y, radiusSquared, visitor);
+      }
+    } else {
+      for (int i = 0; i < mSize; i++) {
+        final double dx = mXs[i] - x;
+        final double dy = mYs[i] - y;
+        if (dx * dx + dy * dy <= radiusSquared) {
+          visitor.visit(mSlots.get(mItemSlots[i]));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the squared distance from the given point to the bounds of this quad, or 0 if the
+   * point is inside it.
+   */
+  private double distanceSquaredTo(double x, double y) {
+    final double dx = Math.max(0, Math.max(mBounds.minX - x, x - mBounds.maxX));
+    final double dy = Math.max(0, Math.max(mBounds.minY - y, y - mBounds.maxY));
+    return dx * dx + dy * dy;
+  }
+
   public interface Item {
     Point getPoint();
   }
+
+  /**
+   * Receives the items found by {@link #search(double, double, double, double, Visitor)}.
+   */
+  public interface Visitor<T> {
+    void visit(T item);
+  }
+
+  /**
+   * A value ranked by its squared distance to a query point.
+   */
+  private static final class Candidate<V> implements Comparable<Candidate<?>> {
+    private final V mValue;
+    private final double mDistance;
+
+    Candidate(V value, double distance) {
+      mValue = value;
+      mDistance = distance;
+    }
+
+    @Override
+    public int compareTo(Candidate<?> other) {
+      return Double.compare(mDistance, other.mDistance);
+    }
+  }
+
+  /**
+   * Growable table of items addressed by int slot. Freed slots are recycled.
+   */
+  private static final class Slots<T> {
+    private Object[] mItems = new Object[16];
+    private int[] mFree = new int[16];
+    private int mFreeCount;
+    private int mNext;
+
+    int acquire(T item) {
+      int slot;
+      if (mFreeCount > 0) {
+        slot = mFree[--mFreeCount];
+      } else {
+        if (mNext == mItems.length) {
+          mItems = Arrays.copyOf(mItems, mNext * 2);
+        }
+        slot = mNext++;
+      }
+      mItems[slot] = item;
+      return slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int slot) {
+      return (T) mItems[slot];
+    }
+
+    void release(int slot) {
+      mItems[slot] = null;
+      if (mFreeCount == mFree.length) {
+        mFree = Arrays.copyOf(mFree, mFreeCount * 2);
+      }
+      mFree[mFreeCount++] = slot;
+    }
+
+    /**
+     * Replace the contents of the table with the first {@code size} entries of items.
+     */
+    void replace(Object[] items, int size) {
+      mItems = items;
+      mNext = size;
+      mFree = new int[16];
+      mFreeCount = 0;
+    }
+
+    void clear() {
+      mItems = new Object[16];
+      mFree = new int[16];
+      mFreeCount = 0;
+      mNext = 0;
+    }
+  }
 }
@@ -0,0 +1,89 @@
+package vn.map4d.utils.android.quadtree;
+
+import java.util.Collection;
+import java.util.List;
+
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+
+/**
+ * An index of items with a Point geometry, supporting range and nearest-neighbour queries.
+ * Implementations are not expected to be thread safe.
+ */
+public interface SpatialIndex<T extends PointQuadTree.Item> {
+
+  /**
+   * Insert an item. Items outside the bounds of the index are ignored.
+   */
+  void add(T item);
+
+  /**
+   * Insert a collection of items. Items outside the bounds of the index are ignored.
+   */
+  void addAll(Collection<? extends T> items);
+
+  /**
+   * Remove the given item.
+   *
+   * @return whether the item was removed.
+   */
+  boolean remove(T item);
+
+  /**
+   * Move an item to a new position. The item is looked up at its current
+   * {@link PointQuadTree.Item#getPoint()}, so the point it returns must only change after this
+   * call. An item moved outside the bounds of the index is removed from it.
+   *
+   * @return whether the item was found in the index.
+   */
+  boolean move(T item, double x, double y);
+
+  /**
+   * Removes all items.
+   */
+  void clear();
+
+  /**
+   * Reclaim memory left behind by removals.
+   */
+  void compact();
+
+  /**
+   * Search for all items within a given bounds.
+   */
+  Collection<T> search(Bounds searchBounds);
+
+  /**
+   * Search for all items within the given bounds, handing each of them to the visitor.
+   */
+  void search(double minX, double maxX, double minY, double maxY, PointQuadTree.Visitor<? super T> visitor);
+
+  /**
+   * Count the items within a given bounds.
+   */
+  int count(Bounds searchBounds);
+
+  /**
+   * @return the centroid of the items within a given bounds, or null if there are none.
+   */
+  Point centroid(Bounds searchBounds);
+
+  /**
+   * Find the k items closest to the given point, nearest first.
+   */
+  List<T> nearest(double x, double y, int k);
+
+  /**
+   * Search for all items within the given distance of a point, handing each of them to the
+   * visitor.
+   */
+  void withinRadius(double x, double y, double radius, PointQuadTree.Visitor<? super T> visitor);
+
+  /**
+   * Creates empty indexes, so that users of an index can choose its implementation without
+   * knowing the type of the items they store.
+   */
+  interface Factory {
+    <T extends PointQuadTree.Item> SpatialIndex<T> create(Bounds bounds);
+  }
+}
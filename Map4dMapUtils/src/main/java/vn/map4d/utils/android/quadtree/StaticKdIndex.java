@@ -0,0 +1,235 @@
+package vn.map4d.utils.android.quadtree;
+
+/**
+ * An immutable KD-tree over plain coordinates, identifying points by their position in the arrays
+ * it was built from.
+ * <p/>
+ * Unlike {@link KdTree} it holds no item references at all, which makes it suitable for indexing
+ * large numbers of intermediate points (for instance the clusters of every zoom level) without
+ * allocating an object per point.
+ */
+public final class StaticKdIndex {
+  /**
+   * Maximum number of points in a node which is scanned linearly instead of being split.
+   */
+  private final static int NODE_SIZE = KdArrays.NODE_SIZE;
+
+  private final double[] mXs;
+  private final double[] mYs;
+  private final int[] mIds;
+
+  /**
+   * Indexes the first {@code size} points of the given arrays, which are not modified.
+   */
+  public StaticKdIndex(double[] xs, double[] ys, int size) {
+    mXs = new double[size];
+    mYs = new double[size];
+    mIds = new int[size];
+    System.arraycopy(xs, 0, mXs, 0, size);
+    System.arraycopy(ys, 0, mYs, 0, size);
+    for (int i = 0; i < size; i++) {
+      mIds[i] = i;
+    }
+    KdArrays.sort(mXs, mYs, 0, size - 1, 0, new KdArrays.Payload() {
+      @Override
+      public void swap(int i, int j) {
+        final int id = mIds[i];
+        mIds[i] = mIds[j];
+        mIds[j] = id;
+      }
+    });
+  }
+
+  /**
+   * @return the number of indexed points.
+   */
+  public int size() {
+    return mIds.length;
+  }
+
+  /**
+   * Hands the id of every point within the given bounds to the visitor.
+   */
+  public void range(double minX, double maxX, double minY, double maxY, final Visitor visitor) {
+    KdArrays.range(mXs, mYs, 0, mIds.length - 1, 0, minX, maxX, minY, maxY, new KdArrays.IndexVisitor() {
+      @Override
+      public void visit(int index) {
+        visitor.visit(mIds[index]);
+      }
+    });
+  }
+
+  /**
+   * Hands the id of every point within the given distance of (x, y) to the visitor.
+   */
+  public void within(double x, double y, double radius, Visitor visitor) {
+    within(0, mIds.length - 1, 0, x, y, radius * radius, radius, visitor);
+  }
+
+  private void within(int left, int right, int axis, double qx, double qy, double radiusSquared, double radius,
+                      Visitor visitor) {
+    if (right - left <= NODE_SIZE) {
+      for (int i = left; i <= right; i++) {
+        final double dx = mXs[i] - qx;
+        final double dy = mYs[i] - qy;
+        if (dx * dx + dy * dy <= radiusSquared) {
+          visitor.visit(mIds[i]);
+        }
+      }
+      return;
+    }
+    final int m = (left + right) >>> 1;
+    final double dx = mXs[m] - qx;
+    final double dy = mYs[m] - qy;
+    if (dx * dx + dy * dy <= radiusSquared) {
+      visitor.visit(mIds[m]);
+    }
+    final double split = axis == 0 ? mXs[m] : mYs[m];
+    final double value = axis == 0 ? qx : qy;
+    if (value - radius <= split) {
+      within(left, m - 1, 1 - axis, qx, qy, radiusSquared, radius, visitor);
+    }
+    if (value + radius >= split) {
+      within(m + 1, right, 1 - axis, qx, qy, radiusSquared, radius, visitor);
+    }
+  }
+
+  /**
+   * Attaches a label to every point, for queries which skip the points of a label.
+   *
+   * @param labels the label of each point, by id; read but not copied
+   */
+  public Labels label(int[] labels) {
+    return new Labels(labels);
+  }
+
+  /**
+   * Labels of the points of this index, with the label shared by all points of each node so that
+   * whole nodes can be skipped.
+   */
+  public final class Labels {
+    /**
+     * Labels of points, or -1 for points which are never returned.
+     */
+    private final int[] mLabels;
+    /**
+     * The label shared by every point of each node, or -2 if they differ. Nodes are identified by
+     * the position of their median, or of their first point for leaves.
+     */
+    private final int[] mNodeLabels;
+
+    private Labels(int[] labels) {
+      mLabels = labels;
+      mNodeLabels = new int[mIds.length];
+      labelNodes(0, mIds.length - 1);
+    }
+
+    private int labelNodes(int left, int right) {
+      if (right < left) {
+        return -1;
+      }
+      int label;
+      if (right - left <= NODE_SIZE) {
+        label = mLabels[mIds[left]];
+        for (int i = left + 1; i <= right && label != -2; i++) {
+          if (mLabels[mIds[i]] != label) {
+            label = -2;
+          }
+        }
+        mNodeLabels[left] = label;
+        return label;
+      }
+      final int m = (left + right) >>> 1;
+      label = mLabels[mIds[m]];
+      final int leftLabel = labelNodes(left, m - 1);
+      final int rightLabel = labelNodes(m + 1, right);
+      if ((leftLabel != label && m > left) || (rightLabel != label && m < right)) {
+        label = -2;
+      }
+      mNodeLabels[m] = label;
+      return label;
+    }
+
+    /**
+     * Finds the point closest to (x, y) whose label is neither the given label nor -1.
+     *
+     * @param maxDistance the distance beyond which points are ignored
+     * @return the id of the point, or -1 if there is none within maxDistance.
+     */
+    public int nearestOutside(double x, double y, int label, double maxDistance) {
+      final Nearest nearest = new Nearest(maxDistance * maxDistance);
+      nearestOutside(0, mIds.length - 1, 0, x, y, label, nearest);
+      return nearest.mId;
+    }
+
+    private void nearestOutside(int left, int right, int axis, double qx, double qy, int label, Nearest nearest) {
+      if (right < left) {
+        return;
+      }
+      if (right - left <= NODE_SIZE) {
+        if (mNodeLabels[left] == label) {
+          return;
+        }
+        for (int i = left; i <= right; i++) {
+          nearest.offer(i, qx, qy, label);
+        }
+        return;
+      }
+      final int m = (left + right) >>> 1;
+      if (mNodeLabels[m] == label) {
+        return;
+      }
+      nearest.offer(m, qx, qy, label);
+      final double delta = (axis == 0 ? qx - mXs[m] : qy - mYs[m]);
+      // Visit the side of the query first, as it is the most likely to hold the nearest point.
+      if (delta <= 0) {
+        nearestOutside(left, m - 1, 1 - axis, qx, qy, label, nearest);
+        if (delta * delta <= nearest.mDistance) {
+          nearestOutside(m + 1, right, 1 - axis, qx, qy, label, nearest);
+        }
+      } else {
+        nearestOutside(m + 1, right, 1 - axis, qx, qy, label, nearest);
+        if (delta * delta <= nearest.mDistance) {
+          nearestOutside(left, m - 1, 1 - axis, qx, qy, label, nearest);
+        }
+      }
+    }
+
+    /**
+     * The closest point found so far by a query.
+     */
+    private final class Nearest {
+      private int mId = -1;
+      /**
+       * Squared distance to the closest point, or to the farthest allowed point if none was found.
+       */
+      private double mDistance;
+
+      Nearest(double distance) {
+        mDistance = distance;
+      }
+
+      void offer(int i, double qx, double qy, int label) {
+        final int id = mIds[i];
+        final int pointLabel = mLabels[id];
+        if (pointLabel == label || pointLabel == -1) {
+          return;
+        }
+        final double dx = mXs[i] - qx;
+        final double dy = mYs[i] - qy;
+        final double distance = dx * dx + dy * dy;
+        if (distance < mDistance || (distance == mDistance && mId == -1)) {
+          mDistance = distance;
+          mId = id;
+        }
+      }
+    }
+  }
+
+  /**
+   * Receives the ids of the points found by a query.
+   */
+  public interface Visitor {
+    void visit(int id);
+  }
+}
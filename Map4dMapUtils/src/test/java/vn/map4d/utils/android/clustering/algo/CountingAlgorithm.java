@@ -0,0 +1,96 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import vn.map4d.utils.android.clustering.MFCluster;
+
+/**
+ * Wraps an algorithm, counting the clusters it computes at each zoom.
+ */
+class CountingAlgorithm extends MFAbstractAlgorithm<TestItem> {
+  final MFAlgorithm<TestItem> mAlgorithm;
+  private final Map<Integer, Integer> mComputations = new HashMap<>();
+
+  CountingAlgorithm(MFAlgorithm<TestItem> algorithm) {
+    mAlgorithm = algorithm;
+  }
+
+  /**
+   * @return the number of times clusters were computed at the given zoom
+   */
+  int getComputations(int zoom) {
+    synchronized (mComputations) {
+      final Integer computations = mComputations.get(zoom);
+      return computations == null ? 0 : computations;
+    }
+  }
+
+  /**
+   * @return the number of times clusters were computed at any zoom
+   */
+  int getComputations() {
+    synchronized (mComputations) {
+      int total = 0;
+      for (int computations : mComputations.values()) {
+        total += computations;
+      }
+      return total;
+    }
+  }
+
+  @Override
+  public Set<? extends MFCluster<TestItem>> getClusters(double zoom) {
+    synchronized (mComputations) {
+      mComputations.put((int) zoom, getComputations((int) zoom) + 1);
+    }
+    return mAlgorithm.getClusters(zoom);
+  }
+
+  @Override
+  public boolean addItem(TestItem item) {
+    return mAlgorithm.addItem(item);
+  }
+
+  @Override
+  public boolean addItems(Collection<TestItem> items) {
+    return mAlgorithm.addItems(items);
+  }
+
+  @Override
+  public void clearItems() {
+    mAlgorithm.clearItems();
+  }
+
+  @Override
+  public boolean removeItem(TestItem item) {
+    return mAlgorithm.removeItem(item);
+  }
+
+  @Override
+  public boolean updateItem(TestItem item) {
+    return mAlgorithm.updateItem(item);
+  }
+
+  @Override
+  public boolean removeItems(Collection<TestItem> items) {
+    return mAlgorithm.removeItems(items);
+  }
+
+  @Override
+  public Collection<TestItem> getItems() {
+    return mAlgorithm.getItems();
+  }
+
+  @Override
+  public int getMaxDistanceBetweenClusteredItems() {
+    return mAlgorithm.getMaxDistanceBetweenClusteredItems();
+  }
+
+  @Override
+  public void setMaxDistanceBetweenClusteredItems(int maxDistance) {
+    mAlgorithm.setMaxDistanceBetweenClusteredItems(maxDistance);
+  }
+}
@@ -0,0 +1,25 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import vn.map4d.utils.android.geometry.Point;
+
+/**
+ * Wraps a local algorithm, counting the clusters it computes at each zoom.
+ */
+class CountingLocalAlgorithm extends CountingAlgorithm implements MFLocalAlgorithm<TestItem> {
+  private final MFLocalAlgorithm<TestItem> mLocalAlgorithm;
+
+  CountingLocalAlgorithm(MFLocalAlgorithm<TestItem> algorithm) {
+    super(algorithm);
+    mLocalAlgorithm = algorithm;
+  }
+
+  @Override
+  public Point getIndexedPoint(TestItem item) {
+    return mLocalAlgorithm.getIndexedPoint(item);
+  }
+
+  @Override
+  public double getDistanceToNearestItem(TestItem item) {
+    return mLocalAlgorithm.getDistanceToNearestItem(item);
+  }
+}
@@ -0,0 +1,115 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+
+public class MFDensityBasedAlgorithmTest {
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+
+  @Test
+  public void getClusters_matchesBruteForce() {
+    final List<TestItem> items = TestItem.randomItems(new Random(1), 1000);
+    final int[] minPoints = {4, 2, 10};
+    for (int min : minPoints) {
+      final MFDensityBasedAlgorithm<TestItem> algorithm = new MFDensityBasedAlgorithm<>();
+      algorithm.setMinPoints(min);
+      algorithm.addItems(items);
+      for (int zoom = 0; zoom <= 14; zoom += 2) {
+        final double halfSpan =
+          algorithm.getMaxDistanceBetweenClusteredItems() / Math.pow(2, zoom) / 256 / 2;
+        assertEquals(bruteForceClusters(items, halfSpan, min),
+          itemSets(algorithm.getClusters(zoom)));
+      }
+    }
+  }
+
+  /**
+   * Clusters the items as described by {@link MFDensityBasedAlgorithm}, comparing every pair.
+   * Items outside the world are never clustered, and border items join the nearest core item,
+   * the first one added on ties.
+   */
+  private static Set<Set<TestItem>> bruteForceClusters(List<TestItem> items, double halfSpan,
+                                                       int minPoints) {
+    final int size = items.size();
+    final Point[] points = new Point[size];
+    final boolean[] inWorld = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = PROJECTION.toPoint(items.get(i).getPosition());
+      inWorld[i] = points[i].x >= 0 && points[i].x <= 1 && points[i].y >= 0 && points[i].y <= 1;
+    }
+    final boolean[] core = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      int count = 0;
+      for (int j = 0; j < size; j++) {
+        if (inWorld[i] && inWorld[j] && isNeighbour(points[i], points[j], halfSpan)) {
+          count++;
+        }
+      }
+      core[i] = count >= minPoints;
+    }
+    final int[] parents = new int[size];
+    for (int i = 0; i < size; i++) {
+      parents[i] = i;
+    }
+    for (int i = 0; i < size; i++) {
+      for (int j = i + 1; j < size; j++) {
+        if (core[i] && core[j] && isNeighbour(points[i], points[j], halfSpan)) {
+          parents[find(parents, i)] = find(parents, j);
+        }
+      }
+    }
+    final Map<Integer, Set<TestItem>> clusters = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      int joined = i;
+      if (!core[i] && inWorld[i]) {
+        double nearest = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < size; j++) {
+          final double dx = points[j].x - points[i].x;
+          final double dy = points[j].y - points[i].y;
+          if (core[j] && isNeighbour(points[i], points[j], halfSpan)
+            && dx * dx + dy * dy < nearest) {
+            nearest = dx * dx + dy * dy;
+            joined = j;
+          }
+        }
+      }
+      final int root = find(parents, joined);
+      if (!clusters.containsKey(root)) {
+        clusters.put(root, new HashSet<TestItem>());
+      }
+      clusters.get(root).add(items.get(i));
+    }
+    return new HashSet<>(clusters.values());
+  }
+
+  private static boolean isNeighbour(Point a, Point b, double halfSpan) {
+    return Math.abs(a.x - b.x) <= halfSpan && Math.abs(a.y - b.y) <= halfSpan;
+  }
+
+  private static int find(int[] parents, int i) {
+    while (parents[i] != i) {
+      i = parents[i];
+    }
+    return i;
+  }
+
+  private static Set<Set<TestItem>> itemSets(Set<? extends MFCluster<TestItem>> clusters) {
+    final Set<Set<TestItem>> itemSets = new HashSet<>();
+    for (MFCluster<TestItem> cluster : clusters) {
+      itemSets.add(new HashSet<>(cluster.getItems()));
+    }
+    return itemSets;
+  }
+}
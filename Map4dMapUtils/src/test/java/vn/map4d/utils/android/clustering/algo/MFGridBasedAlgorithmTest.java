@@ -0,0 +1,261 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import vn.map4d.map.camera.MFCameraPosition;
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+
+public class MFGridBasedAlgorithmTest {
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+  private static final int SCREEN_WIDTH = 400;
+  private static final int SCREEN_HEIGHT = 700;
+
+  @Test
+  public void getClusters_matchesReferenceBinning() {
+    final List<TestItem> items = worldItems(new Random(1), 3000);
+    final MFGridBasedAlgorithm<TestItem> algorithm = new MFGridBasedAlgorithm<>();
+    algorithm.addItems(items);
+    for (int zoom = 0; zoom <= 12; zoom++) {
+      assertEquals(referenceClusters(items, algorithm.getNumCells(zoom), null),
+        TestItem.describe(algorithm.getClusters(zoom)));
+    }
+  }
+
+  @Test
+  public void viewBased_clustersVisibleCellsAndPadding() {
+    final List<TestItem> items = worldItems(new Random(2), 3000);
+    final MFGridViewBasedAlgorithm<TestItem> algorithm =
+      new MFGridViewBasedAlgorithm<>(SCREEN_WIDTH, SCREEN_HEIGHT);
+    algorithm.addItems(items);
+    // Over Hanoi, and over the antimeridian where the visible area wraps around the world.
+    final MFLocationCoordinate[] centers = {
+      new MFLocationCoordinate(21, 105.8), new MFLocationCoordinate(0, 179.95)
+    };
+    for (MFLocationCoordinate center : centers) {
+      for (int zoom = 2; zoom <= 10; zoom++) {
+        algorithm.onCameraChange(cameraPosition(center, zoom));
+        final Viewport viewport = new Viewport(SCREEN_WIDTH, SCREEN_HEIGHT);
+        viewport.setCenter(center);
+        final Bounds padded = viewport.getVisibleBounds(zoom, 1.0 / algorithm.getNumCells(zoom));
+        assertEquals(referenceClusters(items, algorithm.getNumCells(zoom), padded),
+          TestItem.describe(algorithm.getClusters(zoom)));
+      }
+    }
+  }
+
+  @Test
+  public void getClusters_manyCellsRepeatedly_matchesReferenceBinning() {
+    final List<TestItem> items = worldItems(new Random(3), 20000);
+    final MFGridBasedAlgorithm<TestItem> algorithm = new MFGridBasedAlgorithm<>();
+    algorithm.addItems(items);
+    // From few cells to thousands and back, so that the cell table grows, is reused and shrinks.
+    final int[] zooms = {0, 16, 3, 14, 16, 1, 0, 8};
+    for (int zoom : zooms) {
+      assertEquals(referenceClusters(items, algorithm.getNumCells(zoom), null),
+        TestItem.describe(algorithm.getClusters(zoom)));
+    }
+    final List<TestItem> removed = new ArrayList<>(items.subList(0, 19000));
+    algorithm.removeItems(removed);
+    items.removeAll(removed);
+    for (int zoom : zooms) {
+      assertEquals(referenceClusters(items, algorithm.getNumCells(zoom), null),
+        TestItem.describe(algorithm.getClusters(zoom)));
+    }
+  }
+
+  @Test
+  public void pyramid_matchesBinning() {
+    final Random random = new Random(4);
+    final List<TestItem> items = worldItems(random, 5000);
+    final MFGridBasedAlgorithm<TestItem> algorithm = new MFGridBasedAlgorithm<>();
+    algorithm.setPyramidMaxZoom(8);
+    algorithm.addItems(items);
+    assertPyramidMatchesBinning(algorithm, items, 8);
+
+    // Removals renumber the remaining items of the pyramid, updates move them between cells.
+    Collections.shuffle(items, random);
+    final List<TestItem> removed = new ArrayList<>(items.subList(0, 2000));
+    algorithm.removeItems(removed);
+    items.removeAll(removed);
+    for (TestItem item : items.subList(0, 500)) {
+      item.setPosition(21 + random.nextGaussian(), 105.8 + random.nextGaussian());
+      algorithm.updateItem(item);
+    }
+    assertPyramidMatchesBinning(algorithm, items, 8);
+
+    algorithm.addItems(removed);
+    items.addAll(removed);
+    assertPyramidMatchesBinning(algorithm, items, 8);
+  }
+
+  @Test
+  public void pyramid_rebuiltOnGridSizeChange_matchesBinning() {
+    final List<TestItem> items = worldItems(new Random(5), 3000);
+    final MFGridBasedAlgorithm<TestItem> algorithm = new MFGridBasedAlgorithm<>();
+    algorithm.addItems(items);
+    algorithm.setPyramidMaxZoom(6);
+    algorithm.setMaxDistanceBetweenClusteredItems(60);
+    assertPyramidMatchesBinning(algorithm, items, 6);
+  }
+
+  @Test
+  public void viewBasedPyramid_matchesViewBasedBinning() {
+    final List<TestItem> items = worldItems(new Random(6), 5000);
+    final MFGridViewBasedAlgorithm<TestItem> pyramid =
+      new MFGridViewBasedAlgorithm<>(SCREEN_WIDTH, SCREEN_HEIGHT);
+    pyramid.setPyramidMaxZoom(10);
+    pyramid.addItems(items);
+    final MFGridViewBasedAlgorithm<TestItem> binning =
+      new MFGridViewBasedAlgorithm<>(SCREEN_WIDTH, SCREEN_HEIGHT);
+    binning.addItems(items);
+    final MFLocationCoordinate[] centers = {
+      new MFLocationCoordinate(21, 105.8), new MFLocationCoordinate(0, -179.95)
+    };
+    for (MFLocationCoordinate center : centers) {
+      for (int zoom = 0; zoom <= 10; zoom++) {
+        pyramid.onCameraChange(cameraPosition(center, zoom));
+        binning.onCameraChange(cameraPosition(center, zoom));
+        assertEquals(itemsByCluster(binning.getClusters(zoom)),
+          itemsByCluster(pyramid.getClusters(zoom)));
+      }
+    }
+  }
+
+  /**
+   * Random items, without those beyond the latitudes of the projection, whose cells are outside
+   * the world.
+   */
+  private static List<TestItem> worldItems(Random random, int count) {
+    final List<TestItem> items = new ArrayList<>();
+    for (TestItem item : TestItem.randomItems(random, count)) {
+      final double y = PROJECTION.toPoint(item.getPosition()).y;
+      if (y >= 0 && y < 1) {
+        items.add(item);
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Pyramid clusters have the items of the cells of binning clusters, and are placed at their
+   * centroid. Past the pyramid, clusters are binned.
+   */
+  private static void assertPyramidMatchesBinning(MFGridBasedAlgorithm<TestItem> algorithm,
+                                                  List<TestItem> items, int pyramidMaxZoom) {
+    for (int zoom = 0; zoom <= pyramidMaxZoom + 2; zoom++) {
+      final Set<? extends MFCluster<TestItem>> clusters = algorithm.getClusters(zoom);
+      final Set<String> expected = referenceClusters(items, algorithm.getNumCells(zoom), null);
+      if (zoom > pyramidMaxZoom) {
+        assertEquals(expected, TestItem.describe(clusters));
+        continue;
+      }
+      final Set<String> expectedItems = new HashSet<>();
+      for (String cluster : expected) {
+        expectedItems.add(cluster.substring(cluster.indexOf(' ') + 1));
+      }
+      assertEquals(expectedItems, itemsByCluster(clusters));
+      for (MFCluster<TestItem> cluster : clusters) {
+        assertEquals(cluster.getItems().size(), cluster.getSize());
+        double sumX = 0;
+        double sumY = 0;
+        for (TestItem item : cluster.getItems()) {
+          final Point point = PROJECTION.toPoint(item.getPosition());
+          sumX += point.x;
+          sumY += point.y;
+        }
+        final Point position = PROJECTION.toPoint(cluster.getPosition());
+        assertEquals(sumX / cluster.getSize(), position.x, 1e-9);
+        assertEquals(sumY / cluster.getSize(), position.y, 1e-9);
+      }
+    }
+  }
+
+  /**
+   * Describes each cluster by its sorted item ids only.
+   */
+  private static Set<String> itemsByCluster(Set<? extends MFCluster<TestItem>> clusters) {
+    final Set<String> descriptions = new HashSet<>();
+    for (MFCluster<TestItem> cluster : clusters) {
+      final List<Integer> ids = new ArrayList<>();
+      for (TestItem item : cluster.getItems()) {
+        ids.add(item.mId);
+      }
+      Collections.sort(ids);
+      descriptions.add(ids.toString());
+    }
+    return descriptions;
+  }
+
+  /**
+   * Bins the items into the cells of a grid, as described by {@link TestItem#describe}, keeping
+   * the cells which intersect the bounds if any.
+   */
+  private static Set<String> referenceClusters(List<TestItem> items, long numCells, Bounds bounds) {
+    final Map<Point, List<Integer>> cells = new TreeMap<>(new Comparator<Point>() {
+      @Override
+      public int compare(Point a, Point b) {
+        return a.x != b.x ? Double.compare(a.x, b.x) : Double.compare(a.y, b.y);
+      }
+    });
+    for (TestItem item : items) {
+      final Point point = PROJECTION.toPoint(item.getPosition());
+      final Point cell = new Point(Math.floor(point.x * numCells), Math.floor(point.y * numCells));
+      if (bounds != null && !intersects(bounds, cell, numCells)) {
+        continue;
+      }
+      if (!cells.containsKey(cell)) {
+        cells.put(cell, new ArrayList<Integer>());
+      }
+      cells.get(cell).add(item.mId);
+    }
+    final MFSphericalMercatorProjection projection = new MFSphericalMercatorProjection(numCells);
+    final Set<String> descriptions = new HashSet<>();
+    for (Map.Entry<Point, List<Integer>> entry : cells.entrySet()) {
+      final List<Integer> ids = entry.getValue();
+      Collections.sort(ids);
+      final MFLocationCoordinate position = projection.toLocationCoordinate(
+        new Point(entry.getKey().x + .5, entry.getKey().y + .5));
+      descriptions.add(position.getLatitude() + "," + position.getLongitude() + " " + ids);
+    }
+    return descriptions;
+  }
+
+  /**
+   * Whether the cell, or one of its copies around the world, intersects the bounds.
+   */
+  private static boolean intersects(Bounds bounds, Point cell, long numCells) {
+    final double minY = cell.y / numCells;
+    final double maxY = (cell.y + 1) / numCells;
+    if (maxY <= bounds.minY || minY > bounds.maxY) {
+      return false;
+    }
+    for (int copy = -1; copy <= 1; copy++) {
+      final double minX = (cell.x + copy * numCells) / numCells;
+      final double maxX = (cell.x + 1 + copy * numCells) / numCells;
+      if (maxX > bounds.minX && minX <= bounds.maxX) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static MFCameraPosition cameraPosition(MFLocationCoordinate target, double zoom) {
+    return new MFCameraPosition.Builder().target(target).zoom(zoom).build();
+  }
+}
@@ -0,0 +1,98 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+
+public class MFHierarchicalDistanceBasedAlgorithmTest {
+  private static final int MAX_ZOOM = 16;
+
+  @Test
+  public void getClusters_mergesWholeClustersOfTheNextZoom() {
+    final List<TestItem> items = TestItem.randomItems(new Random(1), 5000);
+    final MFHierarchicalDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFHierarchicalDistanceBasedAlgorithm<>(MAX_ZOOM);
+    algorithm.addItems(items);
+    Map<Integer, Integer> next = clusterOf(algorithm.getClusters(MAX_ZOOM));
+    for (int zoom = MAX_ZOOM - 1; zoom >= 0; zoom--) {
+      final Map<Integer, Integer> current = clusterOf(algorithm.getClusters(zoom));
+      assertEquals(next.keySet(), current.keySet());
+      // Items sharing a cluster at the next zoom share a cluster at this zoom.
+      final Map<Integer, Integer> merged = new HashMap<>();
+      for (Map.Entry<Integer, Integer> entry : next.entrySet()) {
+        final Integer previous = merged.put(entry.getValue(), current.get(entry.getKey()));
+        assertTrue(previous == null || previous.equals(current.get(entry.getKey())));
+      }
+      next = current;
+    }
+  }
+
+  @Test
+  public void getClustersInBounds_matchesFilteredClusters() {
+    final List<TestItem> items = TestItem.randomItems(new Random(2), 5000);
+    final MFHierarchicalDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFHierarchicalDistanceBasedAlgorithm<>(MAX_ZOOM);
+    algorithm.addItems(items);
+    final MFLocationCoordinate southWest = new MFLocationCoordinate(5, 95);
+    final MFLocationCoordinate northEast = new MFLocationCoordinate(30, 110);
+    for (int zoom = 0; zoom <= MAX_ZOOM; zoom += 4) {
+      final Set<MFCluster<TestItem>> expected = new HashSet<>();
+      for (MFCluster<TestItem> cluster : algorithm.getClusters(zoom)) {
+        final MFLocationCoordinate position = cluster.getPosition();
+        if (position.getLatitude() >= 5 && position.getLatitude() <= 30
+          && position.getLongitude() >= 95 && position.getLongitude() <= 110) {
+          expected.add(cluster);
+        }
+      }
+      assertFalse(expected.isEmpty());
+      assertEquals(TestItem.describe(expected),
+        TestItem.describe(algorithm.getClusters(zoom, southWest, northEast)));
+    }
+  }
+
+  @Test
+  public void removeItem_rebuildsTheHierarchy() {
+    final List<TestItem> items = TestItem.randomItems(new Random(3), 2000);
+    final MFHierarchicalDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFHierarchicalDistanceBasedAlgorithm<>(MAX_ZOOM);
+    algorithm.addItems(items);
+    algorithm.getClusters(8);
+    final List<TestItem> removed = items.subList(0, 500);
+    assertTrue(algorithm.removeItems(removed));
+    final MFHierarchicalDistanceBasedAlgorithm<TestItem> fresh =
+      new MFHierarchicalDistanceBasedAlgorithm<>(MAX_ZOOM);
+    fresh.addItems(items.subList(500, items.size()));
+    for (int zoom = 0; zoom <= MAX_ZOOM; zoom += 4) {
+      assertEquals(TestItem.describe(fresh.getClusters(zoom)),
+        TestItem.describe(algorithm.getClusters(zoom)));
+    }
+  }
+
+  /**
+   * @return the index of the cluster of each item id, failing if an item is in several clusters.
+   */
+  private static Map<Integer, Integer> clusterOf(Set<? extends MFCluster<TestItem>> clusters) {
+    final Map<Integer, Integer> clusterOf = new HashMap<>();
+    int index = 0;
+    for (MFCluster<TestItem> cluster : clusters) {
+      for (TestItem item : cluster.getItems()) {
+        assertNull(clusterOf.put(item.mId, index));
+      }
+      index++;
+    }
+    return clusterOf;
+  }
+}
@@ -0,0 +1,92 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import vn.map4d.utils.android.quadtree.KdTree;
+import vn.map4d.utils.android.quadtree.PointQuadTree;
+
+public class MFNonHierarchicalDistanceBasedAlgorithmTest {
+  @Test
+  public void addItems_clustersLikeAddItem() {
+    final List<TestItem> items = TestItem.randomItems(new Random(1), 5000);
+    final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> bulk =
+      new MFNonHierarchicalDistanceBasedAlgorithm<>();
+    final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> single =
+      new MFNonHierarchicalDistanceBasedAlgorithm<>();
+    bulk.addItems(items);
+    for (TestItem item : items) {
+      single.addItem(item);
+    }
+    for (int zoom = 0; zoom <= 20; zoom += 2) {
+      assertEquals(TestItem.describe(single.getClusters(zoom)),
+        TestItem.describe(bulk.getClusters(zoom)));
+    }
+  }
+
+  @Test
+  public void updateItem_clustersLikeFreshItems() {
+    final Random random = new Random(2);
+    final List<TestItem> items = TestItem.randomItems(random, 5000);
+    final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFNonHierarchicalDistanceBasedAlgorithm<>();
+    algorithm.addItems(items);
+    algorithm.getClusters(10);
+    for (int i = 0; i < 1000; i++) {
+      final TestItem item = items.get(random.nextInt(items.size()));
+      item.setPosition(random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180);
+      assertTrue(algorithm.updateItem(item));
+    }
+    final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> fresh =
+      new MFNonHierarchicalDistanceBasedAlgorithm<>();
+    fresh.addItems(items);
+    for (int zoom = 0; zoom <= 20; zoom += 2) {
+      assertEquals(TestItem.describe(fresh.getClusters(zoom)),
+        TestItem.describe(algorithm.getClusters(zoom)));
+    }
+  }
+
+  @Test
+  public void kdTree_clustersLikeQuadTree() {
+    final List<TestItem> items = TestItem.randomItems(new Random(3), 5000);
+    final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> quadTree =
+      new MFNonHierarchicalDistanceBasedAlgorithm<>(PointQuadTree.FACTORY);
+    final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> kdTree =
+      new MFNonHierarchicalDistanceBasedAlgorithm<>(KdTree.FACTORY);
+    quadTree.addItems(items);
+    kdTree.addItems(items);
+    for (int zoom = 0; zoom <= 20; zoom += 2) {
+      assertEquals(TestItem.describe(quadTree.getClusters(zoom)),
+        TestItem.describe(kdTree.getClusters(zoom)));
+    }
+  }
+
+  @Test
+  public void getClusters_repeatedly_matchesFreshAlgorithm() {
+    final Random random = new Random(4);
+    final List<TestItem> items = TestItem.randomItems(random, 4000);
+    final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFNonHierarchicalDistanceBasedAlgorithm<>();
+    algorithm.addItems(items.subList(0, 1000));
+    // Bookkeeping kept from earlier calls, with fewer and then more items, must not leak into
+    // later ones.
+    for (int zoom = 20; zoom >= 0; zoom -= 4) {
+      algorithm.getClusters(zoom);
+    }
+    algorithm.addItems(items.subList(1000, items.size()));
+    for (int pass = 0; pass < 2; pass++) {
+      for (int zoom = 0; zoom <= 20; zoom += 2) {
+        final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> fresh =
+          new MFNonHierarchicalDistanceBasedAlgorithm<>();
+        fresh.addItems(items);
+        assertEquals(TestItem.describe(fresh.getClusters(zoom)),
+          TestItem.describe(algorithm.getClusters(zoom)));
+      }
+    }
+  }
+}
@@ -0,0 +1,244 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import vn.map4d.map.camera.MFCameraPosition;
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+
+public class MFNonHierarchicalViewBasedAlgorithmTest {
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+  private static final int SCREEN_WIDTH = 400;
+  private static final int SCREEN_HEIGHT = 700;
+
+  @Test
+  public void incrementalPanning_matchesFreshAlgorithm() {
+    final List<TestItem> items = TestItem.randomItems(new Random(1), 4000);
+    final MFNonHierarchicalViewBasedAlgorithm<TestItem> algorithm = newAlgorithm(items);
+    for (int zoom = 3; zoom <= 9; zoom += 3) {
+      // Pan east from Hanoi, across the antimeridian, and back.
+      for (int step = -12; step <= 12; step++) {
+        final MFLocationCoordinate center = panCenter(Math.abs(step), zoom);
+        algorithm.onCameraChange(cameraPosition(center, zoom));
+        assertEquals(TestItem.describe(getFreshClusters(items, center, zoom)),
+          TestItem.describe(algorithm.getClusters(zoom)));
+      }
+    }
+  }
+
+  @Test
+  public void incrementalPanning_clustersEachItemOfVisibleTilesOnce() {
+    final List<TestItem> items = TestItem.randomItems(new Random(2), 4000);
+    final MFNonHierarchicalViewBasedAlgorithm<TestItem> algorithm = newAlgorithm(items);
+    for (int zoom = 2; zoom <= 8; zoom += 2) {
+      for (int step = 0; step <= 8; step++) {
+        final MFLocationCoordinate center = panCenter(step, zoom);
+        algorithm.onCameraChange(cameraPosition(center, zoom));
+        final Set<? extends MFCluster<TestItem>> clusters = algorithm.getClusters(zoom);
+
+        final long tileCount = 1L << zoom;
+        final Viewport viewport = new Viewport(SCREEN_WIDTH, SCREEN_HEIGHT);
+        viewport.setCenter(center);
+        final Set<Long> visibleTiles = visibleTiles(viewport.getVisibleBounds(zoom), tileCount);
+        final Set<TestItem> expected = new HashSet<>();
+        for (TestItem item : items) {
+          // Items beyond the latitudes of the projection aren't clustered.
+          final double y = PROJECTION.toPoint(item.getPosition()).y;
+          if (y >= 0 && y <= 1 && visibleTiles.contains(tileOf(item, tileCount))) {
+            expected.add(item);
+          }
+        }
+        final Map<TestItem, Integer> counts = new HashMap<>();
+        for (MFCluster<TestItem> cluster : clusters) {
+          final Set<Long> tiles = new HashSet<>();
+          for (TestItem item : cluster.getItems()) {
+            tiles.add(tileOf(item, tileCount));
+            counts.put(item, counts.containsKey(item) ? counts.get(item) + 1 : 1);
+          }
+          // Items of different tiles are never clustered together.
+          assertEquals(1, tiles.size());
+        }
+        assertEquals(expected, counts.keySet());
+        for (int count : counts.values()) {
+          assertEquals(1, count);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void incrementalPanning_itemChanges_evictTheirTiles() {
+    final Random random = new Random(4);
+    final List<TestItem> items = TestItem.randomItems(random, 4000);
+    final MFNonHierarchicalViewBasedAlgorithm<TestItem> algorithm = newAlgorithm(items);
+    // Gets the same changes, so that its items have the same ordinals, but no tiles are cached.
+    final MFNonHierarchicalViewBasedAlgorithm<TestItem> uncached = newAlgorithm(items);
+    final int[] zooms = {4, 7};
+    // Cache the tiles of a few zooms, so that changes evict tiles at each of them.
+    for (int zoom : zooms) {
+      for (int step = 0; step <= 3; step++) {
+        algorithm.onCameraChange(cameraPosition(panCenter(step, zoom), zoom));
+        algorithm.getClusters(zoom);
+      }
+    }
+    int nextId = items.size();
+    for (int i = 0; i < 60; i++) {
+      switch (i % 4) {
+        case 0:
+          final TestItem added = nearHanoi(random, nextId++);
+          items.add(added);
+          algorithm.addItem(added);
+          uncached.addItem(added);
+          break;
+        case 1:
+          final TestItem removed = items.remove(random.nextInt(items.size()));
+          algorithm.removeItem(removed);
+          uncached.removeItem(removed);
+          break;
+        case 2:
+          final TestItem moved = items.get(random.nextInt(items.size()));
+          final TestItem destination = nearHanoi(random, moved.mId);
+          moved.setPosition(destination.getPosition().getLatitude(),
+            destination.getPosition().getLongitude());
+          algorithm.updateItem(moved);
+          uncached.updateItem(moved);
+          break;
+        default:
+          final List<TestItem> addedItems = new ArrayList<>();
+          for (int j = 0; j < 3; j++) {
+            addedItems.add(nearHanoi(random, nextId++));
+          }
+          items.addAll(addedItems);
+          algorithm.addItems(addedItems);
+          uncached.addItems(addedItems);
+          final List<TestItem> removedItems = new ArrayList<>(items.subList(0, 3));
+          items.removeAll(removedItems);
+          algorithm.removeItems(removedItems);
+          uncached.removeItems(removedItems);
+          break;
+      }
+      final int zoom = zooms[i % zooms.length];
+      final MFLocationCoordinate center = panCenter(i % 4, zoom);
+      algorithm.onCameraChange(cameraPosition(center, zoom));
+      uncached.onCameraChange(cameraPosition(center, zoom));
+      // Evicts every tile.
+      uncached.setIncrementalPanning(true);
+      assertEquals(TestItem.describe(uncached.getClusters(zoom)),
+        TestItem.describe(algorithm.getClusters(zoom)));
+    }
+  }
+
+  @Test
+  public void incrementalPanning_fewCachedTiles_matchesFreshAlgorithm() {
+    final Random random = new Random(5);
+    final List<TestItem> items = TestItem.randomItems(random, 4000);
+    final MFNonHierarchicalViewBasedAlgorithm<TestItem> algorithm = newAlgorithm(items);
+    // Fewer tiles than a screen holds, so that every pan evicts tiles which are visible again later.
+    algorithm.setMaxCachedTiles(3);
+    for (int zoom = 5; zoom <= 7; zoom++) {
+      for (int step = -8; step <= 8; step++) {
+        final MFLocationCoordinate center = panCenter(Math.abs(step), zoom);
+        algorithm.onCameraChange(cameraPosition(center, zoom));
+        assertEquals(TestItem.describe(getFreshClusters(items, center, zoom)),
+          TestItem.describe(algorithm.getClusters(zoom)));
+      }
+    }
+    // Evicted tiles are no longer counted, so changes still evict the cached ones.
+    final TestItem item = items.get(0);
+    item.setPosition(21, 105.8);
+    algorithm.updateItem(item);
+    final MFLocationCoordinate center = panCenter(0, 7);
+    algorithm.onCameraChange(cameraPosition(center, 7));
+    assertEquals(TestItem.describe(getFreshClusters(items, center, 7)),
+      TestItem.describe(algorithm.getClusters(7)));
+  }
+
+  @Test
+  public void incrementalPanning_disabled_clustersVisibleArea() {
+    final List<TestItem> items = TestItem.randomItems(new Random(3), 2000);
+    final MFNonHierarchicalViewBasedAlgorithm<TestItem> algorithm = newAlgorithm(items);
+    algorithm.setIncrementalPanning(false);
+    final MFLocationCoordinate center = new MFLocationCoordinate(21, 105.8);
+    algorithm.onCameraChange(cameraPosition(center, 6));
+    final Viewport viewport = new Viewport(SCREEN_WIDTH, SCREEN_HEIGHT);
+    viewport.setCenter(center);
+    final Bounds bounds = viewport.getVisibleBounds(6);
+    final Set<? extends MFCluster<TestItem>> clusters = algorithm.getClusters(6);
+    assertTrue(clusters.size() > 1);
+    for (MFCluster<TestItem> cluster : clusters) {
+      for (TestItem item : cluster.getItems()) {
+        assertTrue(bounds.contains(PROJECTION.toPoint(item.getPosition())));
+      }
+    }
+  }
+
+  static MFNonHierarchicalViewBasedAlgorithm<TestItem> newAlgorithm(List<TestItem> items) {
+    final MFNonHierarchicalViewBasedAlgorithm<TestItem> algorithm =
+      new MFNonHierarchicalViewBasedAlgorithm<>(SCREEN_WIDTH, SCREEN_HEIGHT);
+    algorithm.setIncrementalPanning(true);
+    algorithm.addItems(items);
+    return algorithm;
+  }
+
+  /**
+   * Returns the clusters of a new algorithm, which has no tiles cached.
+   */
+  static Set<? extends MFCluster<TestItem>> getFreshClusters(List<TestItem> items,
+                                                            MFLocationCoordinate center, int zoom) {
+    final MFNonHierarchicalViewBasedAlgorithm<TestItem> algorithm = newAlgorithm(items);
+    algorithm.onCameraChange(cameraPosition(center, zoom));
+    return algorithm.getClusters(zoom);
+  }
+
+  /**
+   * Returns the center of the map after panning by a third of the screen width a number of times,
+   * east of Hanoi.
+   */
+  static MFLocationCoordinate panCenter(int steps, int zoom) {
+    final double longitude = 105.8 + steps * SCREEN_WIDTH / 3.0 / 256 / Math.pow(2, zoom) * 360;
+    return new MFLocationCoordinate(21, (longitude + 180) % 360 - 180);
+  }
+
+  private static TestItem nearHanoi(Random random, int id) {
+    return new TestItem(id, 21 + random.nextGaussian(), 105.8 + random.nextGaussian());
+  }
+
+  static MFCameraPosition cameraPosition(MFLocationCoordinate target, double zoom) {
+    return new MFCameraPosition.Builder().target(target).zoom(zoom).build();
+  }
+
+  private static Set<Long> visibleTiles(Bounds bounds, long tileCount) {
+    final Set<Long> tiles = new HashSet<>();
+    final long minX = (long) Math.floor(bounds.minX * tileCount);
+    final long maxX = Math.min(minX + tileCount - 1, (long) Math.floor(bounds.maxX * tileCount));
+    for (long x = minX; x <= maxX; x++) {
+      for (long y = 0; y < tileCount; y++) {
+        if (y + 1 > bounds.minY * tileCount && y <= bounds.maxY * tileCount) {
+          tiles.add(((x % tileCount) + tileCount) % tileCount * tileCount + y);
+        }
+      }
+    }
+    return tiles;
+  }
+
+  private static long tileOf(TestItem item, long tileCount) {
+    final Point point = PROJECTION.toPoint(item.getPosition());
+    final long x = Math.max(0, Math.min(tileCount - 1, (long) Math.floor(point.x * tileCount)));
+    final long y = Math.max(0, Math.min(tileCount - 1, (long) Math.floor(point.y * tileCount)));
+    return x * tileCount + y;
+  }
+}
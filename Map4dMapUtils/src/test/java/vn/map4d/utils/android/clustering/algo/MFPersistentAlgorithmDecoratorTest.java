@@ -0,0 +1,160 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class MFPersistentAlgorithmDecoratorTest {
+  private static final int MAX_ZOOM = 12;
+
+  private File mDirectory;
+
+  @Before
+  public void setUp() throws IOException {
+    mDirectory = File.createTempFile("clusters", "");
+    assertTrue(mDirectory.delete());
+    assertTrue(mDirectory.mkdir());
+  }
+
+  @After
+  public void tearDown() {
+    delete(mDirectory);
+  }
+
+  @Test
+  public void reload_returnsWrittenClustersWithoutComputing() {
+    final List<TestItem> items = uniqueItems(new Random(1), 3000);
+    final CountingAlgorithm writer = newAlgorithm(items);
+    final MFPersistentAlgorithmDecorator<TestItem> written = newDecorator(writer, "stations");
+    final List<Set<String>> expected = new ArrayList<>();
+    for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+      expected.add(TestItem.describe(written.getClusters(zoom)));
+      assertEquals(TestItem.describe(writer.mAlgorithm.getClusters(zoom)), expected.get(zoom));
+      // Every zoom is clustered when the file is written, and only then.
+      assertEquals(1, writer.getComputations(zoom));
+    }
+    assertEquals(MAX_ZOOM + 1, writer.getComputations());
+    assertEquals(1, mDirectory.listFiles().length);
+
+    // Items added in another order, as they may be after a restart, find the same file.
+    Collections.shuffle(items, new Random(2));
+    final CountingAlgorithm reader = newAlgorithm(items);
+    final MFPersistentAlgorithmDecorator<TestItem> reloaded = newDecorator(reader, "stations");
+    for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+      assertEquals(expected.get(zoom), TestItem.describe(reloaded.getClusters(zoom)));
+    }
+    assertEquals(0, reader.getComputations());
+  }
+
+  @Test
+  public void otherKey_writesNewFile() {
+    final List<TestItem> items = uniqueItems(new Random(3), 1000);
+    newDecorator(newAlgorithm(items), "stations").getClusters(5);
+    final File[] before = mDirectory.listFiles();
+
+    final CountingAlgorithm algorithm = newAlgorithm(items);
+    newDecorator(algorithm, "stations-minPoints=4").getClusters(5);
+    assertEquals(MAX_ZOOM + 1, algorithm.getComputations());
+    // Files of other fingerprints are deleted.
+    final File[] after = mDirectory.listFiles();
+    assertEquals(1, after.length);
+    assertFalse(after[0].equals(before[0]));
+  }
+
+  @Test
+  public void itemChanges_computeClustersAgain() {
+    final Random random = new Random(4);
+    final List<TestItem> items = uniqueItems(random, 1000);
+    final CountingAlgorithm algorithm = newAlgorithm(items);
+    final MFPersistentAlgorithmDecorator<TestItem> decorator = newDecorator(algorithm, "");
+    decorator.getClusters(5);
+
+    final TestItem added = new TestItem(items.size(), -33.9, 151.2);
+    decorator.addItem(added);
+    decorator.removeItem(items.get(0));
+    final TestItem moved = items.get(1);
+    moved.setPosition(64, -22);
+    decorator.updateItem(moved);
+    for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+      assertEquals(TestItem.describe(algorithm.mAlgorithm.getClusters(zoom)),
+        TestItem.describe(decorator.getClusters(zoom)));
+    }
+    assertEquals(2 * (MAX_ZOOM + 1), algorithm.getComputations());
+    assertEquals(1, mDirectory.listFiles().length);
+  }
+
+  @Test
+  public void zoomsAboveMaximum_areComputed() {
+    final CountingAlgorithm algorithm = newAlgorithm(uniqueItems(new Random(5), 1000));
+    final MFPersistentAlgorithmDecorator<TestItem> decorator = newDecorator(algorithm, "");
+    assertEquals(TestItem.describe(algorithm.mAlgorithm.getClusters(MAX_ZOOM + 3)),
+      TestItem.describe(decorator.getClusters(MAX_ZOOM + 3)));
+    assertEquals(1, algorithm.getComputations());
+    assertEquals(0, mDirectory.listFiles().length);
+  }
+
+  @Test
+  public void unwritableDirectory_fallsBackToAlgorithm() throws IOException {
+    // A regular file where the directory should be.
+    final File file = new File(mDirectory, "file");
+    new FileOutputStream(file).close();
+    final CountingAlgorithm algorithm = newAlgorithm(uniqueItems(new Random(6), 1000));
+    final MFPersistentAlgorithmDecorator<TestItem> decorator =
+      new MFPersistentAlgorithmDecorator<>(algorithm, file, MAX_ZOOM, "");
+    for (int zoom = 0; zoom <= MAX_ZOOM; zoom += 4) {
+      assertEquals(TestItem.describe(algorithm.mAlgorithm.getClusters(zoom)),
+        TestItem.describe(decorator.getClusters(zoom)));
+    }
+    assertTrue(file.isFile());
+  }
+
+  private static CountingAlgorithm newAlgorithm(List<TestItem> items) {
+    final CountingAlgorithm algorithm =
+      new CountingAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    algorithm.addItems(items);
+    return algorithm;
+  }
+
+  private MFPersistentAlgorithmDecorator<TestItem> newDecorator(MFAlgorithm<TestItem> algorithm,
+                                                                String key) {
+    return new MFPersistentAlgorithmDecorator<>(algorithm, mDirectory, MAX_ZOOM, key);
+  }
+
+  /**
+   * Items at distinct positions, as the file matches items by position.
+   */
+  private static List<TestItem> uniqueItems(Random random, int count) {
+    final List<TestItem> items = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      if (i % 2 == 0) {
+        items.add(new TestItem(i, 21 + random.nextGaussian() * 0.5, 105.8 + random.nextGaussian() * 0.5));
+      } else {
+        items.add(new TestItem(i, random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180));
+      }
+    }
+    return items;
+  }
+
+  private static void delete(File file) {
+    final File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,383 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+
+public class MFPreCachingAlgorithmDecoratorTest {
+  /**
+   * Runs prefetches on the calling thread, so that tests are deterministic.
+   */
+  private static final Executor DIRECT_EXECUTOR = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  @Test
+  public void getClusters_matchesWrappedAlgorithm() {
+    final List<TestItem> items = TestItem.randomItems(new Random(5), 5000);
+    final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFNonHierarchicalDistanceBasedAlgorithm<>();
+    algorithm.addItems(items);
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator = new MFPreCachingAlgorithmDecorator<>(
+      new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>(), DIRECT_EXECUTOR);
+    decorator.addItems(items);
+    for (int zoom = 0; zoom <= 16; zoom++) {
+      assertEquals(TestItem.describe(algorithm.getClusters(zoom)),
+        TestItem.describe(decorator.getClusters(zoom)));
+    }
+    // Zooming out reads the clusters prefetched on the way in.
+    for (int zoom = 16; zoom >= 0; zoom--) {
+      assertEquals(TestItem.describe(algorithm.getClusters(zoom)),
+        TestItem.describe(decorator.getClusters(zoom)));
+    }
+  }
+
+  @Test
+  public void prefetch_computesEachZoomOnce() {
+    final CountingAlgorithm algorithm =
+      new CountingAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm, DIRECT_EXECUTOR);
+    decorator.addItems(denseItems(new Random(6), 0, 2000));
+    final int[] zooms = {5, 6, 7, 6, 5, 6, 7};
+    for (int zoom : zooms) {
+      decorator.getClusters(zoom);
+    }
+    for (int zoom = 4; zoom <= 8; zoom++) {
+      assertEquals(1, algorithm.getComputations(zoom));
+    }
+    assertEquals(5, algorithm.getComputations());
+  }
+
+  @Test
+  public void concurrentRequests_computeZoomOnce() throws InterruptedException {
+    final CountingAlgorithm algorithm =
+      new CountingAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm);
+    final List<TestItem> items = TestItem.randomItems(new Random(7), 20000);
+    decorator.addItems(items);
+    final Set<String> expected = TestItem.describe(algorithm.mAlgorithm.getClusters(10));
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Set<String>> results = Collections.synchronizedList(new ArrayList<Set<String>>());
+    final List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      final Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          results.add(TestItem.describe(decorator.getClusters(10)));
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(8, results.size());
+    for (Set<String> result : results) {
+      assertEquals(expected, result);
+    }
+    assertEquals(1, algorithm.getComputations(10));
+  }
+
+  @Test
+  public void itemChanges_areReflected() {
+    final Random random = new Random(8);
+    final List<TestItem> items = denseItems(random, 0, 2000);
+    // Not a local algorithm, so that changes evict the cache.
+    final CountingAlgorithm algorithm =
+      new CountingAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm, DIRECT_EXECUTOR);
+    decorator.addItems(items);
+    decorator.getClusters(8);
+
+    final TestItem added = denseItems(random, 2000, 1).get(0);
+    items.add(added);
+    decorator.addItem(added);
+    assertEquals(TestItem.describe(algorithm.mAlgorithm.getClusters(8)),
+      TestItem.describe(decorator.getClusters(8)));
+    final TestItem moved = items.get(0);
+    moved.setPosition(-33, 151);
+    decorator.updateItem(moved);
+    decorator.removeItem(items.remove(1));
+    assertEquals(TestItem.describe(algorithm.mAlgorithm.getClusters(8)),
+      TestItem.describe(decorator.getClusters(8)));
+    assertEquals(3, algorithm.getComputations(8));
+    assertClustersEachItemOnce(items, decorator.getClusters(8));
+  }
+
+  @Test
+  public void tinyCache_keepsRequestedZoomOnly() {
+    final CountingAlgorithm algorithm =
+      new CountingAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm, DIRECT_EXECUTOR);
+    decorator.setMaxCacheSize(1);
+    decorator.addItems(denseItems(new Random(9), 0, 2000));
+    decorator.getClusters(8);
+    decorator.getClusters(8);
+    assertEquals(1, algorithm.getComputations(8));
+    // Prefetches wouldn't fit beside the requested zoom, so they don't run.
+    assertEquals(0, algorithm.getComputations(7));
+    assertEquals(0, algorithm.getComputations(9));
+
+    decorator.getClusters(9);
+    decorator.getClusters(8);
+    assertEquals(2, algorithm.getComputations(8));
+    assertEquals(1, algorithm.getComputations(9));
+  }
+
+  @Test
+  public void cacheBudget_evictsLeastRecentlyUsedZooms() {
+    final CountingAlgorithm algorithm =
+      new CountingAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm, DIRECT_EXECUTOR);
+    decorator.setPrefetchDepth(0);
+    decorator.addItems(denseItems(new Random(10), 0, 2000));
+    // Room for the items of two zooms.
+    decorator.setMaxCachedItems(2000);
+    decorator.getClusters(4);
+    decorator.getClusters(5);
+    decorator.getClusters(4);
+    decorator.getClusters(6);
+    assertEquals(1, algorithm.getComputations(4));
+    decorator.getClusters(4);
+    assertEquals(1, algorithm.getComputations(4));
+    decorator.getClusters(5);
+    assertEquals(2, algorithm.getComputations(5));
+  }
+
+  @Test
+  public void trimMemory_shrinksCache() {
+    final CountingAlgorithm algorithm =
+      new CountingAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm, DIRECT_EXECUTOR);
+    decorator.setPrefetchDepth(0);
+    decorator.addItems(denseItems(new Random(11), 0, 2000));
+    decorator.getClusters(4);
+    decorator.getClusters(5);
+    decorator.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+    decorator.getClusters(5);
+    assertEquals(1, algorithm.getComputations(5));
+    decorator.onLowMemory();
+    decorator.getClusters(4);
+    decorator.getClusters(5);
+    assertEquals(2, algorithm.getComputations(4));
+    assertEquals(2, algorithm.getComputations(5));
+  }
+
+  @Test
+  public void isolatedChanges_arePatchedIntoCache() {
+    final Random random = new Random(12);
+    final List<TestItem> items = denseItems(random, 0, 3000);
+    final CountingLocalAlgorithm algorithm =
+      new CountingLocalAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm, DIRECT_EXECUTOR);
+    decorator.setPrefetchDepth(0);
+    decorator.addItems(items);
+    final int[] zooms = {4, 8, 12};
+    for (int zoom : zooms) {
+      decorator.getClusters(zoom);
+    }
+
+    // Items far from any other, on their own at every cached zoom.
+    final TestItem sydney = new TestItem(3000, -33.9, 151.2);
+    final TestItem lima = new TestItem(3001, -12, -77);
+    decorator.addItem(sydney);
+    decorator.addItem(lima);
+    decorator.removeItem(sydney);
+    lima.setPosition(64, -22);
+    decorator.updateItem(lima);
+    for (int zoom : zooms) {
+      assertEquals(TestItem.describe(algorithm.mAlgorithm.getClusters(zoom)),
+        TestItem.describe(decorator.getClusters(zoom)));
+      assertEquals(1, algorithm.getComputations(zoom));
+    }
+  }
+
+  @Test
+  public void nearbyChanges_evictZoomsTheyMayChange() {
+    final Random random = new Random(13);
+    final List<TestItem> items = denseItems(random, 0, 3000);
+    final CountingLocalAlgorithm algorithm =
+      new CountingLocalAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm, DIRECT_EXECUTOR);
+    decorator.setPrefetchDepth(0);
+    decorator.addItems(items);
+    decorator.getClusters(4);
+    decorator.getClusters(16);
+
+    // Near Bangkok, 0.1 degree apart: on their own at zoom 16, but not at zoom 4.
+    decorator.addItem(new TestItem(3000, 13.75, 100.5));
+    decorator.addItem(new TestItem(3001, 13.85, 100.5));
+    decorator.removeItem(items.get(0));
+    assertEquals(TestItem.describe(algorithm.mAlgorithm.getClusters(4)),
+      TestItem.describe(decorator.getClusters(4)));
+    assertEquals(TestItem.describe(algorithm.mAlgorithm.getClusters(16)),
+      TestItem.describe(decorator.getClusters(16)));
+    assertEquals(2, algorithm.getComputations(4));
+    // The removed item is further from the others than the span of zoom 16.
+    assertEquals(1, algorithm.getComputations(16));
+  }
+
+  @Test
+  public void incrementalClustering_patchesEachItemIntoOneCluster() {
+    final Random random = new Random(1);
+    final List<TestItem> items = denseItems(random, 0, 5000);
+    final CountingAlgorithm algorithm =
+      new CountingAlgorithm(new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>());
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator =
+      new MFPreCachingAlgorithmDecorator<>(algorithm, DIRECT_EXECUTOR);
+    decorator.setPrefetchDepth(0);
+    decorator.setIncrementalClustering(true);
+    decorator.addItems(items);
+    final int[] zooms = {4, 8, 12};
+    for (int zoom : zooms) {
+      assertClustersEachItemOnce(items, decorator.getClusters(zoom));
+    }
+
+    int nextId = items.size();
+    for (int i = 0; i < 500; i++) {
+      switch (random.nextInt(3)) {
+        case 0:
+          final TestItem added = denseItems(random, nextId++, 1).get(0);
+          items.add(added);
+          assertTrue(decorator.addItem(added));
+          break;
+        case 1:
+          assertTrue(decorator.removeItem(items.remove(random.nextInt(items.size()))));
+          break;
+        default:
+          final TestItem moved = items.get(random.nextInt(items.size()));
+          moved.setPosition(21 + random.nextGaussian() * 0.5, 105.8 + random.nextGaussian() * 0.5);
+          assertTrue(decorator.updateItem(moved));
+          break;
+      }
+      if (i % 50 == 0) {
+        for (int zoom : zooms) {
+          assertClustersEachItemOnce(items, decorator.getClusters(zoom));
+        }
+      }
+    }
+    for (int zoom : zooms) {
+      assertClustersEachItemOnce(items, decorator.getClusters(zoom));
+      // Patched rather than computed again.
+      assertEquals(1, algorithm.getComputations(zoom));
+    }
+  }
+
+  @Test
+  public void incrementalClustering_addsItemsToNearbyClustersOrAlone() {
+    final List<TestItem> items = denseItems(new Random(2), 0, 2000);
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator = new MFPreCachingAlgorithmDecorator<>(
+      new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>(), DIRECT_EXECUTOR);
+    decorator.setPrefetchDepth(0);
+    decorator.setIncrementalClustering(true);
+    decorator.addItems(items);
+    MFCluster<TestItem> largest = null;
+    for (MFCluster<TestItem> cluster : decorator.getClusters(6)) {
+      if (largest == null || cluster.getSize() > largest.getSize()) {
+        largest = cluster;
+      }
+    }
+
+    final MFLocationCoordinate center = largest.getPosition();
+    final TestItem near = new TestItem(2000, center.getLatitude(), center.getLongitude());
+    final TestItem far = new TestItem(2001, -40, -60);
+    decorator.addItem(near);
+    decorator.addItem(far);
+    final Map<Integer, MFCluster<TestItem>> clusterOf = clusterOf(decorator.getClusters(6));
+    assertEquals(largest.getSize() + 1, clusterOf.get(near.mId).getSize());
+    assertEquals(center, clusterOf.get(near.mId).getPosition());
+    assertEquals(1, clusterOf.get(far.mId).getSize());
+    assertEquals(far.getPosition(), clusterOf.get(far.mId).getPosition());
+  }
+
+  @Test
+  public void incrementalClustering_leavesReturnedClustersUnchanged() {
+    final List<TestItem> items = denseItems(new Random(3), 0, 2000);
+    final MFPreCachingAlgorithmDecorator<TestItem> decorator = new MFPreCachingAlgorithmDecorator<>(
+      new MFNonHierarchicalDistanceBasedAlgorithm<TestItem>(), DIRECT_EXECUTOR);
+    decorator.setPrefetchDepth(0);
+    decorator.setIncrementalClustering(true);
+    decorator.addItems(items);
+    final Set<? extends MFCluster<TestItem>> before = decorator.getClusters(8);
+    final Set<String> described = TestItem.describe(before);
+    for (TestItem item : items.subList(0, 200)) {
+      decorator.removeItem(item);
+    }
+    decorator.addItems(denseItems(new Random(4), 2000, 100));
+    assertEquals(described, TestItem.describe(before));
+    assertClustersEachItemOnce(items, before);
+  }
+
+  /**
+   * Items around Hanoi, well inside the projected world.
+   */
+  static List<TestItem> denseItems(Random random, int firstId, int count) {
+    final List<TestItem> items = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      items.add(new TestItem(firstId + i,
+        21 + random.nextGaussian() * 0.5, 105.8 + random.nextGaussian() * 0.5));
+    }
+    return items;
+  }
+
+  /**
+   * Checks that the clusters hold exactly the given items, each in one cluster.
+   */
+  static void assertClustersEachItemOnce(List<TestItem> items,
+                                         Set<? extends MFCluster<TestItem>> clusters) {
+    final Map<Integer, MFCluster<TestItem>> clusterOf = clusterOf(clusters);
+    for (TestItem item : items) {
+      assertTrue(clusterOf.containsKey(item.mId));
+    }
+    assertEquals(items.size(), clusterOf.size());
+  }
+
+  /**
+   * @return the cluster of each item id, failing if an item is in several clusters.
+   */
+  private static Map<Integer, MFCluster<TestItem>> clusterOf(
+    Set<? extends MFCluster<TestItem>> clusters) {
+    final Map<Integer, MFCluster<TestItem>> clusterOf = new HashMap<>();
+    for (MFCluster<TestItem> cluster : clusters) {
+      assertTrue(cluster.getSize() > 0);
+      for (TestItem item : cluster.getItems()) {
+        assertTrue(clusterOf.put(item.mId, cluster) == null);
+      }
+    }
+    return clusterOf;
+  }
+}
@@ -0,0 +1,125 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+
+public class MFSingleLinkageAlgorithmTest {
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+  private static final int MAX_ZOOM = 14;
+
+  @Test
+  public void getClusters_matchesLinkedComponents() {
+    final Random random = new Random(1);
+    final List<TestItem> items = TestItem.randomItems(random, 1000);
+    final MFSingleLinkageAlgorithm<TestItem> algorithm = new MFSingleLinkageAlgorithm<>();
+    algorithm.addItems(items);
+    assertMatchesLinkedComponents(algorithm, items);
+
+    // Changes rebuild the tree.
+    Collections.shuffle(items, random);
+    final List<TestItem> removed = new ArrayList<>(items.subList(0, 500));
+    algorithm.removeItems(removed);
+    items.removeAll(removed);
+    for (TestItem item : items.subList(0, 100)) {
+      item.setPosition(21 + random.nextGaussian(), 105.8 + random.nextGaussian());
+      algorithm.updateItem(item);
+    }
+    assertMatchesLinkedComponents(algorithm, items);
+  }
+
+  @Test
+  public void getClusters_mergesWholeClustersOfTheNextZoom() {
+    final List<TestItem> items = TestItem.randomItems(new Random(2), 3000);
+    final MFSingleLinkageAlgorithm<TestItem> algorithm = new MFSingleLinkageAlgorithm<>();
+    algorithm.addItems(items);
+    Map<TestItem, Set<TestItem>> parents = clustersByItem(algorithm.getClusters(0));
+    for (int zoom = 1; zoom <= MAX_ZOOM; zoom++) {
+      final Map<TestItem, Set<TestItem>> children = clustersByItem(algorithm.getClusters(zoom));
+      assertEquals(parents.keySet(), children.keySet());
+      for (Map.Entry<TestItem, Set<TestItem>> entry : children.entrySet()) {
+        assertTrue(parents.get(entry.getKey()).containsAll(entry.getValue()));
+      }
+      parents = children;
+    }
+  }
+
+  private static void assertMatchesLinkedComponents(MFSingleLinkageAlgorithm<TestItem> algorithm,
+                                                    List<TestItem> items) {
+    for (int zoom = 0; zoom <= MAX_ZOOM; zoom += 2) {
+      final double span = algorithm.getMaxDistanceBetweenClusteredItems() / Math.pow(2, zoom) / 256;
+      final Set<? extends MFCluster<TestItem>> clusters = algorithm.getClusters(zoom);
+      assertEquals(linkedComponents(items, span), new HashSet<>(clustersByItem(clusters).values()));
+      for (MFCluster<TestItem> cluster : clusters) {
+        assertEquals(cluster.getItems().size(), cluster.getSize());
+      }
+    }
+  }
+
+  /**
+   * Groups the items linked by pairs closer than the span, with a union find over every pair.
+   * Items projected to infinity are never linked.
+   */
+  private static Set<Set<TestItem>> linkedComponents(List<TestItem> items, double span) {
+    final int size = items.size();
+    final Point[] points = new Point[size];
+    final int[] parents = new int[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = PROJECTION.toPoint(items.get(i).getPosition());
+      parents[i] = i;
+    }
+    for (int i = 0; i < size; i++) {
+      for (int j = i + 1; j < size; j++) {
+        final double dx = points[i].x - points[j].x;
+        final double dy = points[i].y - points[j].y;
+        if (!Double.isInfinite(points[i].y) && !Double.isInfinite(points[j].y)
+          && dx * dx + dy * dy <= span * span) {
+          parents[find(parents, i)] = find(parents, j);
+        }
+      }
+    }
+    final Map<Integer, Set<TestItem>> components = new HashMap<>();
+    for (int i = 0; i < size; i++) {
+      final int root = find(parents, i);
+      if (!components.containsKey(root)) {
+        components.put(root, new HashSet<TestItem>());
+      }
+      components.get(root).add(items.get(i));
+    }
+    return new HashSet<>(components.values());
+  }
+
+  private static int find(int[] parents, int i) {
+    while (parents[i] != i) {
+      i = parents[i];
+    }
+    return i;
+  }
+
+  private static Map<TestItem, Set<TestItem>> clustersByItem(
+    Set<? extends MFCluster<TestItem>> clusters) {
+    final Map<TestItem, Set<TestItem>> clustersByItem = new HashMap<>();
+    for (MFCluster<TestItem> cluster : clusters) {
+      final Set<TestItem> items = new HashSet<>(cluster.getItems());
+      for (TestItem item : items) {
+        assertNull(clustersByItem.put(item, items));
+      }
+    }
+    return clustersByItem;
+  }
+}
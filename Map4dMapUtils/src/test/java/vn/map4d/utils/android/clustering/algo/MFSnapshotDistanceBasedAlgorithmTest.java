@@ -0,0 +1,130 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.geometry.Point;
+import vn.map4d.utils.android.projection.MFSphericalMercatorProjection;
+
+public class MFSnapshotDistanceBasedAlgorithmTest {
+  private static final MFSphericalMercatorProjection PROJECTION = new MFSphericalMercatorProjection(1);
+
+  @Test
+  public void getClusters_clustersEachItemOnce() {
+    final Random random = new Random(1);
+    final List<TestItem> items = TestItem.randomItems(random, 5000);
+    final MFSnapshotDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFSnapshotDistanceBasedAlgorithm<>();
+    algorithm.addItems(items.subList(0, 2500));
+    for (TestItem item : items.subList(2500, items.size())) {
+      algorithm.addItem(item);
+    }
+    Collections.shuffle(items, random);
+    for (TestItem item : items.subList(0, 1000)) {
+      assertTrue(algorithm.removeItem(item));
+    }
+    final List<TestItem> remaining = items.subList(1000, items.size());
+    for (TestItem item : remaining.subList(0, 500)) {
+      item.setPosition(random.nextDouble() * 170 - 85, random.nextDouble() * 360 - 180);
+      assertTrue(algorithm.updateItem(item));
+    }
+    for (int zoom = 0; zoom <= 20; zoom += 2) {
+      assertEquals(indexedIds(remaining), clusteredIds(algorithm.getClusters(zoom)));
+    }
+  }
+
+  @Test
+  public void getItems_listsItemsInInsertionOrder() {
+    final List<TestItem> items = TestItem.randomItems(new Random(2), 500);
+    // Outside of the projected world, so never clustered.
+    items.add(new TestItem(500, 89, 0));
+    final MFSnapshotDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFSnapshotDistanceBasedAlgorithm<>();
+    for (TestItem item : items) {
+      algorithm.addItem(item);
+    }
+    assertEquals(items, new ArrayList<>(algorithm.getItems()));
+    algorithm.removeItem(items.remove(0));
+    assertEquals(items, new ArrayList<>(algorithm.getItems()));
+  }
+
+  @Test
+  public void getClusters_whileItemsChange_clustersEachItemOnce() throws InterruptedException {
+    final Random random = new Random(3);
+    final List<TestItem> items = TestItem.randomItems(random, 3000);
+    final MFSnapshotDistanceBasedAlgorithm<TestItem> algorithm =
+      new MFSnapshotDistanceBasedAlgorithm<>();
+    algorithm.addItems(items);
+    final AtomicBoolean stop = new AtomicBoolean();
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        final Random random = new Random(4);
+        final List<TestItem> live = new ArrayList<>(items);
+        int id = live.size();
+        while (!stop.get()) {
+          if (random.nextBoolean() && live.size() > 100) {
+            algorithm.removeItem(live.remove(random.nextInt(live.size())));
+          } else {
+            final TestItem item =
+              new TestItem(id++, random.nextGaussian() * 5, random.nextGaussian() * 5);
+            live.add(item);
+            algorithm.addItem(item);
+          }
+        }
+      }
+    };
+    writer.start();
+    try {
+      for (int i = 0; i < 100; i++) {
+        final Set<Integer> seen = new HashSet<>();
+        for (MFCluster<TestItem> cluster : algorithm.getClusters(i % 12)) {
+          for (TestItem item : cluster.getItems()) {
+            assertTrue(seen.add(item.mId));
+          }
+        }
+      }
+    } finally {
+      stop.set(true);
+      writer.join();
+    }
+  }
+
+  /**
+   * @return the ids of the items inside the projected world, which are the ones clustered.
+   */
+  private static Set<Integer> indexedIds(List<TestItem> items) {
+    final Set<Integer> ids = new HashSet<>();
+    for (TestItem item : items) {
+      final Point point = PROJECTION.toPoint(item.getPosition());
+      if (0 <= point.y && point.y <= 1) {
+        ids.add(item.mId);
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * @return the ids of the clustered items, failing if an item is in several clusters.
+   */
+  private static Set<Integer> clusteredIds(Set<? extends MFCluster<TestItem>> clusters) {
+    final Set<Integer> ids = new HashSet<>();
+    for (MFCluster<TestItem> cluster : clusters) {
+      for (TestItem item : cluster.getItems()) {
+        assertTrue(ids.add(item.mId));
+      }
+    }
+    return ids;
+  }
+}
@@ -0,0 +1,58 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import vn.map4d.utils.android.quadtree.KdTree;
+import vn.map4d.utils.android.quadtree.PointQuadTree;
+import vn.map4d.utils.android.quadtree.SpatialIndex;
+
+/**
+ * Checks that algorithms clustering on several threads return the clusters of sequential
+ * clustering.
+ */
+public class ParallelClusteringTest {
+  /**
+   * Enough items for clustering to run in parallel.
+   */
+  private static final int ITEM_COUNT = 20000;
+
+  @Test
+  public void nonHierarchicalDistanceBased_parallelMatchesSequential() {
+    final List<TestItem> items = TestItem.randomItems(new Random(1), ITEM_COUNT);
+    final SpatialIndex.Factory[] factories = {PointQuadTree.FACTORY, KdTree.FACTORY};
+    for (SpatialIndex.Factory factory : factories) {
+      final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> sequential =
+        new MFNonHierarchicalDistanceBasedAlgorithm<>(factory);
+      final MFNonHierarchicalDistanceBasedAlgorithm<TestItem> parallel =
+        new MFNonHierarchicalDistanceBasedAlgorithm<>(factory);
+      parallel.setParallelism(4);
+      sequential.addItems(items);
+      parallel.addItems(items);
+      for (int zoom = 0; zoom <= 20; zoom += 2) {
+        assertEquals(TestItem.describe(sequential.getClusters(zoom)),
+          TestItem.describe(parallel.getClusters(zoom)));
+      }
+      parallel.setParallelism(1);
+    }
+  }
+
+  @Test
+  public void densityBased_parallelMatchesSequential() {
+    final List<TestItem> items = TestItem.randomItems(new Random(2), ITEM_COUNT);
+    final MFDensityBasedAlgorithm<TestItem> sequential = new MFDensityBasedAlgorithm<>();
+    final MFDensityBasedAlgorithm<TestItem> parallel = new MFDensityBasedAlgorithm<>();
+    parallel.setParallelism(4);
+    sequential.addItems(items);
+    parallel.addItems(items);
+    for (int zoom = 0; zoom <= 20; zoom += 2) {
+      assertEquals(TestItem.describe(sequential.getClusters(zoom)),
+        TestItem.describe(parallel.getClusters(zoom)));
+    }
+    parallel.setParallelism(1);
+  }
+}
@@ -0,0 +1,94 @@
+package vn.map4d.utils.android.clustering.algo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import vn.map4d.types.MFLocationCoordinate;
+import vn.map4d.utils.android.clustering.MFCluster;
+import vn.map4d.utils.android.clustering.MFClusterItem;
+
+/**
+ * An item with an id, for tests comparing the clusters of algorithms.
+ */
+class TestItem implements MFClusterItem {
+  final int mId;
+  private MFLocationCoordinate mPosition;
+
+  TestItem(int id, double latitude, double longitude) {
+    mId = id;
+    mPosition = new MFLocationCoordinate(latitude, longitude);
+  }
+
+  void setPosition(double latitude, double longitude) {
+    mPosition = new MFLocationCoordinate(latitude, longitude);
+  }
+
+  @Override
+  public MFLocationCoordinate getPosition() {
+    return mPosition;
+  }
+
+  @Override
+  public String getTitle() {
+    return null;
+  }
+
+  @Override
+  public String getSnippet() {
+    return null;
+  }
+
+  /**
+   * Dense and sparse areas, a grid of items sharing positions and items around the antimeridian.
+   */
+  static List<TestItem> randomItems(Random random, int count) {
+    final List<TestItem> items = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final double latitude;
+      final double longitude;
+      switch (i % 4) {
+        case 0:
+          latitude = 21 + random.nextGaussian() * 0.5;
+          longitude = 105.8 + random.nextGaussian() * 0.5;
+          break;
+        case 1:
+          latitude = random.nextDouble() * 170 - 85;
+          longitude = random.nextDouble() * 360 - 180;
+          break;
+        case 2:
+          latitude = 10 + random.nextInt(50) * 0.01;
+          longitude = 100 + random.nextInt(50) * 0.01;
+          break;
+        default:
+          latitude = random.nextGaussian() * 30;
+          final double east = 179.9 + random.nextGaussian() * 0.2;
+          longitude = east > 180 ? east - 360 : east;
+          break;
+      }
+      items.add(new TestItem(i, latitude, longitude));
+    }
+    return items;
+  }
+
+  /**
+   * Describes each cluster by its position and sorted item ids, so that sets of clusters can be
+   * compared whatever their implementation.
+   */
+  static Set<String> describe(Set<? extends MFCluster<TestItem>> clusters) {
+    final Set<String> descriptions = new HashSet<>();
+    for (MFCluster<TestItem> cluster : clusters) {
+      final List<Integer> ids = new ArrayList<>();
+      for (TestItem item : cluster.getItems()) {
+        ids.add(item.mId);
+      }
+      Collections.sort(ids);
+      final MFLocationCoordinate position = cluster.getPosition();
+      descriptions.add(position.getLatitude() + "," + position.getLongitude() + " " + ids);
+    }
+    return descriptions;
+  }
+}
@@ -0,0 +1,8 @@
+package vn.map4d.utils.android.quadtree;
+
+public class PackedHilbertIndexTest extends SpatialIndexTest {
+  @Override
+  SpatialIndex.Factory getFactory() {
+    return PackedHilbertIndex.FACTORY;
+  }
+}
@@ -0,0 +1,85 @@
+package vn.map4d.utils.android.quadtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.quadtree.SpatialIndexTest.TestItem;
+
+public class PersistentPointQuadTreeTest {
+  private static final Bounds WORLD = SpatialIndexTest.WORLD;
+
+  @Test
+  public void plusAndMinus_matchLinearScan() {
+    final Random random = new Random(1);
+    final List<TestItem> items = SpatialIndexTest.randomItems(random, 6000);
+    PersistentPointQuadTree<TestItem> tree = new PersistentPointQuadTree<>(WORLD);
+    tree = tree.plusAll(items.subList(0, 3000));
+    for (TestItem item : items.subList(3000, items.size())) {
+      tree = tree.plus(item);
+    }
+    assertSearch(tree, items, random);
+
+    Collections.shuffle(items, random);
+    while (items.size() > 100) {
+      tree = tree.minus(items.remove(items.size() - 1));
+    }
+    assertSearch(tree, items, random);
+  }
+
+  @Test
+  public void snapshots_areUnchangedByLaterVersions() {
+    final Random random = new Random(2);
+    final List<TestItem> items = SpatialIndexTest.randomItems(random, 4000);
+    final PersistentPointQuadTree<TestItem> snapshot =
+      new PersistentPointQuadTree<TestItem>(WORLD).plusAll(items);
+    PersistentPointQuadTree<TestItem> tree = snapshot;
+    for (TestItem item : items.subList(0, 3000)) {
+      tree = tree.minus(item);
+    }
+    for (TestItem item : SpatialIndexTest.randomItems(random, 2000)) {
+      tree = tree.plus(item);
+    }
+    assertSearch(snapshot, items, random);
+  }
+
+  @Test
+  public void unchangedTree_isReturned() {
+    final Random random = new Random(3);
+    final List<TestItem> items = SpatialIndexTest.randomItems(random, 200);
+    final PersistentPointQuadTree<TestItem> tree =
+      new PersistentPointQuadTree<TestItem>(WORLD).plusAll(items);
+    assertSame(tree, tree.plus(new TestItem(2, 0.5)));
+    assertSame(tree, tree.minus(new TestItem(0.5, 0.5)));
+    final PersistentPointQuadTree<TestItem> smaller = tree.minus(items.get(0));
+    assertEquals(tree.size() - 1, smaller.size());
+    assertSame(smaller, smaller.minus(items.get(0)));
+  }
+
+  private static void assertSearch(PersistentPointQuadTree<TestItem> tree, List<TestItem> items,
+                                   Random random) {
+    assertEquals(items.size(), tree.size());
+    assertEquals(new HashSet<>(items), new HashSet<>(tree.search(WORLD)));
+    final List<TestItem> visited = new ArrayList<>();
+    tree.visitAll(new PointQuadTree.Visitor<TestItem>() {
+      @Override
+      public void visit(TestItem item) {
+        visited.add(item);
+      }
+    });
+    assertEquals(items.size(), visited.size());
+    assertEquals(new HashSet<>(items), new HashSet<>(visited));
+    for (int i = 0; i < 50; i++) {
+      final Bounds bounds = SpatialIndexTest.randomBounds(random, i);
+      assertEquals(SpatialIndexTest.inBounds(items, bounds), new HashSet<>(tree.search(bounds)));
+    }
+  }
+}
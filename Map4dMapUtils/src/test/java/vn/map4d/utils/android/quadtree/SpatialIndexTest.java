@@ -0,0 +1,424 @@
+package vn.map4d.utils.android.quadtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import vn.map4d.utils.android.geometry.Bounds;
+import vn.map4d.utils.android.geometry.Point;
+
+/**
+ * Checks a {@link SpatialIndex} against a linear scan of its items.
+ */
+public abstract class SpatialIndexTest {
+  static final Bounds WORLD = new Bounds(0, 1, 0, 1);
+
+  abstract SpatialIndex.Factory getFactory();
+
+  private SpatialIndex<TestItem> createIndex() {
+    return getFactory().create(WORLD);
+  }
+
+  @Test
+  public void search_matchesLinearScan() {
+    final Random random = new Random(1);
+    final List<TestItem> items = randomItems(random, 5000);
+    final SpatialIndex<TestItem> index = createIndex();
+    for (TestItem item : items) {
+      index.add(item);
+    }
+    assertQueries(index, items, random);
+  }
+
+  @Test
+  public void search_empty() {
+    final SpatialIndex<TestItem> index = createIndex();
+    assertEquals(0, index.search(WORLD).size());
+  }
+
+  @Test
+  public void add_outsideBounds_isIgnored() {
+    final SpatialIndex<TestItem> index = createIndex();
+    final TestItem outside = new TestItem(2, 0.5);
+    index.add(outside);
+    assertEquals(0, index.search(WORLD).size());
+    assertFalse(index.remove(outside));
+  }
+
+  @Test
+  public void addAll_matchesLinearScan() {
+    final Random random = new Random(2);
+    final List<TestItem> items = randomItems(random, 5000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    assertQueries(index, items, random);
+  }
+
+  @Test
+  public void addAll_ontoItems_keepsBoth() {
+    final Random random = new Random(3);
+    final List<TestItem> items = randomItems(random, 3000);
+    final SpatialIndex<TestItem> index = createIndex();
+    for (TestItem item : items.subList(0, 1000)) {
+      index.add(item);
+    }
+    index.addAll(items.subList(1000, items.size()));
+    assertQueries(index, items, random);
+  }
+
+  @Test
+  public void addAll_outsideBounds_isIgnored() {
+    final Random random = new Random(4);
+    final List<TestItem> items = randomItems(random, 1000);
+    final List<TestItem> added = new ArrayList<>(items);
+    added.add(new TestItem(-1, 0.5));
+    added.add(new TestItem(0.5, 3));
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(added);
+    assertQueries(index, items, random);
+  }
+
+  @Test
+  public void searchVisitor_visitsItemsInBounds() {
+    final Random random = new Random(5);
+    final List<TestItem> items = randomItems(random, 5000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    for (int i = 0; i < 50; i++) {
+      final Bounds bounds = randomBounds(random, i);
+      final List<TestItem> visited = new ArrayList<>();
+      index.search(bounds.minX, bounds.maxX, bounds.minY, bounds.maxY, new PointQuadTree.Visitor<TestItem>() {
+        @Override
+        public void visit(TestItem item) {
+          visited.add(item);
+        }
+      });
+      // Each item is visited once.
+      assertEquals(visited.size(), new HashSet<>(visited).size());
+      assertEquals(inBounds(items, bounds), new HashSet<>(visited));
+    }
+  }
+
+  @Test
+  public void nearest_matchesLinearScan() {
+    final Random random = new Random(6);
+    final List<TestItem> items = randomItems(random, 5000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    for (int i = 0; i < 50; i++) {
+      assertNearest(index, items, random.nextDouble(), random.nextDouble(), 1 + random.nextInt(20));
+    }
+    assertNearest(index, items, 0.3, 0.6, 200);
+  }
+
+  @Test
+  public void nearest_moreThanIndexed_returnsAll() {
+    final Random random = new Random(7);
+    final List<TestItem> items = randomItems(random, 10);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    assertNearest(index, items, 0.5, 0.5, 50);
+    assertEquals(0, index.nearest(0.5, 0.5, 0).size());
+    assertEquals(0, createIndex().nearest(0.5, 0.5, 3).size());
+  }
+
+  @Test
+  public void withinRadius_matchesLinearScan() {
+    final Random random = new Random(8);
+    final List<TestItem> items = randomItems(random, 5000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    for (int i = 0; i < 50; i++) {
+      assertWithinRadius(index, items, random.nextDouble(), random.nextDouble(),
+        i % 2 == 0 ? 0.02 : random.nextDouble() * 0.5);
+    }
+  }
+
+  @Test
+  public void countAndCentroid_matchLinearScan() {
+    final Random random = new Random(9);
+    final List<TestItem> items = randomItems(random, 5000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    assertEquals(items.size(), index.count(WORLD));
+    for (int i = 0; i < 50; i++) {
+      final Bounds bounds = randomBounds(random, i);
+      final Set<TestItem> expected = inBounds(items, bounds);
+      assertEquals(expected.size(), index.count(bounds));
+      final Point centroid = index.centroid(bounds);
+      if (expected.isEmpty()) {
+        assertNull(centroid);
+        continue;
+      }
+      double x = 0;
+      double y = 0;
+      for (TestItem item : expected) {
+        x += item.mPoint.x;
+        y += item.mPoint.y;
+      }
+      assertEquals(x / expected.size(), centroid.x, 1e-9);
+      assertEquals(y / expected.size(), centroid.y, 1e-9);
+    }
+  }
+
+  @Test
+  public void centroid_empty_isNull() {
+    assertNull(createIndex().centroid(WORLD));
+  }
+
+  @Test
+  public void remove_keepsRemainingItems() {
+    final Random random = new Random(10);
+    final List<TestItem> items = randomItems(random, 4000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    // Removing most items merges split nodes back together.
+    Collections.shuffle(items, random);
+    while (items.size() > 30) {
+      assertTrue(index.remove(items.remove(items.size() - 1)));
+    }
+    assertQueries(index, items, random);
+    index.compact();
+    assertQueries(index, items, random);
+    for (TestItem item : items) {
+      assertTrue(index.remove(item));
+      assertFalse(index.remove(item));
+    }
+    assertEquals(0, index.count(WORLD));
+  }
+
+  @Test
+  public void removeThenAdd_roundTrips() {
+    final Random random = new Random(11);
+    final List<TestItem> items = randomItems(random, 3000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    final List<TestItem> removed = new ArrayList<>(items.subList(0, 2000));
+    for (TestItem item : removed) {
+      assertTrue(index.remove(item));
+    }
+    index.addAll(removed);
+    assertQueries(index, items, random);
+  }
+
+  @Test
+  public void remove_interleavedWithQueries() {
+    final Random random = new Random(12);
+    final List<TestItem> items = randomItems(random, 3000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    Collections.shuffle(items, random);
+    while (items.size() > 1000) {
+      for (int i = 0; i < 100; i++) {
+        assertTrue(index.remove(items.remove(items.size() - 1)));
+      }
+      assertQueries(index, items, random);
+    }
+  }
+
+  @Test
+  public void clear_removesEverything() {
+    final Random random = new Random(13);
+    final List<TestItem> items = randomItems(random, 1000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    index.clear();
+    assertEquals(0, index.count(WORLD));
+    assertFalse(index.remove(items.get(0)));
+    index.addAll(items);
+    assertQueries(index, items, random);
+  }
+
+  @Test
+  public void move_matchesLinearScan() {
+    final Random random = new Random(14);
+    final List<TestItem> items = randomItems(random, 3000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    for (int i = 0; i < 6000; i++) {
+      move(index, items.get(random.nextInt(items.size())), random);
+    }
+    assertQueries(index, items, random);
+  }
+
+  @Test
+  public void move_interleavedWithQueries() {
+    final Random random = new Random(15);
+    final List<TestItem> items = randomItems(random, 3000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 1 + round * 10; i++) {
+        move(index, items.get(random.nextInt(items.size())), random);
+      }
+      assertQueries(index, items, random);
+    }
+  }
+
+  @Test
+  public void move_thereAndBack_roundTrips() {
+    final Random random = new Random(16);
+    final List<TestItem> items = randomItems(random, 2000);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    final List<Point> origins = new ArrayList<>();
+    for (TestItem item : items) {
+      origins.add(item.mPoint);
+      final double x = random.nextDouble();
+      final double y = random.nextDouble();
+      assertTrue(index.move(item, x, y));
+      item.mPoint = new Point(x, y);
+    }
+    for (int i = 0; i < items.size(); i++) {
+      final TestItem item = items.get(i);
+      final Point origin = origins.get(i);
+      assertTrue(index.move(item, origin.x, origin.y));
+      item.mPoint = origin;
+    }
+    assertQueries(index, items, random);
+  }
+
+  @Test
+  public void move_outsideBounds_removesItem() {
+    final Random random = new Random(17);
+    final List<TestItem> items = randomItems(random, 500);
+    final SpatialIndex<TestItem> index = createIndex();
+    index.addAll(items);
+    final TestItem item = items.remove(0);
+    assertTrue(index.move(item, 2, 0.5));
+    item.mPoint = new Point(2, 0.5);
+    assertFalse(index.remove(item));
+    assertFalse(index.move(item, 0.5, 0.5));
+    assertQueries(index, items, random);
+  }
+
+  /**
+   * Moves the item a short way, staying in its node, or anywhere in the world.
+   */
+  private static void move(SpatialIndex<TestItem> index, TestItem item, Random random) {
+    final double x;
+    final double y;
+    if (random.nextBoolean()) {
+      x = clamp(item.mPoint.x + random.nextGaussian() * 0.001);
+      y = clamp(item.mPoint.y + random.nextGaussian() * 0.001);
+    } else {
+      x = random.nextDouble();
+      y = random.nextDouble();
+    }
+    assertTrue(index.move(item, x, y));
+    item.mPoint = new Point(x, y);
+  }
+
+  /**
+   * Half the items are packed in a small area, so that the index splits several levels deep.
+   */
+  static List<TestItem> randomItems(Random random, int count) {
+    final List<TestItem> items = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      if (i % 2 == 0) {
+        items.add(new TestItem(
+          clamp(0.3 + random.nextGaussian() * 0.01), clamp(0.6 + random.nextGaussian() * 0.01)));
+      } else {
+        items.add(new TestItem(random.nextDouble(), random.nextDouble()));
+      }
+    }
+    return items;
+  }
+
+  static double clamp(double value) {
+    return Math.max(0, Math.min(1, value));
+  }
+
+  static void assertQueries(SpatialIndex<TestItem> index, List<TestItem> items, Random random) {
+    assertEquals(new HashSet<>(items), new HashSet<>(index.search(WORLD)));
+    for (int i = 0; i < 50; i++) {
+      final Bounds bounds = randomBounds(random, i);
+      assertEquals(inBounds(items, bounds), new HashSet<>(index.search(bounds)));
+    }
+  }
+
+  /**
+   * Alternates small bounds and bounds up to the size of the world.
+   */
+  static Bounds randomBounds(Random random, int i) {
+    final double x = random.nextDouble();
+    final double y = random.nextDouble();
+    final double span = i % 2 == 0 ? 0.02 : random.nextDouble() * 0.5;
+    return new Bounds(x - span, x + span, y - span, y + span);
+  }
+
+  static Set<TestItem> inBounds(List<TestItem> items, Bounds bounds) {
+    final Set<TestItem> result = new HashSet<>();
+    for (TestItem item : items) {
+      if (bounds.contains(item.mPoint)) {
+        result.add(item);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Compares distances rather than items, as items at the same distance may come in any order.
+   */
+  static void assertNearest(SpatialIndex<TestItem> index, List<TestItem> items,
+                            double x, double y, int k) {
+    final List<Double> expected = new ArrayList<>();
+    for (TestItem item : items) {
+      expected.add(distanceSquared(item, x, y));
+    }
+    Collections.sort(expected);
+    final List<TestItem> nearest = index.nearest(x, y, k);
+    assertEquals(Math.min(k, items.size()), nearest.size());
+    assertEquals(nearest.size(), new HashSet<>(nearest).size());
+    for (int i = 0; i < nearest.size(); i++) {
+      assertEquals(expected.get(i), distanceSquared(nearest.get(i), x, y), 0);
+    }
+  }
+
+  static void assertWithinRadius(SpatialIndex<TestItem> index, List<TestItem> items,
+                                 double x, double y, double radius) {
+    final Set<TestItem> expected = new HashSet<>();
+    for (TestItem item : items) {
+      if (distanceSquared(item, x, y) <= radius * radius) {
+        expected.add(item);
+      }
+    }
+    final Set<TestItem> found = new HashSet<>();
+    index.withinRadius(x, y, radius, new PointQuadTree.Visitor<TestItem>() {
+      @Override
+      public void visit(TestItem item) {
+        found.add(item);
+      }
+    });
+    assertEquals(expected, found);
+  }
+
+  private static double distanceSquared(TestItem item, double x, double y) {
+    final double dx = item.mPoint.x - x;
+    final double dy = item.mPoint.y - y;
+    return dx * dx + dy * dy;
+  }
+
+  static class TestItem implements PointQuadTree.Item {
+    Point mPoint;
+
+    TestItem(double x, double y) {
+      mPoint = new Point(x, y);
+    }
+
+    @Override
+    public Point getPoint() {
+      return mPoint;
+    }
+  }
+}
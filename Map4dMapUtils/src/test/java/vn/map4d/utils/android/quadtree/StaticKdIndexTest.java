@@ -0,0 +1,135 @@
+package vn.map4d.utils.android.quadtree;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Checks {@link StaticKdIndex} against a linear scan of its points.
+ */
+public class StaticKdIndexTest {
+
+  @Test
+  public void range_matchesLinearScan() {
+    final Random random = new Random(1);
+    final double[] xs = new double[3000];
+    final double[] ys = new double[3000];
+    fill(random, xs, ys);
+    final StaticKdIndex index = new StaticKdIndex(xs, ys, 2500);
+    assertEquals(2500, index.size());
+    for (int i = 0; i < 100; i++) {
+      final double x = random.nextDouble();
+      final double y = random.nextDouble();
+      final double span = random.nextDouble() * 0.2;
+      final Set<Integer> expected = new HashSet<>();
+      for (int id = 0; id < 2500; id++) {
+        if (x - span <= xs[id] && xs[id] <= x + span && y - span <= ys[id] && ys[id] <= y + span) {
+          expected.add(id);
+        }
+      }
+      final Set<Integer> found = new HashSet<>();
+      index.range(x - span, x + span, y - span, y + span, new Collector(found));
+      assertEquals(expected, found);
+    }
+  }
+
+  @Test
+  public void within_matchesLinearScan() {
+    final Random random = new Random(2);
+    final double[] xs = new double[2000];
+    final double[] ys = new double[2000];
+    fill(random, xs, ys);
+    final StaticKdIndex index = new StaticKdIndex(xs, ys, xs.length);
+    for (int i = 0; i < 100; i++) {
+      final double x = random.nextDouble();
+      final double y = random.nextDouble();
+      final double radius = random.nextDouble() * 0.2;
+      final Set<Integer> expected = new HashSet<>();
+      for (int id = 0; id < xs.length; id++) {
+        if (distanceSquared(xs, ys, id, x, y) <= radius * radius) {
+          expected.add(id);
+        }
+      }
+      final Set<Integer> found = new HashSet<>();
+      index.within(x, y, radius, new Collector(found));
+      assertEquals(expected, found);
+    }
+  }
+
+  @Test
+  public void nearestOutside_matchesLinearScan() {
+    final Random random = new Random(3);
+    final double[] xs = new double[2000];
+    final double[] ys = new double[2000];
+    fill(random, xs, ys);
+    final int[] labels = new int[xs.length];
+    for (int id = 0; id < labels.length; id++) {
+      // A few large labels, so that whole nodes share one, and some points which are never returned.
+      labels[id] = random.nextInt(10) == 0 ? -1 : (int) (xs[id] * 4);
+    }
+    final StaticKdIndex.Labels index = new StaticKdIndex(xs, ys, xs.length).label(labels);
+    for (int i = 0; i < 200; i++) {
+      final double x = random.nextDouble();
+      final double y = random.nextDouble();
+      final int label = random.nextInt(4);
+      final double maxDistance = random.nextDouble() * 0.5;
+      double expected = maxDistance * maxDistance;
+      int expectedId = -1;
+      for (int id = 0; id < xs.length; id++) {
+        final double distance = distanceSquared(xs, ys, id, x, y);
+        if (labels[id] != label && labels[id] != -1 && distance <= expected) {
+          if (expectedId == -1 || distance < expected) {
+            expected = distance;
+            expectedId = id;
+          }
+        }
+      }
+      final int id = index.nearestOutside(x, y, label, maxDistance);
+      if (expectedId == -1) {
+        assertEquals(-1, id);
+      } else {
+        assertEquals(expected, distanceSquared(xs, ys, id, x, y), 0);
+      }
+    }
+  }
+
+  @Test
+  public void empty_findsNothing() {
+    final StaticKdIndex index = new StaticKdIndex(new double[0], new double[0], 0);
+    final Set<Integer> found = new HashSet<>();
+    index.range(0, 1, 0, 1, new Collector(found));
+    index.within(0.5, 0.5, 1, new Collector(found));
+    assertEquals(0, found.size());
+    assertEquals(-1, index.label(new int[0]).nearestOutside(0.5, 0.5, 0, 1));
+  }
+
+  private static void fill(Random random, double[] xs, double[] ys) {
+    for (int i = 0; i < xs.length; i++) {
+      xs[i] = random.nextDouble();
+      ys[i] = random.nextDouble();
+    }
+  }
+
+  private static double distanceSquared(double[] xs, double[] ys, int id, double x, double y) {
+    final double dx = xs[id] - x;
+    final double dy = ys[id] - y;
+    return dx * dx + dy * dy;
+  }
+
+  private static class Collector implements StaticKdIndex.Visitor {
+    private final Set<Integer> mIds;
+
+    Collector(Set<Integer> ids) {
+      mIds = ids;
+    }
+
+    @Override
+    public void visit(int id) {
+      mIds.add(id);
+    }
+  }
+}